@@ -65,13 +65,60 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 	/** canonical NULL object */
 	public REXPNull nullValue;
 
+	/** JFR events, see {@link REngineEvent} */
+	static final REngineEvent LOCK_EVENT = REngineEvent.define("org.rosuda.REngine.JRI.LockWait", "JRI Lock Wait",
+								   new String[] { "acquired" }, new Class[] { boolean.class });
+	static final REngineEvent RESOLVE_EVENT = REngineEvent.define("org.rosuda.REngine.JRI.Resolve", "JRI Resolve",
+								      new String[] { "sexpType", "size" }, new Class[] { int.class, long.class });
+	static final REngineEvent CREATE_EVENT = REngineEvent.define("org.rosuda.REngine.JRI.Create", "JRI Create",
+								     new String[] { "sexpType", "size" }, new Class[] { int.class, long.class });
+
+	/** obtains {@link #rniMutex} (waiting for R to become ready), recording the wait as an event if enabled
+	 @return <code>true</code> if the lock was obtained, <code>false</code> if the current thread already held it */
+	boolean lockRni() {
+		if (!REngineEvent.enabled) return rniMutex.safeLock();
+		Object ev = LOCK_EVENT.begin();
+		boolean obtainedLock = rniMutex.safeLock();
+		if (ev != null) LOCK_EVENT.commit(ev, new Object[] { Boolean.valueOf(obtainedLock) });
+		return obtainedLock;
+	}
+
+	/** SEXP type corresponding to a REXP (for events)
+	 @param x REXP (can be <code>null</code>)
+	 @return SEXP type or -1 if unknown */
+	static int sexpType(REXP x) {
+		if (x == null) return -1;
+		if (x instanceof REXPNull) return NILSXP;
+		if (x instanceof REXPUnknown) return ((REXPUnknown) x).getType();
+		if (x instanceof REXPString) return STRSXP;
+		if (x instanceof REXPDouble) return REALSXP;
+		if (x instanceof REXPInteger) return INTSXP;
+		if (x instanceof REXPLogical) return LGLSXP;
+		if (x instanceof REXPRaw) return RAWSXP;
+		if (x instanceof REXPExpressionVector) return EXPRSXP;
+		if (x instanceof REXPGenericVector) return VECSXP;
+		if (x instanceof REXPLanguage) return LANGSXP;
+		if (x instanceof REXPList) return LISTSXP;
+		if (x instanceof REXPSymbol) return SYMSXP;
+		if (x instanceof REXPS4) return S4SXP;
+		if (x instanceof REXPEnvironment) return ENVSXP;
+		return -1;
+	}
+
+	/** number of elements of a REXP (for events) */
+	static long sexpSize(REXP x) {
+		if (x instanceof REXPVector) return ((REXPVector) x).length();
+		if (x instanceof REXPList) return ((REXPList) x).length();
+		return (x == null || x.isNull()) ? 0 : 1;
+	}
+
 	/** class used for wrapping raw pointers such that they are adequately protected and released according to the lifespan of the Java object */
 	class JRIPointer {
 		long ptr;
 		JRIPointer(long ptr, boolean preserve) {
 			this.ptr = ptr;
 			if (preserve && ptr != 0 && ptr != R_NilValue) {
-				boolean obtainedLock = rniMutex.safeLock(); // this will inherently wait for R to become ready
+				boolean obtainedLock = lockRni(); // this will inherently wait for R to become ready
 				try {
 					rni.rniPreserve(ptr);
 				} finally {
@@ -83,7 +130,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 		protected void finalize() throws Throwable {
 			try {
 				if (ptr != 0 && ptr != R_NilValue) {
-					boolean obtainedLock = rniMutex.safeLock();
+					boolean obtainedLock = lockRni();
 					try {
 						rni.rniRelease(ptr);
 					} finally {
@@ -156,7 +203,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 		// the default modus operandi is without event loop and with --no-save option
 		rni = new Rengine(args, runREPL, (callbacks == null) ? null : this);
 		rniMutex = rni.getRsync();
-		boolean obtainedLock = rniMutex.safeLock(); // this will inherently wait for R to become ready
+		boolean obtainedLock = lockRni(); // this will inherently wait for R to become ready
 		try {
 			if (!rni.waitForR())
 				throw(new REngineException(this, "Unable to initialize R"));
@@ -193,7 +240,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 		// the default modus operandi is without event loop and with --no-save option
 		rni = new Rengine(args, runREPL, callbacks);
 		rniMutex = rni.getRsync();
-		boolean obtainedLock = rniMutex.safeLock(); // this will inherently wait for R to become ready
+		boolean obtainedLock = lockRni(); // this will inherently wait for R to become ready
 		try {
 			if (!rni.waitForR())
 				throw(new REngineException(this, "Unable to initialize R"));
@@ -225,7 +272,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 		if (rni.rniGetVersion() < 0x109)
 			throw(new REngineException(this, "R JRI engine is too old - RNI API 1.9 (JRI 0.5) or newer is required"));
 		rniMutex = rni.getRsync();
-		boolean obtainedLock = rniMutex.safeLock();
+		boolean obtainedLock = lockRni();
 		try {
 			globalEnv = new REXPReference(this, Long.valueOf(rni.rniSpecialObject(Rengine.SO_GlobalEnv)));
 			nullValueRef = new REXPReference(this, Long.valueOf(R_NilValue = rni.rniSpecialObject(Rengine.SO_NilValue)));
@@ -244,7 +291,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 	
 	public REXP parse(String text, boolean resolve) throws REngineException {
 		REXP ref = null;
-		boolean obtainedLock = rniMutex.safeLock();
+		boolean obtainedLock = lockRni();
 		try {
 			long pr = rni.rniParse(text, -1);
 			if (pr == 0 || pr == R_NilValue) throw(new REngineException(this, "Parse error"));
@@ -276,7 +323,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 			else
 				throw(new REXPMismatchException(where, "reference, expression or language"));
 		}
-		boolean obtainedLock = rniMutex.safeLock();
+		boolean obtainedLock = lockRni();
 		try {
 			long pr = rni.rniEval(((Long)((REXPReference)what).getHandle()).longValue(), rho);
 			if (pr == 0) // rniEval() signals error by passing 0
@@ -304,7 +351,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 		if (value == null) value = nullValueRef;
 		if (!value.isReference())
 			value = createReference(value); // if value is not a reference, we have to create one
-		boolean obtainedLock = rniMutex.safeLock(), succeeded = false;
+		boolean obtainedLock = lockRni(), succeeded = false;
 		try {
 			succeeded = rni.rniAssign(symbol, ((Long)((REXPReference)value).getHandle()).longValue(), rho);
 		} finally {
@@ -325,7 +372,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 				rho = ((JRIPointer)((REXPEnvironment)env).getHandle()).pointer();
 		} else
 			if (env != null) rho = ((Long)((REXPReference)env).getHandle()).longValue();
-		boolean obtainedLock = rniMutex.safeLock();
+		boolean obtainedLock = lockRni();
 		try {
 			long pr = rni.rniFindVar(symbol, rho);
 			if (pr == R_UnboundValue || pr == 0) return null;
@@ -354,9 +401,21 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 	 * 
 	 * This is the actual implementation of <code>resolveReference</code> but it works directly on the long pointers to be more efficient when performing recursive de-referencing */
 	REXP resolvePointer(long ptr) throws REngineException, REXPMismatchException {
+		if (!REngineEvent.enabled) return resolve(ptr);
+		Object ev = RESOLVE_EVENT.begin();
+		REXP res = null;
+		try {
+			return res = resolve(ptr);
+		} finally {
+			if (ev != null) RESOLVE_EVENT.commit(ev, new Object[] { Integer.valueOf(sexpType(res)), Long.valueOf(sexpSize(res)) });
+		}
+	}
+
+	/** implementation of {@link #resolvePointer} (without events, also used for nested objects) */
+	REXP resolve(long ptr) throws REngineException, REXPMismatchException {
 		if (ptr == 0) return nullValue;
 		REXP res = null;
-		boolean obtainedLock = rniMutex.safeLock();
+		boolean obtainedLock = lockRni();
 		try {
 			int xt = rni.rniExpType(ptr);
 			String an[] = rni.rniGetAttrNames(ptr);
@@ -370,7 +429,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 					long aptr = rni.rniGetAttr(ptr, an[i]);
 					if (aptr != 0 && aptr != R_NilValue) {
 						if (an[i].equals("jobj")) jobj = aptr;
-						REXP av = resolvePointer(aptr);
+						REXP av = resolve(aptr);
 						if (av != null && av != nullValue) {
 							attl.put(an[i], av);
 							if (an[i].equals("class") && av.isString())
@@ -444,7 +503,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 					if (na != 0 && rni.rniExpType(na) == STRSXP)
 						names = rni.rniGetStringArray(na);
 					for (int i = 0; i < l.length; i++)
-						rl[i] = resolvePointer(l[i]);
+						rl[i] = resolve(l[i]);
 					RList list = (names == null) ? new RList(rl) : new RList(rl, names);
 					res = new REXPGenericVector(list, attrs);
 				}
@@ -466,7 +525,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 						String name = null;
 						if (rni.rniExpType(tag) == SYMSXP)
 							name = rni.rniGetSymbolName(tag);
-						REXP val = resolvePointer(car);
+						REXP val = resolve(car);
 						if (name == null) l.add(val); else l.put(name, val);
 						cdr = rni.rniCDR(cdr);
 					}
@@ -503,7 +562,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 		if (value.isReference()) return value;
 		long ptr = createReferencePointer(value);
 		if (ptr == 0) return null;
-		boolean obtainedLock = rniMutex.safeLock();
+		boolean obtainedLock = lockRni();
 		try {
 			rni.rniPreserve(ptr);
 		} finally {
@@ -522,13 +581,24 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 	 * @throws REXPMismatchException only if some internal inconsistency happens. The internal logic should prevent invalid access to valid objects.
 	 */
 	long createReferencePointer(REXP value) throws REngineException, REXPMismatchException {
+		if (!REngineEvent.enabled || value.isReference()) return createPointer(value);
+		Object ev = CREATE_EVENT.begin();
+		try {
+			return createPointer(value);
+		} finally {
+			if (ev != null) CREATE_EVENT.commit(ev, new Object[] { Integer.valueOf(sexpType(value)), Long.valueOf(sexpSize(value)) });
+		}
+	}
+
+	/** implementation of {@link #createReferencePointer} (without events, also used for nested objects) */
+	long createPointer(REXP value) throws REngineException, REXPMismatchException {
 		if (value.isReference()) { // if it's reference, return the handle if it's from this engine
 			REXPReference vref = (REXPReference) value;
 			if (vref.getEngine() != this)
 				throw new REXPMismatchException(value, "reference (cross-engine reference is invalid)");
 			return ((Long)vref.getHandle()).longValue();
 		}
-		boolean obtainedLock = rniMutex.safeLock();
+		boolean obtainedLock = lockRni();
 		int upp = 0;
 		try {
 			long ptr = 0;
@@ -570,7 +640,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 						String n = rl.keyAt(i);
 						long sn = 0;
 						if (n != null) sn = rni.rniInstallSymbol(n);
-						long vptr = createReferencePointer(v);
+						long vptr = createPointer(v);
 						if (vptr == 0) vptr = R_NilValue;
 						long ent = rni.rniCons(vptr, ptr, sn, (i == 0) && lang); /* only the head should be LANGSXP I think - verify ... */
 						rni.rniPreserve(ent); // preserve current head
@@ -586,7 +656,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 					if (rv == null || rv.isNull())
 						xl[i] = R_NilValue;
 					else {
-						long lv = createReferencePointer(rv);
+						long lv = createPointer(rv);
 						if (lv != 0 && lv != R_NilValue) {
 							rni.rniProtect(lv);
 							upp++;
@@ -638,7 +708,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 					REXP v = al.at(i);
 					String n = al.keyAt(i);
 					if (n != null) {
-						long vptr = createReferencePointer(v);
+						long vptr = createPointer(v);
 						if (vptr != 0 && vptr != R_NilValue)
 							rni.rniSetAttr(ptr, n, vptr);
 					}
@@ -658,7 +728,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 	public void finalizeReference(REXP ref) throws REngineException, REXPMismatchException {
 		if (ref != null && ref.isReference()) {
 			long ptr = ((Long)((REXPReference)ref).getHandle()).longValue();
-			boolean obtainedLock = rniMutex.safeLock();
+			boolean obtainedLock = lockRni();
 			try {
 				rni.rniRelease(ptr);
 			} finally {
@@ -678,7 +748,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 				rho = ((JRIPointer)((REXPEnvironment)env).getHandle()).pointer();
 		} else
 			if (env != null) rho = ((Long)((REXPReference)env).getHandle()).longValue();
-		boolean obtainedLock = rniMutex.safeLock();
+		boolean obtainedLock = lockRni();
 		try {
 			long pr = rni.rniParentEnv(rho);
 			if (pr == 0 || pr == R_NilValue) return null; // this should never happen, really
@@ -695,7 +765,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 
 	public REXP newEnvironment(REXP parent, boolean resolve) throws REXPMismatchException, REngineException {
 		REXP ref = null;
-		boolean obtainedLock = rniMutex.safeLock();
+		boolean obtainedLock = lockRni();
 		try {
 			long rho = 0;
 			if (parent != null && !parent.isReference()) {
@@ -736,7 +806,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 	/** obains a lock for this R engine, waiting until it becomes available.
 	 @return value that must be passed to {@link #unlock} in order to release the lock */
 	public synchronized int lock() {
-		return rniMutex.safeLock() ? 1 : 2;
+		return lockRni() ? 1 : 2;
 	}
 	
 	/** releases a lock previously obtained by {@link #lock()} or {@link #tryLock()}.
@@ -766,7 +836,7 @@ public class JRIEngine extends REngine implements RMainLoopCallbacks {
 		
 		/* call Rengine api and make REXPReference from the result */
 		REXPReference ref = null ; 
-		boolean obtainedLock = rniMutex.safeLock();
+		boolean obtainedLock = lockRni();
 		try {
 			org.rosuda.JRI.REXP rx = rni.createRJavaRef( o );
 			if( rx == null){
@@ -0,0 +1,164 @@
+package org.rosuda.REngine;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/** RDirectArena manages the off-heap (direct) memory of vectors such as {@link REXPDirectDouble}. Direct memory is not part of the Java heap, so large vectors stored there don't burden the garbage collector. It is, however, only released when the vector is closed (or, if that never happens, when the garbage collector eventually collects the buffers).
+ <p>
+ All vectors allocated in an arena can be released at once by closing the arena, which makes it easy to scope the life time of the results of a computation:
+ <pre>
+ RDirectArena arena = new RDirectArena();
+ try {
+     connection.setDirectArena(arena, 1024*1024);
+     REXPDirectDouble x = (REXPDirectDouble) connection.eval("rnorm(1e9)");
+     ...
+ } finally {
+     arena.close();
+ }
+ </pre>
+ Vectors must not be used once they (or their arena) have been closed. Accessing a closed vector throws an <code>IllegalStateException</code>, but closing a vector while another thread is accessing it is not safe.
+ <p>
+ The memory is allocated in segments of at most {@link #getSegmentSize()} bytes, because a single <code>ByteBuffer</code> cannot be larger than 2GB. All segments are in little-endian byte order which is both the QAP1 encoding and the native order on all common platforms. */
+public class RDirectArena {
+	/** default size of a segment (1GB) */
+	public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+	private int segmentSize;
+	/** open vectors allocated in this arena */
+	private IdentityHashMap vectors = new IdentityHashMap();
+	private long allocated;
+	private boolean closed;
+
+	/** creates an arena with the default segment size */
+	public RDirectArena() {
+		this(DEFAULT_SEGMENT_SIZE);
+	}
+
+	/** creates an arena
+	 @param segmentSize maximal size of a segment in bytes (must be at least 8) */
+	public RDirectArena(int segmentSize) {
+		if (segmentSize < 8)
+			throw new IllegalArgumentException("segment size must be at least 8 bytes");
+		this.segmentSize = segmentSize;
+	}
+
+	/** returns the maximal size of a segment
+	 @return size in bytes */
+	public int getSegmentSize() { return segmentSize; }
+
+	/** returns the amount of direct memory currently held by open vectors of this arena
+	 @return number of bytes */
+	public synchronized long getAllocated() { return allocated; }
+
+	/** returns the number of open vectors in this arena
+	 @return number of vectors */
+	public synchronized int getVectorCount() { return vectors.size(); }
+
+	/** checks whether the arena has been closed
+	 @return <code>true</code> if {@link #close()} has been called */
+	public synchronized boolean isClosed() { return closed; }
+
+	/** allocates the segments for a vector and registers the vector with this arena. This is called by the constructors of direct vectors.
+	 @param v vector
+	 @param size total size in bytes
+	 @param elementSize size of an element in bytes, segments never split an element
+	 @return segments (zero-filled) */
+	synchronized ByteBuffer[] allocate(REXPDirectVector v, long size, int elementSize) {
+		if (closed)
+			throw new IllegalStateException("the arena is closed");
+		int sb = segmentSize - segmentSize % elementSize;
+		ByteBuffer[] s = new ByteBuffer[(int) ((size + sb - 1) / sb)];
+		try {
+			for (int i = 0; i < s.length; i++)
+				s[i] = allocateBuffer((int) Math.min(sb, size - (long) i * sb));
+		} catch (OutOfMemoryError e) { /* direct memory is exhausted - don't leak the segments allocated so far */
+			for (int i = 0; i < s.length; i++)
+				if (s[i] != null) free(s[i]);
+			throw e;
+		}
+		allocated += size;
+		vectors.put(v, v);
+		return s;
+	}
+
+	/** releases the segments of a vector, called by {@link REXPDirectVector#close()} */
+	synchronized void release(REXPDirectVector v, ByteBuffer[] s, long size) {
+		if (vectors.remove(v) != null)
+			allocated -= size;
+		for (int i = 0; i < s.length; i++)
+			free(s[i]);
+	}
+
+	/** closes all vectors allocated in this arena and releases their memory. The arena cannot be used for further allocations. */
+	public void close() {
+		ArrayList l;
+		synchronized (this) {
+			closed = true;
+			l = new ArrayList(vectors.keySet());
+		}
+		Iterator i = l.iterator();
+		while (i.hasNext())
+			((REXPDirectVector) i.next()).close();
+	}
+
+	/** allocates one little-endian direct buffer
+	 @param size size in bytes
+	 @return buffer */
+	static ByteBuffer allocateBuffer(int size) {
+		ByteBuffer b = ByteBuffer.allocateDirect(size);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		return b;
+	}
+
+	/* reflective access to the cleaner: 0 = not resolved yet, 1 = Unsafe.invokeCleaner (Java 9+), 2 = DirectBuffer.cleaner (Java 8 and older), -1 = not available */
+	static int cleanerState = 0;
+	static Object unsafe;
+	static Method mInvokeCleaner;
+
+	/** releases the memory of a direct buffer immediately instead of waiting for the garbage collector. The buffer must not be used afterwards. This uses internal JDK API via reflection, if it is not available the memory is left to the garbage collector.
+	 @param b buffer allocated by <code>ByteBuffer.allocateDirect</code> or mapped by <code>FileChannel.map</code> (not a slice or duplicate)
+	 @return <code>true</code> if the memory was released */
+	public static boolean free(ByteBuffer b) {
+		if (b == null || !b.isDirect()) return false;
+		synchronized (RDirectArena.class) {
+			if (cleanerState == 0) {
+				try {
+					Class cu = Class.forName("sun.misc.Unsafe");
+					mInvokeCleaner = cu.getMethod("invokeCleaner", new Class[] { ByteBuffer.class });
+					Field f = cu.getDeclaredField("theUnsafe");
+					f.setAccessible(true);
+					unsafe = f.get(null);
+					cleanerState = 1;
+				} catch (Throwable e) {
+					cleanerState = 2;
+				}
+			}
+		}
+		try {
+			if (cleanerState == 1) {
+				mInvokeCleaner.invoke(unsafe, new Object[] { b });
+				return true;
+			}
+			if (cleanerState == 2) {
+				Method mc = b.getClass().getMethod("cleaner", new Class[0]);
+				mc.setAccessible(true);
+				Object c = mc.invoke(b, new Object[0]);
+				if (c == null) return false;
+				Method ml = c.getClass().getMethod("clean", new Class[0]);
+				ml.setAccessible(true);
+				ml.invoke(c, new Object[0]);
+				return true;
+			}
+		} catch (InvocationTargetException e) { /* the cleaner refused this buffer (e.g. a slice) */
+		} catch (Throwable e) {
+			cleanerState = -1;
+		}
+		return false;
+	}
+}
@@ -107,7 +107,7 @@ public class REXP {
 
 	// methods common to all REXPs
 	
-	/** retrieve an attribute of the given name from this object
+	/** retrieve an attribute of the given name from this object. The attribute is looked up by {@link RList#at(String)}, i.e. using the name index only if there are more than {@link RList#INDEX_THRESHOLD} attributes; typical attribute lists are shorter and are searched linearly.
 	 * @param name attribute name
 	 * @return attribute value or <code>null</code> if the attribute does not exist */
 	public REXP getAttribute(String name) {
@@ -131,7 +131,8 @@ public class REXP {
 	 * @return an array of integers with corresponding dimensions or <code>null</code> if the object has no dimension attribute */
 	public int[] dim() {
 		try {
-			return hasAttribute("dim")?_attr().asList().at("dim").asIntegers():null;
+			final REXP d = getAttribute("dim");
+			return (d == null) ? null : d.asIntegers();
 		} catch (REXPMismatchException me) {
 		}
 		return null;
@@ -141,9 +142,10 @@ public class REXP {
 	 * @param klass class name
 	 * @return <code>true</code> if this object is of the class <code>klass</code>, <code>false</code> otherwise */
 	public boolean inherits(String klass) {
-		if (!hasAttribute("class")) return false;
+		final REXP cls = getAttribute("class");
+		if (cls == null) return false;
 		try {
-			String c[] = getAttribute("class").asStrings();
+			String c[] = cls.asStrings();
 			if (c != null) {
 				int i = 0;
 				while (i < c.length) {
@@ -0,0 +1,143 @@
+package org.rosuda.REngine;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/** REXPDirectInteger represents a vector of integer values stored off-heap (see {@link REXPDirectVector}). */
+public class REXPDirectInteger extends REXPDirectVector {
+	/** create a zero-filled integer vector
+	 @param arena arena to allocate the memory in or <code>null</code> for unmanaged memory
+	 @param length number of elements
+	 @param attr attributes or <code>null</code> */
+	public REXPDirectInteger(RDirectArena arena, long length, REXPList attr) {
+		super(arena, length, 4, attr);
+	}
+
+	/** create a zero-filled integer vector
+	 @param arena arena to allocate the memory in or <code>null</code> for unmanaged memory
+	 @param length number of elements */
+	public REXPDirectInteger(RDirectArena arena, long length) {
+		this(arena, length, null);
+	}
+
+	/** create an integer vector holding a copy of the given values
+	 @param arena arena to allocate the memory in or <code>null</code> for unmanaged memory
+	 @param load values
+	 @param attr attributes or <code>null</code> */
+	public REXPDirectInteger(RDirectArena arena, int[] load, REXPList attr) {
+		this(arena, load.length, attr);
+		put(0, load, 0, load.length);
+	}
+
+	/** create a integer vector backed by existing segments (e.g. regions of a memory-mapped file), see {@link REXPDirectVector#REXPDirectVector(ByteBuffer[],int,REXPList)}
+	 @param segments segments holding the values
+	 @param attr attributes or <code>null</code> */
+	public REXPDirectInteger(ByteBuffer[] segments, REXPList attr) {
+		super(segments, 4, attr);
+	}
+
+	/** returns one value of the vector
+	 @param index index of the value (0-based)
+	 @return value */
+	public int get(long index) {
+		long o = index * 4;
+		return buffers()[(int) (o / segmentBytes)].getInt((int) (o % segmentBytes));
+	}
+
+	/** sets one value of the vector
+	 @param index index of the value (0-based)
+	 @param value value */
+	public void set(long index, int value) {
+		long o = index * 4;
+		buffers()[(int) (o / segmentBytes)].putInt((int) (o % segmentBytes), value);
+	}
+
+	/** copies values from the vector into an array
+	 @param index index of the first value to copy
+	 @param dst destination array
+	 @param off offset in the destination array
+	 @param len number of values */
+	public void get(long index, int[] dst, int off, int len) {
+		while (len > 0) {
+			ByteBuffer b = buffer(index * 4);
+			IntBuffer d = b.asIntBuffer();
+			int n = Math.min(len, d.remaining());
+			d.get(dst, off, n);
+			index += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/** copies values from an array into the vector
+	 @param index index of the first value to set
+	 @param src source array
+	 @param off offset in the source array
+	 @param len number of values */
+	public void put(long index, int[] src, int off, int len) {
+		while (len > 0) {
+			ByteBuffer b = buffer(index * 4);
+			IntBuffer d = b.asIntBuffer();
+			int n = Math.min(len, d.remaining());
+			d.put(src, off, n);
+			index += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/** checks whether a value is NA
+	 @param index index of the value (0-based)
+	 @return <code>true</code> if the value is NA */
+	public boolean isNA(long index) {
+		return get(index) == REXPInteger.NA;
+	}
+
+	/** returns the segments holding the values */
+	public Object asNativeJavaObject() {
+		return getSegments();
+	}
+
+	/** return <code>true</code> */
+	public boolean isInteger() { return true; }
+	/** return <code>true</code> */
+	public boolean isNumeric() { return true; }
+
+	/** returns the first value without copying the vector */
+	public int asInteger() { return get(0); }
+
+	/** returns a copy of the values in a heap array, this is only possible if the vector is not longer than the maximal length of an array */
+	public int[] asIntegers() throws REXPMismatchException {
+		int[] d = new int[arrayLength("int")];
+		get(0, d, 0, d.length);
+		return d;
+	}
+
+	/** returns the contents of this vector as doubles, see {@link #asIntegers()} */
+	public double[] asDoubles() throws REXPMismatchException {
+		double[] d = new double[arrayLength("double")];
+		int i = 0;
+		while (i < d.length) { d[i] = (double) get(i); i++; }
+		return d;
+	}
+
+	/** returns the contents of this vector as strings, see {@link #asIntegers()} */
+	public String[] asStrings() throws REXPMismatchException {
+		String[] s = new String[arrayLength("String")];
+		int i = 0;
+		while (i < s.length) { s[i] = ""+get(i); i++; }
+		return s;
+	}
+
+	/** returns NA flags of all values, this is only possible if the vector is not longer than the maximal length of an array (use {@link #isNA(long)} otherwise) */
+	public boolean[] isNA() {
+		if (length > Integer.MAX_VALUE - 8)
+			throw new UnsupportedOperationException("the vector is too long for one array, use isNA(long)");
+		boolean a[] = new boolean[(int) length];
+		int i = 0;
+		while (i < a.length) { a[i] = isNA(i); i++; }
+		return a;
+	}
+
+	String elementString(long index) { return ""+get(index); }
+}
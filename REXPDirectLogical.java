@@ -0,0 +1,114 @@
+package org.rosuda.REngine;
+
+/** REXPDirectLogical represents a vector of logical values stored off-heap (see {@link REXPDirectVector}). Each value is one byte with the same encoding as {@link REXPLogical}: {@link REXPLogical#TRUE}, {@link REXPLogical#FALSE} or {@link REXPLogical#NA}. */
+public class REXPDirectLogical extends REXPDirectVector {
+	/** create a logical vector with all values <code>FALSE</code>
+	 @param arena arena to allocate the memory in or <code>null</code> for unmanaged memory
+	 @param length number of elements
+	 @param attr attributes or <code>null</code> */
+	public REXPDirectLogical(RDirectArena arena, long length, REXPList attr) {
+		super(arena, length, 1, attr);
+	}
+
+	/** create a logical vector with all values <code>FALSE</code>
+	 @param arena arena to allocate the memory in or <code>null</code> for unmanaged memory
+	 @param length number of elements */
+	public REXPDirectLogical(RDirectArena arena, long length) {
+		this(arena, length, null);
+	}
+
+	/** returns one value of the vector
+	 @param index index of the value (0-based)
+	 @return value ({@link REXPLogical#TRUE}, {@link REXPLogical#FALSE} or {@link REXPLogical#NA}) */
+	public byte get(long index) {
+		return buffers()[(int) (index / segmentBytes)].get((int) (index % segmentBytes));
+	}
+
+	/** sets one value of the vector
+	 @param index index of the value (0-based)
+	 @param value value ({@link REXPLogical#TRUE}, {@link REXPLogical#FALSE} or {@link REXPLogical#NA}) */
+	public void set(long index, byte value) {
+		buffers()[(int) (index / segmentBytes)].put((int) (index % segmentBytes), value);
+	}
+
+	/** copies values from the vector into an array, see {@link #getBytes} */
+	public void get(long index, byte[] dst, int off, int len) {
+		getBytes(index, dst, off, len);
+	}
+
+	/** copies values from an array into the vector, see {@link #putBytes} */
+	public void put(long index, byte[] src, int off, int len) {
+		putBytes(index, src, off, len);
+	}
+
+	/** checks whether a value is NA
+	 @param index index of the value (0-based)
+	 @return <code>true</code> if the value is NA */
+	public boolean isNA(long index) {
+		return get(index) == REXPLogical.NA;
+	}
+
+	/** checks whether a value is <code>TRUE</code>
+	 @param index index of the value (0-based)
+	 @return <code>true</code> if the value is <code>TRUE</code> (<code>false</code> for <code>FALSE</code> and <code>NA</code>) */
+	public boolean isTRUE(long index) {
+		byte v = get(index);
+		return v != REXPLogical.NA && v != REXPLogical.FALSE;
+	}
+
+	public boolean isLogical() { return true; }
+
+	/** returns the segments holding the values */
+	public Object asNativeJavaObject() {
+		return getSegments();
+	}
+
+	/** returns a copy of the values in a heap array, this is only possible if the vector is not longer than the maximal length of an array */
+	public byte[] asBytes() throws REXPMismatchException {
+		byte[] b = new byte[arrayLength("byte")];
+		getBytes(0, b, 0, b.length);
+		return b;
+	}
+
+	/** returns the contents of this vector as integers, see {@link #asBytes()} */
+	public int[] asIntegers() throws REXPMismatchException {
+		byte[] b = asBytes();
+		int p[] = new int[b.length];
+		for (int i = 0; i < b.length; i++) // map bytes to integers including NA representation
+			p[i] = (b[i] == REXPLogical.NA) ? REXPInteger.NA : ((b[i] == REXPLogical.FALSE) ? 0 : 1);
+		return p;
+	}
+
+	/** returns the contents of this vector as doubles, see {@link #asBytes()} */
+	public double[] asDoubles() throws REXPMismatchException {
+		byte[] b = asBytes();
+		double[] d = new double[b.length];
+		for (int i = 0; i < b.length; i++)
+			d[i] = (b[i] == REXPLogical.NA) ? REXPDouble.NA : ((b[i] == REXPLogical.FALSE) ? 0.0 : 1.0);
+		return d;
+	}
+
+	/** returns the contents of this vector as strings, see {@link #asBytes()} */
+	public String[] asStrings() throws REXPMismatchException {
+		byte[] b = asBytes();
+		String[] s = new String[b.length];
+		for (int i = 0; i < b.length; i++)
+			s[i] = (b[i] == REXPLogical.NA) ? "NA" : ((b[i] == REXPLogical.FALSE) ? "FALSE" : "TRUE");
+		return s;
+	}
+
+	/** returns NA flags of all values, this is only possible if the vector is not longer than the maximal length of an array (use {@link #isNA(long)} otherwise) */
+	public boolean[] isNA() {
+		if (length > Integer.MAX_VALUE - 8)
+			throw new UnsupportedOperationException("the vector is too long for one array, use isNA(long)");
+		boolean a[] = new boolean[(int) length];
+		int i = 0;
+		while (i < a.length) { a[i] = isNA(i); i++; }
+		return a;
+	}
+
+	String elementString(long index) {
+		byte v = get(index);
+		return (v == REXPLogical.NA) ? "NA" : ((v == REXPLogical.FALSE) ? "FALSE" : "TRUE");
+	}
+}
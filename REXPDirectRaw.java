@@ -0,0 +1,58 @@
+package org.rosuda.REngine;
+
+import java.nio.ByteBuffer;
+
+/** REXPDirectRaw represents a raw vector stored off-heap (see {@link REXPDirectVector}). Use {@link #getBytes} and {@link #putBytes} for bulk access. */
+public class REXPDirectRaw extends REXPDirectVector {
+	/** create a zero-filled raw vector
+	 @param arena arena to allocate the memory in or <code>null</code> for unmanaged memory
+	 @param length number of bytes
+	 @param attr attributes or <code>null</code> */
+	public REXPDirectRaw(RDirectArena arena, long length, REXPList attr) {
+		super(arena, length, 1, attr);
+	}
+
+	/** create a zero-filled raw vector
+	 @param arena arena to allocate the memory in or <code>null</code> for unmanaged memory
+	 @param length number of bytes */
+	public REXPDirectRaw(RDirectArena arena, long length) {
+		this(arena, length, null);
+	}
+
+	/** create a raw vector backed by existing segments (e.g. regions of a memory-mapped file), see {@link REXPDirectVector#REXPDirectVector(ByteBuffer[],int,REXPList)}
+	 @param segments segments holding the values
+	 @param attr attributes or <code>null</code> */
+	public REXPDirectRaw(ByteBuffer[] segments, REXPList attr) {
+		super(segments, 1, attr);
+	}
+
+	/** returns one byte of the vector
+	 @param index index of the byte (0-based)
+	 @return value */
+	public byte get(long index) {
+		return buffers()[(int) (index / segmentBytes)].get((int) (index % segmentBytes));
+	}
+
+	/** sets one byte of the vector
+	 @param index index of the byte (0-based)
+	 @param value value */
+	public void set(long index, byte value) {
+		buffers()[(int) (index / segmentBytes)].put((int) (index % segmentBytes), value);
+	}
+
+	public boolean isRaw() { return true; }
+
+	/** returns a copy of the content in a heap array, this is only possible if the vector is not longer than the maximal length of an array */
+	public byte[] asBytes() throws REXPMismatchException {
+		byte[] b = new byte[arrayLength("byte")];
+		getBytes(0, b, 0, b.length);
+		return b;
+	}
+
+	/** returns the segments holding the content */
+	public Object asNativeJavaObject() {
+		return getSegments();
+	}
+
+	String elementString(long index) { return ""+get(index); }
+}
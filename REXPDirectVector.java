@@ -0,0 +1,171 @@
+package org.rosuda.REngine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** abstract class representing vectors whose elements are stored outside of the Java heap in direct memory segments, either allocated by {@link RDirectArena} or mapped from a file. The memory is released by {@link #close()} (or by closing the arena) and the vector cannot be used afterwards.
+ <p>
+ Direct vectors can be longer than <code>Integer.MAX_VALUE</code> elements, so {@link #longLength()} and the indexed accessors of the subclasses take <code>long</code> indices. Methods returning Java arrays (such as {@link REXP#asDoubles()}) copy the content onto the heap and are only supported if the vector fits into one array. */
+public abstract class REXPDirectVector extends REXPVector {
+	/** segments holding the elements (little-endian), <code>null</code> once closed */
+	ByteBuffer[] segments;
+	/** size of all segments except for the last one (in bytes) */
+	int segmentBytes;
+	/** number of elements */
+	long length;
+	/** size of one element in bytes */
+	int elementSize;
+	/** arena or <code>null</code> if the memory is not managed by an arena */
+	RDirectArena arena;
+
+	/** allocates zero-filled storage for a direct vector
+	 @param arena arena to allocate the memory in or <code>null</code> to allocate one that is only released by {@link #close()} or the garbage collector
+	 @param length number of elements
+	 @param elementSize size of one element in bytes
+	 @param attr attributes or <code>null</code> */
+	protected REXPDirectVector(RDirectArena arena, long length, int elementSize, REXPList attr) {
+		super(attr);
+		if (length < 0)
+			throw new IllegalArgumentException("negative vector length");
+		this.arena = arena;
+		this.length = length;
+		this.elementSize = elementSize;
+		if (arena != null) {
+			segments = arena.allocate(this, length * elementSize, elementSize);
+			segmentBytes = arena.getSegmentSize() - arena.getSegmentSize() % elementSize;
+		} else {
+			segmentBytes = RDirectArena.DEFAULT_SEGMENT_SIZE;
+			long size = length * elementSize;
+			segments = new ByteBuffer[(int) ((size + segmentBytes - 1) / segmentBytes)];
+			for (int i = 0; i < segments.length; i++)
+				segments[i] = RDirectArena.allocateBuffer((int) Math.min(segmentBytes, size - (long) i * segmentBytes));
+		}
+	}
+
+	/** creates a direct vector from existing segments, e.g. regions of a memory-mapped file. The vector takes ownership of the segments: {@link #close()} releases them (see {@link RDirectArena#free}). The byte order of the segments is set to little-endian.
+	 @param segments segments holding the elements, all but the last one must have the same capacity which must be a multiple of the element size
+	 @param elementSize size of one element in bytes
+	 @param attr attributes or <code>null</code> */
+	protected REXPDirectVector(ByteBuffer[] segments, int elementSize, REXPList attr) {
+		super(attr);
+		this.segments = segments;
+		this.elementSize = elementSize;
+		segmentBytes = (segments.length == 0) ? RDirectArena.DEFAULT_SEGMENT_SIZE : segments[0].capacity();
+		long size = 0;
+		for (int i = 0; i < segments.length; i++) {
+			int c = segments[i].capacity();
+			if ((i < segments.length - 1 && c != segmentBytes) || c > segmentBytes || c % elementSize != 0)
+				throw new IllegalArgumentException("invalid segment size");
+			segments[i].order(ByteOrder.LITTLE_ENDIAN);
+			size += c;
+		}
+		length = size / elementSize;
+	}
+
+	/** returns the length if it fits into an <code>int</code> and <code>Integer.MAX_VALUE</code> otherwise, use {@link #longLength()} instead */
+	public int length() { return (length > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) length; }
+
+	public long longLength() { return length; }
+
+	/** returns the size of one element
+	 @return size in bytes */
+	public int getElementSize() { return elementSize; }
+
+	/** returns the arena of this vector
+	 @return arena or <code>null</code> if the vector is not managed by an arena */
+	public RDirectArena getArena() { return arena; }
+
+	/** returns the segments holding the elements (not copies). All segments are little-endian and all segments except for the last one have the same size. Note that absolute get/put methods of the buffers are safe to use from several threads, but anything that modifies the position is not, so use duplicates for relative access.
+	 @return segments */
+	public ByteBuffer[] getSegments() { return buffers(); }
+
+	/** releases the memory of this vector. Has no effect if the vector is already closed. */
+	public void close() {
+		ByteBuffer[] s;
+		synchronized (this) {
+			s = segments;
+			if (s == null) return;
+			segments = null;
+		}
+		if (arena != null)
+			arena.release(this, s, length * elementSize);
+		else
+			for (int i = 0; i < s.length; i++)
+				RDirectArena.free(s[i]);
+	}
+
+	/** checks whether the vector has been closed
+	 @return <code>true</code> if the memory of this vector has been released */
+	public boolean isClosed() { return segments == null; }
+
+	/** returns the segments or fails if the vector has been closed */
+	final ByteBuffer[] buffers() {
+		ByteBuffer[] s = segments;
+		if (s == null)
+			throw new IllegalStateException("the vector has been closed");
+		return s;
+	}
+
+	/** returns a duplicate of a segment positioned at the given byte offset of the vector */
+	final ByteBuffer buffer(long offset) {
+		ByteBuffer b = buffers()[(int) (offset / segmentBytes)].duplicate();
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		b.position((int) (offset % segmentBytes));
+		return b;
+	}
+
+	/** checks that a copy fits into one Java array */
+	final int arrayLength(String what) throws REXPMismatchException {
+		if (length > Integer.MAX_VALUE - 8)
+			throw new REXPMismatchException(this, what+" (the vector is too long for one array)");
+		return (int) length;
+	}
+
+	/** copies raw content (in little-endian element encoding) from the vector
+	 @param offset offset in the vector in bytes
+	 @param dst destination array
+	 @param off offset in the destination
+	 @param len number of bytes to copy */
+	public void getBytes(long offset, byte[] dst, int off, int len) {
+		while (len > 0) {
+			ByteBuffer b = buffer(offset);
+			int n = Math.min(len, b.remaining());
+			b.get(dst, off, n);
+			offset += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/** copies raw content (in little-endian element encoding) into the vector
+	 @param offset offset in the vector in bytes
+	 @param src source array
+	 @param off offset in the source
+	 @param len number of bytes to copy */
+	public void putBytes(long offset, byte[] src, int off, int len) {
+		while (len > 0) {
+			ByteBuffer b = buffer(offset);
+			int n = Math.min(len, b.remaining());
+			b.put(src, off, n);
+			offset += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	public String toDebugString() {
+		if (isClosed()) return super.toDebugString()+"<closed>";
+		StringBuffer sb = new StringBuffer(super.toDebugString()+"{");
+		long i = 0;
+		while (i < length && i < maxDebugItems) {
+			if (i>0) sb.append(",");
+			sb.append(elementString(i));
+			i++;
+		}
+		if (i < length) sb.append(",..");
+		return sb.toString()+"}";
+	}
+
+	/** returns a string representation of an element (used by {@link #toDebugString()}) */
+	abstract String elementString(long index);
+}
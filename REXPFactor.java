@@ -64,6 +64,19 @@ public class REXPFactor extends REXPInteger {
 		return factor.asStrings();
 	}
 
+	/** return the (one-based) index of a given level name, see {@link RFactor#levelIndex(String)}
+	 *  @param name level name
+	 *  @return index of the level or -1 if it doesn't exist */
+	public int levelIndex(String name) {
+		return factor.levelIndex(name);
+	}
+
+	/** return the number of occurrences of each level, see {@link RFactor#counts()}
+	 *  @return level counts */
+	public int[] counts() {
+		return factor.counts();
+	}
+
 	public Object asNativeJavaObject() {
 		return asStrings();
 	}
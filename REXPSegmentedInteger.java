@@ -0,0 +1,122 @@
+package org.rosuda.REngine;
+
+/** REXPSegmentedInteger represents a vector of integer values stored in several arrays (segments). This allows vectors longer than the maximal length of a Java array (R long vectors). All segments except for the last one have the same length.
+ <p>
+ Since such vectors can be longer than <code>Integer.MAX_VALUE</code>, use {@link #longLength()} and {@link #get(long)} or the segments themselves to access the values. Methods returning a single array (such as {@link #asIntegers()}) are only supported if the vector fits into one array, in which case they return a copy. */
+public class REXPSegmentedInteger extends REXPVector {
+	private int[][] segments;
+	private int segmentLength;
+	private long length;
+
+	/** create a segmented integer vector
+	 @param segments segments, all but the last one must have the same length
+	 @param attr attributes or <code>null</code> */
+	public REXPSegmentedInteger(int[][] segments, REXPList attr) {
+		super(attr);
+		this.segments = (segments == null) ? new int[0][] : segments;
+		segmentLength = (this.segments.length == 0) ? 0 : this.segments[0].length;
+		int i = 0;
+		while (i < this.segments.length) {
+			if (i < this.segments.length - 1 && this.segments[i].length != segmentLength)
+				throw new IllegalArgumentException("all segments except for the last one must have the same length");
+			length += this.segments[i].length;
+			i++;
+		}
+		if (this.segments.length > 1 && this.segments[this.segments.length - 1].length > segmentLength)
+			throw new IllegalArgumentException("the last segment cannot be longer than the other segments");
+	}
+
+	/** create a segmented integer vector
+	 @param segments segments, all but the last one must have the same length */
+	public REXPSegmentedInteger(int[][] segments) {
+		this(segments, null);
+	}
+
+	/** returns the length if it fits into an <code>int</code> and <code>Integer.MAX_VALUE</code> otherwise, use {@link #longLength()} instead */
+	public int length() { return (length > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) length; }
+
+	public long longLength() { return length; }
+
+	/** returns the segments holding the values (not a copy)
+	 @return segments */
+	public int[][] getSegments() { return segments; }
+
+	/** returns the length of all segments except for the last one
+	 @return length of a segment */
+	public int getSegmentLength() { return segmentLength; }
+
+	/** returns one value of the vector
+	 @param index index of the value (0-based)
+	 @return value */
+	public int get(long index) {
+		return segments[(int) (index / segmentLength)][(int) (index % segmentLength)];
+	}
+
+	/** checks whether a value is NA
+	 @param index index of the value (0-based)
+	 @return <code>true</code> if the value is NA */
+	public boolean isNA(long index) {
+		return get(index) == REXPInteger.NA;
+	}
+
+	public Object asNativeJavaObject() {
+		return segments;
+	}
+
+	public boolean isInteger() { return true; }
+	public boolean isNumeric() { return true; }
+
+	/** returns the values in one array (a copy), this is only possible if the vector is not longer than the maximal length of an array */
+	public int[] asIntegers() throws REXPMismatchException {
+		if (length > Integer.MAX_VALUE - 8)
+			throw new REXPMismatchException(this, "int (the vector is too long for one array)");
+		int[] d = new int[(int) length];
+		int i = 0, o = 0;
+		while (i < segments.length) {
+			System.arraycopy(segments[i], 0, d, o, segments[i].length);
+			o += segments[i].length;
+			i++;
+		}
+		return d;
+	}
+
+	/** returns the contents of this vector as doubles, see {@link #asIntegers()} */
+	public double[] asDoubles() throws REXPMismatchException {
+		int[] a = asIntegers();
+		double[] d = new double[a.length];
+		int i = 0;
+		while (i < a.length) { d[i] = (double) a[i]; i++; }
+		return d;
+	}
+
+	/** returns the contents of this vector as strings, see {@link #asIntegers()} */
+	public String[] asStrings() throws REXPMismatchException {
+		int[] a = asIntegers();
+		String[] s = new String[a.length];
+		int i = 0;
+		while (i < a.length) { s[i] = ""+a[i]; i++; }
+		return s;
+	}
+
+	/** returns NA flags of all values, this is only possible if the vector is not longer than the maximal length of an array (use {@link #isNA(long)} otherwise) */
+	public boolean[] isNA() {
+		if (length > Integer.MAX_VALUE - 8)
+			throw new UnsupportedOperationException("the vector is too long for one array, use isNA(long)");
+		boolean a[] = new boolean[(int) length];
+		int i = 0;
+		while (i < a.length) { a[i] = isNA(i); i++; }
+		return a;
+	}
+
+	public String toDebugString() {
+		StringBuffer sb = new StringBuffer(super.toDebugString()+"{");
+		long i = 0;
+		while (i < length && i < maxDebugItems) {
+			if (i>0) sb.append(",");
+			sb.append(get(i));
+			i++;
+		}
+		if (i < length) sb.append(",..");
+		return sb.toString()+"}";
+	}
+}
@@ -12,6 +12,10 @@ public abstract class REXPVector extends REXP {
 	 *  @return length of the vector */
 	public abstract int length();
 
+	/** returns the length of the vector as <code>long</code>. This is only different from {@link #length()} for long vectors with more than <code>Integer.MAX_VALUE</code> elements (see {@link REXPSegmentedDouble}, {@link REXPSegmentedInteger} and {@link REXPDirectVector}).
+	 *  @return length of the vector */
+	public long longLength() { return length(); }
+
 	public boolean isVector() { return true; }
 
 	/** returns a boolean vector of the same length as this vector with <code>true</code> for NA values and <code>false</code> for any other values
@@ -22,10 +26,10 @@ public abstract class REXPVector extends REXP {
 	}
 	
 	public String toString() {
-		return super.toString()+"["+length()+"]";
+		return super.toString()+"["+longLength()+"]";
 	}
 	
 	public String toDebugString() {
-		return super.toDebugString()+"["+length()+"]";
+		return super.toDebugString()+"["+longLength()+"]";
 	}
 }
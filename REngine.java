@@ -1,6 +1,8 @@
 package org.rosuda.REngine;
 
 import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /** REngine is an abstract base class for all implementations of R engines. Subclasses can implement interfaces to R in many different ways.
  Clients should always use methods this class instead of its direct subclasses in order to maintian compatibility with any R engine implementation.
@@ -8,6 +10,11 @@ import java.lang.reflect.Method;
 public abstract class REngine {
     /** last created engine or <code>null</code> if there is none */
     protected static REngine lastEngine = null;
+
+	/** parsed expressions (references) by source text in least-recently-used order, <code>null</code> if the cache is disabled, see {@link #setParseCacheSize} */
+	LinkedHashMap parseCache;
+	/** maximal number of entries in {@link #parseCache} */
+	int parseCacheSize;
 	
     /** this is the designated constructor for REngine classes. It uses reflection to call createEngine method on the given REngine class.
 	@param klass fully qualified class-name of a REngine implementation
@@ -98,10 +105,81 @@ public abstract class REngine {
 	 @param resolve whether to resolve the resulting reference or not (see {@link #eval})
 	 @return result */
 	public REXP parseAndEval(String text, REXP where, boolean resolve) throws REngineException, REXPMismatchException {
-		REXP p = parse(text, false);
+		REXP p = parseCached(text);
 		return eval(p, where, resolve);
 	}
 
+	/** Sets the size of the cache of parsed expressions used by {@link #parseAndEval}. If enabled, the result of <code>parse(text, false)</code> is kept for the last <code>size</code> distinct texts, so expressions that are evaluated repeatedly are only parsed once. This is only possible for engines that support references since the parsed expressions are kept by the engine (an entry that is dropped from the cache is released once its reference is collected).
+	 @param size maximal number of cached expressions or 0 to disable the cache (default) */
+	public void setParseCacheSize(int size) {
+		if (size > 0 && !supportsReferences())
+			throw new IllegalArgumentException("the parse cache requires an engine that supports references");
+		synchronized (this) {
+			parseCacheSize = size;
+			if (size <= 0)
+				parseCache = null;
+			else if (parseCache == null)
+				parseCache = new LinkedHashMap(16, 0.75f, true) {
+						protected boolean removeEldestEntry(Map.Entry eldest) {
+							return size() > parseCacheSize;
+						}
+					};
+			else
+				while (parseCache.size() > size)
+					parseCache.remove(parseCache.keySet().iterator().next());
+		}
+	}
+
+	/** returns the size of the parse cache, see {@link #setParseCacheSize}
+	 @return maximal number of cached expressions, 0 if the cache is disabled */
+	public synchronized int getParseCacheSize() { return parseCacheSize; }
+
+	/** parses a text into a reference using the parse cache (see {@link #setParseCacheSize}), without the cache this is equivalent to <code>parse(text, false)</code>.
+	 @param text text to parse
+	 @return parsed expression */
+	protected REXP parseCached(String text) throws REngineException, REXPMismatchException {
+		synchronized (this) {
+			if (parseCache != null) {
+				REXP p = (REXP) parseCache.get(text);
+				if (p != null) return p;
+			}
+		}
+		REXP p = parse(text, false);
+		synchronized (this) {
+			if (parseCache != null && p != null)
+				parseCache.put(text, p);
+		}
+		return p;
+	}
+
+	/** Prepares an expression for repeated evaluation with different arguments. The expression is parsed once and kept by the engine as the body of a function with the given arguments (defined in the global environment), which can then be called with {@link #evalPrepared}. This requires an engine that supports references.
+	 @param text expression, it can refer to the arguments by their names
+	 @param argNames names of the arguments (must be valid R argument names)
+	 @return reference to the prepared expression */
+	public REXP prepare(String text, String[] argNames) throws REngineException, REXPMismatchException {
+		if (!supportsReferences())
+			throw new REngineException(this, "prepared expressions require an engine that supports references");
+		StringBuffer sb = new StringBuffer("function(");
+		for (int i = 0; i < argNames.length; i++) {
+			if (i > 0) sb.append(", ");
+			sb.append(argNames[i]);
+		}
+		sb.append(") {\n").append(text).append("\n}");
+		return parseAndEval(sb.toString(), null, false);
+	}
+
+	/** Evaluates a prepared expression (see {@link #prepare}) with the given arguments. Only the arguments are transferred to the engine. The arguments are evaluated like those of any call, so they should be values or references (symbols and language objects among them are evaluated).
+	 @param prepared prepared expression
+	 @param args arguments in the order of the argument names passed to {@link #prepare} (fewer arguments are allowed if the expression doesn't use the remaining ones)
+	 @param resolve whether to resolve the resulting reference or not (see {@link #eval})
+	 @return result */
+	public REXP evalPrepared(REXP prepared, REXP[] args, boolean resolve) throws REngineException, REXPMismatchException {
+		REXP[] c = new REXP[args.length + 1];
+		c[0] = prepared;
+		System.arraycopy(args, 0, c, 1, args.length);
+		return eval(new REXPLanguage(new RList(c)), null, resolve);
+	}
+
     /** convenince method equivalent to <code>eval(parse(cmd, false), null, true);</code>
 	 @param cmd expression to parse (see {@link #parse})
 	 @return result */
@@ -0,0 +1,163 @@
+// REngine - generic Java/R API
+//
+// Copyright (C) 2006 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+//
+//  $Id$
+//
+
+package org.rosuda.REngine;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/** <code>REngineEvent</code> describes a type of JDK Flight Recorder (JFR) event emitted by the engines, so that time spent in R calls, encoding and decoding can be attributed in recordings.
+    <p>
+    Events are only emitted if the system property <code>org.rosuda.REngine.jfr</code> is set to <code>true</code> and the JVM provides JFR (Java 9 or higher). The event types are created at run-time through <code>jdk.jfr.EventFactory</code> and all JFR classes are accessed by reflection when the first event is emitted, so this class works on any Java version. When disabled, {@link #begin} only checks a constant and returns <code>null</code>.
+    <p>
+    Typical use:
+    <pre>
+    static final REngineEvent EVAL = REngineEvent.define("org.rosuda.REngine.Eval", "Eval", new String[] { "size" }, new Class[] { long.class });
+    ...
+    Object ev = EVAL.begin();
+    ... // timed operation
+    if (ev != null) EVAL.commit(ev, size);
+    </pre>
+    All events are in the JFR category "REngine", their duration is the time between {@link #begin} and <code>commit</code>. */
+public class REngineEvent {
+	/** name of the system property enabling the events */
+	public static final String PROPERTY = "org.rosuda.REngine.jfr";
+
+	/** <code>true</code> if events were requested by the {@link #PROPERTY} system property */
+	public static final boolean enabled = propertySet();
+
+	/* reflective access to jdk.jfr, resolved on first use: 0 = not yet, 1 = available, -1 = not available */
+	static int jfrState = 0;
+	static Constructor ctorAnnotation, ctorValue;
+	static Method mCreate, mNewEvent, mBegin, mEnd, mShouldCommit, mCommit, mSet;
+	static Class cName, cLabel, cCategory;
+
+	final String name, label;
+	final String[] fields;
+	final Class[] types;
+	/** jdk.jfr.EventFactory of this type, <code>null</code> if not created yet */
+	Object factory;
+	/** set if the event type cannot be created */
+	boolean failed;
+
+	static boolean propertySet() {
+		try {
+			return "true".equalsIgnoreCase(System.getProperty(PROPERTY));
+		} catch (SecurityException e) {
+			return false;
+		}
+	}
+
+	REngineEvent(String name, String label, String[] fields, Class[] types) {
+		this.name = name;
+		this.label = label;
+		this.fields = fields;
+		this.types = types;
+	}
+
+	/** defines an event type. This is cheap, the type is only registered with JFR when the first event is emitted.
+	    @param name unique name of the event type (e.g. <code>"org.rosuda.REngine.Rserve.Request"</code>)
+	    @param label human-readable label
+	    @param fields names of the fields
+	    @param types types of the fields (primitive types or <code>String</code>)
+	    @return event type */
+	public static REngineEvent define(String name, String label, String[] fields, Class[] types) {
+		return new REngineEvent(name, label, fields, types);
+	}
+
+	static synchronized boolean jfrAvailable() {
+		if (jfrState == 0) {
+			try {
+				Class cAnnotation = Class.forName("jdk.jfr.AnnotationElement");
+				Class cValue = Class.forName("jdk.jfr.ValueDescriptor");
+				Class cFactory = Class.forName("jdk.jfr.EventFactory");
+				Class cEvent = Class.forName("jdk.jfr.Event");
+				cName = Class.forName("jdk.jfr.Name");
+				cLabel = Class.forName("jdk.jfr.Label");
+				cCategory = Class.forName("jdk.jfr.Category");
+				ctorAnnotation = cAnnotation.getConstructor(new Class[] { Class.class, Object.class });
+				ctorValue = cValue.getConstructor(new Class[] { Class.class, String.class });
+				mCreate = cFactory.getMethod("create", new Class[] { List.class, List.class });
+				mNewEvent = cFactory.getMethod("newEvent", new Class[0]);
+				mBegin = cEvent.getMethod("begin", new Class[0]);
+				mEnd = cEvent.getMethod("end", new Class[0]);
+				mShouldCommit = cEvent.getMethod("shouldCommit", new Class[0]);
+				mCommit = cEvent.getMethod("commit", new Class[0]);
+				mSet = cEvent.getMethod("set", new Class[] { int.class, Object.class });
+				jfrState = 1;
+			} catch (Throwable e) {
+				System.err.println("REngineEvent: JDK Flight Recorder is not available, events are disabled ("+e+")");
+				jfrState = -1;
+			}
+		}
+		return jfrState == 1;
+	}
+
+	synchronized Object factory() throws Exception {
+		if (factory == null) {
+			List ann = new ArrayList();
+			ann.add(ctorAnnotation.newInstance(new Object[] { cName, name }));
+			ann.add(ctorAnnotation.newInstance(new Object[] { cLabel, label }));
+			ann.add(ctorAnnotation.newInstance(new Object[] { cCategory, new String[] { "REngine" } }));
+			List val = new ArrayList();
+			for (int i = 0; i < fields.length; i++)
+				val.add(ctorValue.newInstance(new Object[] { types[i], fields[i] }));
+			factory = mCreate.invoke(null, new Object[] { ann, val });
+		}
+		return factory;
+	}
+
+	/** starts timing an event
+	    @return event to pass to <code>commit</code> or <code>null</code> if events are disabled */
+	public Object begin() {
+		if (!enabled || failed || !jfrAvailable()) return null;
+		try {
+			Object ev = mNewEvent.invoke(factory(), (Object[]) null);
+			mBegin.invoke(ev, (Object[]) null);
+			return ev;
+		} catch (Throwable e) {
+			System.err.println("REngineEvent: cannot create event "+name+" ("+e+")");
+			failed = true;
+			return null;
+		}
+	}
+
+	/** ends an event, sets its fields and records it (unless it is below the threshold of the recording)
+	    @param ev event returned by {@link #begin} (<code>null</code> is ignored)
+	    @param values values of the fields (boxed) */
+	public void commit(Object ev, Object[] values) {
+		if (ev == null) return;
+		try {
+			mEnd.invoke(ev, (Object[]) null);
+			if (!((Boolean) mShouldCommit.invoke(ev, (Object[]) null)).booleanValue()) return;
+			for (int i = 0; i < values.length; i++)
+				mSet.invoke(ev, new Object[] { Integer.valueOf(i), values[i] });
+			mCommit.invoke(ev, (Object[]) null);
+		} catch (Throwable e) {
+			System.err.println("REngineEvent: cannot commit event "+name+" ("+e+")");
+			failed = true;
+		}
+	}
+
+	/** ends an event without fields, see {@link #commit(Object,Object[])} */
+	public void commit(Object ev) {
+		commit(ev, new Object[0]);
+	}
+
+	/** ends an event with two <code>long</code> fields, see {@link #commit(Object,Object[])} */
+	public void commit(Object ev, long a, long b) {
+		if (ev != null) commit(ev, new Object[] { Long.valueOf(a), Long.valueOf(b) });
+	}
+
+	/** ends an event with a <code>String</code> and two <code>long</code> fields, see {@link #commit(Object,Object[])} */
+	public void commit(Object ev, String s, long a, long b) {
+		if (ev != null) commit(ev, new Object[] { s, Long.valueOf(a), Long.valueOf(b) });
+	}
+}
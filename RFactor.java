@@ -10,6 +10,8 @@ import java.util.*;
     type called "factor", instead it is coded as an int vector with a list
     attribute. The parser code of REXP converts such constructs directly into
     the RFactor objects and defines an own XT_FACTOR type 
+    <p>
+    Level counts and the level name to index map are computed on first use and cached, so the arrays returned by {@link #asIntegers()} and {@link #levels()} must not be modified.
     
     @version $Id$
 */    
@@ -18,6 +20,14 @@ public class RFactor {
     String levels[];
 	int index_base;
 
+	/** minimal number of cases per thread for the parallel factorization */
+	public static final int PARALLEL_CHUNK = 65536;
+
+	/** cached level counts (see {@link #counts()}). The caches are volatile so that they can be published safely to other threads. */
+	volatile int[] counts;
+	/** cached map of level names to 0-based positions in <code>levels</code> (see {@link #levelIndex(String)}) */
+	volatile HashMap levelMap;
+
     /** create a new, empty factor var */
     public RFactor() { ids=new int[0]; levels=new String[0]; }
     
@@ -43,26 +53,198 @@ public class RFactor {
 		@param c contents
 		@param index_base base of the level index */
 	public RFactor(String c[], int index_base) {
+		this(c, index_base, 1);
+	}
+
+	/** create a new factor variable by factorizing a given string array, possibly using several threads. The levels will be created in the orer of appearance. If more than one thread is requested and there are at least {@link #PARALLEL_CHUNK} cases per thread, each thread factorizes one chunk of the contents with its own dictionary and the dictionaries are then merged in the order of the chunks (which preserves the order of appearance).
+		@param c contents
+		@param index_base base of the level index
+		@param threads maximal number of threads to use, it is also limited by the number of available processors (1 or less means factorize in the calling thread) */
+	public RFactor(String c[], int index_base, int threads) {
 		this.index_base = index_base;
 		if (c == null) c = new String[0];
-		Vector lv = new Vector();
 		ids = new int[c.length];
+		if (threads > c.length / PARALLEL_CHUNK) threads = c.length / PARALLEL_CHUNK;
+		if (threads > Runtime.getRuntime().availableProcessors()) threads = Runtime.getRuntime().availableProcessors();
+		if (threads <= 1) {
+			Levelizer l = new Levelizer(c, ids, 0, c.length);
+			l.run();
+			levels = l.levels(index_base);
+			levelMap = l.map;
+			return;
+		}
+		/* factorize chunks in parallel with local level indices (0-based) */
+		Levelizer[] chunks = new Levelizer[threads];
+		Worker[] th = new Worker[threads];
 		int i = 0;
-		while (i < c.length) {
-			int ix = (c[i]==null)?-1:lv.indexOf(c[i]);
-			if (ix<0 && c[i]!=null) {
-				ix = lv.size();
-				lv.add(c[i]);
+		while (i < threads) {
+			chunks[i] = new Levelizer(c, ids, (int) ((long) c.length * i / threads), (int) ((long) c.length * (i + 1) / threads));
+			if (i > 0) {
+				th[i] = new Worker(chunks[i]);
+				th[i].start();
+			}
+			i++;
+		}
+		try {
+			chunks[0].run();
+		} finally {
+			join(th);
+		}
+		/* merge the dictionaries and re-map the local indices */
+		HashMap global = chunks[0].map;
+		ArrayList all = chunks[0].lv;
+		final int[][] remap = new int[threads][];
+		i = 1;
+		while (i < threads) {
+			ArrayList lv = chunks[i].lv;
+			int[] r = remap[i] = new int[lv.size()];
+			int j = 0;
+			while (j < r.length) {
+				Object key = lv.get(j);
+				Integer g = (Integer) global.get(key);
+				if (g == null) {
+					g = Integer.valueOf(all.size());
+					global.put(key, g);
+					all.add(key);
+				}
+				r[j++] = g.intValue();
 			}
-			ids[i] = (ix<0)?REXPInteger.NA:(ix+index_base);
 			i++;
 		}
-		levels = new String[lv.size()];
 		i = 0;
-		while (i < levels.length) {
-			levels[i] = (String) lv.elementAt(i);
+		while (i < threads) {
+			chunks[i].remap = (i == 0) ? null : remap[i];
+			chunks[i].base = index_base;
+			if (i > 0) {
+				th[i] = new Worker(chunks[i].remapper());
+				th[i].start();
+			}
+			i++;
+		}
+		try {
+			chunks[0].remapper().run();
+		} finally {
+			join(th);
+		}
+		levels = new String[all.size()];
+		all.toArray(levels);
+		levelMap = global;
+	}
+
+	/** thread running a task of the parallel constructor, it keeps the failure of the task so that it can be re-thrown by {@link #join} */
+	static class Worker extends Thread {
+		final Runnable task;
+		Throwable failure;
+
+		Worker(Runnable task) {
+			super("RFactor");
+			this.task = task;
+		}
+
+		public void run() {
+			try {
+				task.run();
+			} catch (Throwable e) {
+				failure = e;
+			}
+		}
+	}
+
+	/** waits for all workers to finish (restoring the interrupt status if the calling thread is interrupted meanwhile) and re-throws the first failure of a worker */
+	static void join(Worker[] th) {
+		boolean interrupted = false;
+		Throwable failure = null;
+		int i = 0;
+		while (i < th.length) {
+			if (th[i] != null) {
+				boolean done = false;
+				while (!done) {
+					try {
+						th[i].join();
+						done = true;
+					} catch (InterruptedException e) {
+						// we must not return before all threads have finished
+						interrupted = true;
+					}
+				}
+				if (failure == null) failure = th[i].failure;
+			}
 			i++;
 		}
+		if (interrupted) Thread.currentThread().interrupt();
+		if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+		if (failure instanceof Error) throw (Error) failure;
+		if (failure != null) throw new RuntimeException("factorization failed: " + failure, failure);
+	}
+
+	/** factorizes a range of the contents into 0-based local level indices */
+	static class Levelizer implements Runnable {
+		final String[] c;
+		final int[] ids;
+		final int from, to;
+		final HashMap map = new HashMap();
+		final ArrayList lv = new ArrayList();
+		int[] remap;
+		int base;
+
+		Levelizer(String[] c, int[] ids, int from, int to) {
+			this.c = c; this.ids = ids; this.from = from; this.to = to;
+		}
+
+		public void run() {
+			int i = from;
+			String last = null;
+			int lastIx = -1;
+			while (i < to) {
+				String s = c[i];
+				int ix;
+				if (s == null)
+					ix = REXPInteger.NA;
+				else if (s == last) // runs of the same instance are common
+					ix = lastIx;
+				else {
+					Integer v = (Integer) map.get(s);
+					if (v == null) {
+						v = Integer.valueOf(lv.size());
+						map.put(s, v);
+						lv.add(s);
+					}
+					ix = v.intValue();
+					last = s;
+					lastIx = ix;
+				}
+				ids[i++] = ix;
+			}
+		}
+
+		/** returns the levels and converts the local indices of a single chunk to the given base */
+		String[] levels(int index_base) {
+			if (index_base != 0) {
+				int i = from;
+				while (i < to) {
+					if (ids[i] != REXPInteger.NA) ids[i] += index_base;
+					i++;
+				}
+			}
+			String[] l = new String[lv.size()];
+			lv.toArray(l);
+			return l;
+		}
+
+		/** returns a task that converts the local indices to global ones with the base <code>base</code> */
+		Runnable remapper() {
+			return new Runnable() {
+				public void run() {
+					int i = from;
+					while (i < to) {
+						int ix = ids[i];
+						if (ix != REXPInteger.NA)
+							ids[i] = ((remap == null) ? ix : remap[ix]) + base;
+						i++;
+					}
+				}
+			};
+		}
 	}
 	
 	/** same as <code>RFactor(c, 1)</code> */
@@ -85,28 +267,22 @@ public class RFactor {
 
 	/** returns <code>true</code> if the data contain the given level index */
 	public boolean contains(int li) {
-		int i = 0;
-		while (i < ids.length) {
-			if (ids[i] == li) return true;
-			i++;
-		}
-		return false;
+		return count(li) > 0;
 	}
 	
 	/** return <code>true</code> if the factor contains the given level (it is NOT the same as levelIndex==-1!) */
 	public boolean contains(String name) {
 		int li = levelIndex(name);
 		if (li<0) return false;
-		int i = 0;
-		while (i < ids.length) {
-			if (ids[i] == li) return true;
-			i++;
-		}
-		return false;
+		return contains(li);
 	}
 	
 	/** count the number of occurences of a given level index */
 	public int count(int levelIndex) {
+		final int li = levelIndex - index_base;
+		if (li>=0 && li<levels.length)
+			return cachedCounts()[li];
+		/* indices outside the levels (such as NAs) are not cached */
 		int i = 0;
 		int ct = 0;
 		while (i < ids.length) {
@@ -123,7 +299,16 @@ public class RFactor {
 	
 	/** return an array with level counts. */
 	public int[] counts() {
-		int[] c = new int[levels.length];
+		int[] c = cachedCounts();
+		int[] r = new int[c.length];
+		System.arraycopy(c, 0, r, 0, c.length);
+		return r;
+	}
+
+	int[] cachedCounts() {
+		int[] c = counts;
+		if (c != null) return c;
+		c = new int[levels.length];
 		int i = 0;
 		while (i < ids.length) {
 			final int li = ids[i] - index_base;
@@ -131,18 +316,22 @@ public class RFactor {
 				c[li]++;
 			i++;
 		}
-		return c;
+		return counts = c;
 	}
 	
 	/** return the index of a given level name or -1 if it doesn't exist */
 	public int levelIndex(String name) {
 		if (name==null) return -1;
-		int i = 0;
-		while (i < levels.length) {
-			if (levels[i]!=null && levels[i].equals(name)) return i + index_base;
-			i++;
+		HashMap m = levelMap;
+		if (m == null) {
+			m = new HashMap(levels.length * 2);
+			int i = levels.length;
+			while (i-- > 0) // backwards so the first occurrence wins
+				if (levels[i] != null) m.put(levels[i], Integer.valueOf(i));
+			levelMap = m;
 		}
-		return -1;
+		Integer li = (Integer) m.get(name);
+		return (li == null) ? -1 : (li.intValue() + index_base);
 	}
 	
 	/** return the list of levels (0-based, use {@link #indexBase} correction if you want to access it by level index) */
@@ -10,12 +10,56 @@ import java.util.*;
     Note: This implementation has changed radically in Rserve 0.5!
 
     This class inofficially implements the Map interface. Unfortunately a conflict in the Java iterface classes Map and List doesn't allow us to implement both officially. Most prominently the Map 'remove' method had to be renamed to removeByKey.
+    <p>
+    Although this class is a <code>Vector</code> for compatibility, element access ({@link #get(int)}, {@link #at(int)}, {@link #add(Object)}, {@link #set(int,Object)}, {@link #size()}) is <b>not</b> synchronized, i.e. lists must not be modified concurrently with other accesses. Lookups by name (including attribute lookups by {@link REXP#getAttribute}) use a hash index which is built on first use for lists with more than {@link #INDEX_THRESHOLD} elements, shorter lists are searched linearly, and kept up to date by {@link #put} (any other modification of the names causes it to be re-built on the next lookup).
+    <p>
+    Elements can be deferred (see {@link Deferred}), e.g. by decoders which only create the elements of large lists when they are used. A deferred element is replaced by its value on first access through {@link #at(int)}, {@link #at(String)}, {@link #get(int)} or any bulk operation (iterators, <code>toArray</code>, searches, ...), so deferred elements are never visible to users of the list. Reading a list with deferred elements from several threads at once is safe (each resolved element is stored under the list's lock, so all readers get the same object), modifications still must not be concurrent with any other access. The only exceptions are the methods added in Java 8 (<code>forEach</code>, <code>stream</code>, <code>removeIf</code>, <code>replaceAll</code>, <code>sort</code>, <code>spliterator</code>) which access the elements directly, call {@link #resolveAll()} before using them on lists that may contain deferred elements.
 
     @version $Id$
 */
 public class RList extends Vector implements List {
+    /** names of the elements (or <code>null</code> if the list is unnamed). Lists created by this class use a <code>Vector</code> that tracks modifications so the name index can be validated cheaply; if this field is replaced by any other <code>Vector</code>, lookups by name fall back to linear search. */
     public Vector names;
 
+    /** lists with at most this many names are searched linearly instead of building a name index */
+    public static final int INDEX_THRESHOLD = 8;
+
+    /** name index: first position of each name. It is valid only if <code>indexed</code> is the current names vector and its version is <code>indexVersion</code> */
+    HashMap index;
+    Names indexed;
+    int indexVersion;
+
+    /** set if the list may contain {@link Deferred} elements. It is volatile so that readers which see it cleared also see the resolved elements. */
+    volatile boolean deferred;
+
+    /** placeholder for an element of a list which is created on first access */
+    public interface Deferred {
+	/** creates the element. This is called once when the element is first accessed, the result replaces the placeholder in the list.
+	    @return element */
+	REXP resolve();
+    }
+
+    /** vector of names that counts all modifications, including replacements of elements which are not considered structural by <code>modCount</code> */
+    static class Names extends Vector {
+	int sets;
+
+	Names() { super(); }
+	Names(int initialCapacity) { super(initialCapacity); }
+	Names(Collection c) { super(c); }
+
+	public synchronized Object set(int index, Object element) {
+	    sets++;
+	    return super.set(index, element);
+	}
+
+	public synchronized void setElementAt(Object obj, int index) {
+	    sets++;
+	    super.setElementAt(obj, index);
+	}
+
+	synchronized int version() { return modCount + sets; }
+    }
+
     /** constructs an empty list */
     public RList() { super(); names=null; }
 
@@ -32,7 +76,7 @@ public class RList extends Vector implements List {
     public RList(int initSize, boolean hasNames) {
 	super(initSize);
 	names=null;
-	if (hasNames) names=new Vector(initSize);
+	if (hasNames) names=new Names(initSize);
     }
     
     /** constructs an initialized, unnamed list
@@ -40,6 +84,9 @@ public class RList extends Vector implements List {
     public RList(Collection contents) {
 	super(contents);
 	names=null;
+	int i = elementCount;
+	while (i-- > 0)
+	    if (elementData[i] instanceof Deferred) { deferred = true; break; }
     }
 
     /** constructs an initialized, named list. The length of the contents vector determines the length of the list.
@@ -48,7 +95,7 @@ public class RList extends Vector implements List {
     public RList(REXP[] contents, String[] names) {
 	this(contents);
 	if (names!=null && names.length>0) {
-	    this.names=new Vector(names.length);
+	    this.names=new Names(names.length);
 	    int i = 0;
 	    while (i < names.length) this.names.add(names[i++]);
 	    while (this.names.size()<size()) this.names.add(null);
@@ -61,7 +108,7 @@ public class RList extends Vector implements List {
     public RList(Collection contents, String[] names) {
 	this(contents);
 	if (names!=null && names.length>0) {
-	    this.names=new Vector(names.length);
+	    this.names=new Names(names.length);
 	    int i = 0;
 	    while (i < names.length) this.names.add(names[i++]);
 	    while (this.names.size()<size()) this.names.add(null);
@@ -74,7 +121,7 @@ public class RList extends Vector implements List {
     public RList(Collection contents, Collection names) {
 	this(contents);
 	if (names!=null && names.size()>0) {
-	    this.names=new Vector(names);
+	    this.names=new Names(names);
 	    while (this.names.size()<size()) this.names.add(null);
 	}
     }
@@ -90,17 +137,78 @@ public class RList extends Vector implements List {
 	@return value which corresponds to the given key or
 	        <code>null</code> if the list is unnamed or key not found */
     public REXP at(String v) {
-	if (names==null) return null;
-	int i = names.indexOf(v);
+	int i = indexOfKey(v);
 	if (i < 0) return null;
-	return (REXP)elementAt(i);
+	return (REXP)element(i);
     }
 
     /** get element at the specified position
 	@param i index
 	@return value at the index or <code>null</code> if the index is out of bounds */
     public REXP at(int i) {
-	return (i>=0 && i<size())?(REXP)elementAt(i):null;
+	return (i>=0 && i<elementCount)?(REXP)element(i):null;
+    }
+
+    /** returns an element, resolving it if it is deferred. Several threads may resolve the same element concurrently, the first result stored in the list is returned to all of them. */
+    final Object element(int i) {
+	if (!deferred) return elementData[i];
+	Object o;
+	synchronized (this) {
+	    o = elementData[i];
+	}
+	if (o instanceof Deferred) {
+	    Object v = ((Deferred) o).resolve();
+	    synchronized (this) {
+		if (elementData[i] == o) elementData[i] = v;
+		o = elementData[i];
+	    }
+	}
+	return o;
+    }
+
+    /** sets a deferred element. It will be replaced by the result of {@link Deferred#resolve()} on first access.
+	@param i index
+	@param d placeholder */
+    public void setDeferred(int i, Deferred d) {
+	if (i >= elementCount) throw new ArrayIndexOutOfBoundsException(i);
+	elementData[i] = d;
+	deferred = true;
+    }
+
+    /** checks whether an element is still deferred (i.e. it has not been accessed yet)
+	@param i index
+	@return <code>true</code> if the element is deferred */
+    public boolean isDeferred(int i) {
+	return i>=0 && i<elementCount && elementData[i] instanceof Deferred;
+    }
+
+    /** resolves all deferred elements of this list */
+    public void resolveAll() {
+	if (!deferred) return;
+	int i = 0;
+	while (i < elementCount) element(i++);
+	deferred = false;
+    }
+
+    /** returns the index of the first element with the given name
+	@param key name
+	@return index or -1 if there is no such element or the list is unnamed */
+    public int indexOfKey(Object key) {
+	Vector n = names;
+	if (n == null) return -1;
+	if (n.size() <= INDEX_THRESHOLD || !(n instanceof Names)) return n.indexOf(key);
+	Names nm = (Names) n;
+	int v = nm.version();
+	if (index == null || indexed != nm || indexVersion != v) {
+	    int i = nm.size();
+	    HashMap h = new HashMap(i * 2);
+	    while (i-- > 0) h.put(nm.get(i), Integer.valueOf(i)); // backwards so the first occurrence wins
+	    index = h;
+	    indexed = nm;
+	    indexVersion = v;
+	}
+	Integer i = (Integer) index.get(key);
+	return (i == null) ? -1 : i.intValue();
     }
 
 	/** return the key (name) at a given index
@@ -116,7 +224,7 @@ public class RList extends Vector implements List {
 	public void setKeyAt(int i, String value) {
 		if (i < 0) return;
 		if (names==null)
-			names = new Vector();
+			names = new Names();
 		if (names.size() < size()) names.setSize(size());
 		if (i < size()) names.set(i, value);
 	}
@@ -131,6 +239,54 @@ public class RList extends Vector implements List {
 	return k;
     }
 
+    // --- unsynchronized access
+
+    public Object get(int index) {
+	if (index >= elementCount) throw new ArrayIndexOutOfBoundsException(index);
+	return element(index);
+    }
+
+    public Object elementAt(int index) {
+	return get(index);
+    }
+
+    public Object set(int index, Object element) {
+	if (index >= elementCount) throw new ArrayIndexOutOfBoundsException(index);
+	Object o = element(index);
+	elementData[index] = element;
+	return o;
+    }
+
+    public int size() {
+	return elementCount;
+    }
+
+    public boolean isEmpty() {
+	return elementCount == 0;
+    }
+
+    // --- bulk access resolves deferred elements
+
+    public Iterator iterator() { resolveAll(); return super.iterator(); }
+    public ListIterator listIterator() { resolveAll(); return super.listIterator(); }
+    public ListIterator listIterator(int index) { resolveAll(); return super.listIterator(index); }
+    public Enumeration elements() { resolveAll(); return super.elements(); }
+    public Object[] toArray() { resolveAll(); return super.toArray(); }
+    public Object[] toArray(Object[] a) { resolveAll(); return super.toArray(a); }
+    public void copyInto(Object[] anArray) { resolveAll(); super.copyInto(anArray); }
+    public int indexOf(Object o, int index) { resolveAll(); return super.indexOf(o, index); }
+    public int lastIndexOf(Object o, int index) { resolveAll(); return super.lastIndexOf(o, index); }
+    public Object firstElement() { resolveAll(); return super.firstElement(); }
+    public Object lastElement() { resolveAll(); return super.lastElement(); }
+    public List subList(int fromIndex, int toIndex) { resolveAll(); return super.subList(fromIndex, toIndex); }
+
+    /** appends an element without affecting the names */
+    void append(Object element) {
+	if (elementCount == elementData.length) ensureCapacity(elementCount + 1);
+	modCount++;
+	elementData[elementCount++] = element;
+    }
+
     // --- overrides that sync names
 
     public void add(int index, Object element) {
@@ -140,7 +296,7 @@ public class RList extends Vector implements List {
     }
 
 	public boolean add(Object element) {
-		super.add(element);
+		append(element);
 		if (names != null)
 			names.add(null);
 		return true;
@@ -172,7 +328,9 @@ public class RList extends Vector implements List {
     }
 
     public Object remove(int index) {
-	Object o = super.remove(index);
+	if (index >= elementCount) throw new ArrayIndexOutOfBoundsException(index);
+	Object o = element(index);
+	super.remove(index);
 	if (names != null) {
 	    names.remove(index);
 	    if (size()==0) names=null;
@@ -189,6 +347,7 @@ public class RList extends Vector implements List {
     }
 
     public boolean removeAll(Collection c) {
+	resolveAll();
 	if (names==null) return super.removeAll(c);
 	boolean changed=false;
 	Iterator it = c.iterator();
@@ -198,6 +357,7 @@ public class RList extends Vector implements List {
     }
 
     public boolean retainAll(Collection c) {
+	resolveAll();
 	if (names==null) return super.retainAll(c);
 	boolean rm[] = new boolean[size()];
 	boolean changed=false;
@@ -223,7 +383,7 @@ public class RList extends Vector implements List {
     // --- Map interface
 
     public boolean containsKey(Object key) {
-	return (names==null)?false:names.contains(key);
+	return indexOfKey(key) >= 0;
     }
 
     public boolean containsValue(Object value) {
@@ -250,17 +410,21 @@ public class RList extends Vector implements List {
 	    add(value);
 	    return null;
 	}
-	if (names != null) {
-	    int p = names.indexOf(key);
-	    if (p >= 0)
-		return super.set(p, value);
-	}
+	int p = indexOfKey(key);
+	if (p >= 0)
+	    return set(p, value);
 	int i = size();
-	super.add(value);
+	append(value);
 	if (names==null)
-	    names = new Vector(i+1);
+	    names = new Names(i+1);
+	/* keep the index valid when appending a new name (it is only used by indexOfKey above if it was valid) */
+	boolean keepIndex = (index != null && indexed == names && names.size() == i && indexVersion == indexed.version());
 	while (names.size() < i) names.add(null);
 	names.add(key);
+	if (keepIndex) {
+	    index.put(key, Integer.valueOf(i));
+	    indexVersion = indexed.version();
+	}
 	return null;
     }
 
@@ -313,13 +477,9 @@ public class RList extends Vector implements List {
     }
     
     public Object removeByKey(Object key) {
-	if (names==null) return null;
-	int i = names.indexOf(key);
+	int i = indexOfKey(key);
 	if (i<0) return null;
-	Object o = elementAt(i);
-	removeElementAt(i);
-	names.removeElementAt(i);
-	return o;
+	return remove(i); // also removes the name
     }
 
     public Collection values() {
@@ -0,0 +1,388 @@
+package org.rosuda.REngine.Rserve;
+
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import org.rosuda.REngine.*;
+import org.rosuda.REngine.Rserve.protocol.*;
+
+/** <b>RAsyncConnection</b> is a non-blocking connection to Rserve based on a {@link SocketChannel}.
+    Requests return immediately with a {@link RFuture} and are written to the server back to back
+    (i.e., they are pipelined), the responses are read and decoded by an {@link RAsyncLoop} which can
+    serve any number of connections, so idle or long-running sessions don't tie up a thread each.
+    <p>
+    Only the connect and the initial handshake are performed synchronously by the constructor.
+    The QAP1 framing is done in direct buffers owned by the connection, results are decoded on
+    the event loop thread. In contrast to {@link RConnection} this class is thread-safe: requests
+    can be submitted from any thread and they are processed by the server in the order of
+    submission. OCAP mode and file transfers are not supported.
+    @version $Id$
+*/
+public class RAsyncConnection {
+    /** size of the direct buffers used for reading and writing */
+    static final int BUFFER_SIZE = 32768;
+
+    /** submitted request */
+    static class Request {
+	int cmd;
+	byte[] par;
+	boolean resolve;
+	RFuture f;
+
+	Request(int cmd, byte[] par, boolean resolve) {
+	    this.cmd = cmd;
+	    this.par = par;
+	    this.resolve = resolve;
+	    f = new RFuture();
+	}
+    }
+
+    SocketChannel ch;
+    SelectionKey key;
+    RAsyncLoop loop;
+
+    int rsrvVersion;
+    boolean authReq = false;
+    boolean cryptAuth = false;
+    String salt = null;
+
+    volatile boolean closed = false;
+
+    /** requests that have not been written yet (guarded by itself) */
+    LinkedList queue = new LinkedList();
+    /** set if the loop has been asked to write (guarded by <code>queue</code>) */
+    boolean writeScheduled = false;
+
+    /* --- the following is only accessed from the loop thread --- */
+    /** requests that have been (at least partially) written and are awaiting a response */
+    LinkedList pending = new LinkedList();
+    ByteBuffer wbuf, rbuf;
+    /** request currently being written into wbuf and the number of parameter bytes written */
+    Request current;
+    int curOff;
+    /** response being read: command, content and the number of content bytes read so far; rct is <code>null</code> while reading the header */
+    int rcmd;
+    byte[] rct;
+    int rpos;
+
+    /** connect to Rserve on the local machine and the default port using the shared event loop */
+    public RAsyncConnection() throws RserveException {
+	this("127.0.0.1", 6311);
+    }
+
+    /** connect to Rserve using the shared event loop
+	@param host host name/IP
+	@param port TCP port */
+    public RAsyncConnection(String host, int port) throws RserveException {
+	this(host, port, null);
+    }
+
+    /** connect to Rserve
+	@param host host name/IP
+	@param port TCP port
+	@param loop event loop to use or <code>null</code> for the shared loop */
+    public RAsyncConnection(String host, int port, RAsyncLoop loop) throws RserveException {
+	try {
+	    this.loop = (loop == null) ? RAsyncLoop.getDefault() : loop;
+	    ch = SocketChannel.open(new InetSocketAddress(host, port));
+	    ch.socket().setTcpNoDelay(true);
+	} catch (IOException e) {
+	    throw new RserveException(null, "Cannot connect: " + e.getMessage(), e);
+	}
+	try {
+	    handshake();
+	    ch.configureBlocking(false);
+	} catch (IOException e) {
+	    try { ch.close(); } catch (IOException ce) {}
+	    throw new RserveException(null, "Handshake failed: " + e.getMessage(), e);
+	} catch (RserveException e) {
+	    try { ch.close(); } catch (IOException ce) {}
+	    throw e;
+	}
+	wbuf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	rbuf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	this.loop.register(this);
+    }
+
+    /** reads and checks the ID string (blocking) */
+    void handshake() throws IOException, RserveException {
+	ByteBuffer b = ByteBuffer.allocate(32);
+	while (b.hasRemaining())
+	    if (ch.read(b) < 0)
+		throw new EOFException("connection closed by the server");
+	String ids = new String(b.array(), "US-ASCII");
+	if (!ids.startsWith("Rsrv"))
+	    throw new RserveException(null, "Handshake failed: Rsrv signature expected, but received \""+ids+"\" instead.");
+	try {
+	    rsrvVersion = Integer.parseInt(ids.substring(4,8));
+	} catch (Exception px) {}
+	if (rsrvVersion > 103)
+	    throw new RserveException(null, "Handshake failed: The server uses more recent protocol than this client.");
+	if (rsrvVersion < 101)
+	    throw new RserveException(null, "Handshake failed: Rserve 0101 or higher is required.");
+	if (!ids.substring(8,12).equals("QAP1"))
+	    throw new RserveException(null, "Handshake failed: unupported transfer protocol ("+ids.substring(8,12)+"), I talk only QAP1.");
+	for (int i = 12; i < 32; i += 4) {
+	    String attr = ids.substring(i, i+4);
+	    if (attr.equals("ARpt"))
+		authReq = true;
+	    if (attr.equals("ARuc"))
+		authReq = cryptAuth = true;
+	    if (attr.charAt(0) == 'K')
+		salt = attr.substring(1,3);
+	}
+    }
+
+    /** returns the version of the server
+	@return server version as reported in the ID string */
+    public int getServerVersion() {
+	return rsrvVersion;
+    }
+
+    /** check whether the server requires authentication, see {@link #login}
+	@return <code>true</code> if login is required */
+    public boolean needLogin() {
+	return authReq;
+    }
+
+    /** check whether the connection is open
+	@return <code>true</code> if the connection was not closed (neither explicitly nor due to an error) */
+    public boolean isConnected() {
+	return !closed;
+    }
+
+    /** authenticates with the server. If the server doesn't require authentication, the returned request is already completed. Note that Rserve closes the connection if the login fails, but it is safe to submit further requests before the login completes.
+	@param user user name
+	@param pwd password
+	@return completed request has no result */
+    public RFuture login(String user, String pwd) {
+	if (!authReq) {
+	    RFuture f = new RFuture();
+	    f.complete(null);
+	    return f;
+	}
+	return submit(RTalk.CMD_login, user + "\n" + (cryptAuth ? jcrypt.crypt((salt == null) ? "rs" : salt, pwd) : pwd), false);
+    }
+
+    /** evaluates the given command and retrieves the result
+	@param cmd command/expression string
+	@return pending result */
+    public RFuture eval(String cmd) {
+	return submit(RTalk.CMD_eval, cmd + "\n", true);
+    }
+
+    /** evaluates the given command, but does not fetch the result
+	@param cmd command/expression string
+	@return pending request, it has no result */
+    public RFuture voidEval(String cmd) {
+	return submit(RTalk.CMD_voidEval, cmd + "\n", false);
+    }
+
+    /** evaluates an expression in the global environment
+	@param what expression to evaluate
+	@param resolve whether to retrieve the result
+	@return pending result */
+    public RFuture eval(REXP what, boolean resolve) {
+	byte[] rq;
+	try {
+	    REXPFactory r = new REXPFactory(what);
+	    int rl = r.getBinaryLength();
+	    rq = new byte[rl + ((rl > 0xfffff0) ? 8 : 4)];
+	    RTalk.setHdr(RTalk.DT_SEXP, rl, rq, 0);
+	    r.getBinaryRepresentation(rq, ((rl > 0xfffff0) ? 8 : 4));
+	} catch (REXPMismatchException me) {
+	    RFuture f = new RFuture();
+	    f.fail(new RserveException(null, "Error creating binary representation: " + me.getMessage(), me));
+	    return f;
+	}
+	return submit(resolve ? RTalk.CMD_eval : RTalk.CMD_voidEval, rq, resolve);
+    }
+
+    /** closes the connection. Requests that have not completed yet fail. */
+    public void close() {
+	closed = true;
+	loop.execute(new Runnable() {
+		public void run() {
+		    shutdown(new RserveException(null, "Connection closed"));
+		}
+	    });
+    }
+
+    RFuture submit(int cmd, String par, boolean resolve) {
+	try {
+	    return submit(cmd, RTalk.stringParameter(par), resolve);
+	} catch (UnsupportedEncodingException e) {
+	    RFuture f = new RFuture();
+	    f.fail(new RserveException(null, "Cannot encode request: " + e.getMessage(), e));
+	    return f;
+	}
+    }
+
+    RFuture submit(int cmd, byte[] par, boolean resolve) {
+	Request r = new Request(cmd, par, resolve);
+	boolean schedule;
+	synchronized (queue) {
+	    if (closed || !loop.isRunning()) {
+		r.f.fail(new RserveException(null, "Not connected"));
+		return r.f;
+	    }
+	    queue.addLast(r);
+	    schedule = !writeScheduled;
+	    writeScheduled = true;
+	}
+	if (schedule)
+	    loop.execute(new Runnable() {
+		    public void run() {
+			updateInterest();
+		    }
+		});
+	return r.f;
+    }
+
+    /** sets the interest ops according to the presence of data to write (loop thread) */
+    void updateInterest() {
+	if (key == null || !key.isValid())
+	    return;
+	boolean w;
+	synchronized (queue) {
+	    w = (current != null || wbuf.position() > 0 || !queue.isEmpty());
+	    writeScheduled = w;
+	}
+	key.interestOps(w ? (SelectionKey.OP_READ | SelectionKey.OP_WRITE) : SelectionKey.OP_READ);
+    }
+
+    /** handles readiness events (loop thread) */
+    void handle(SelectionKey k) {
+	try {
+	    if (k.isValid() && k.isReadable())
+		read();
+	    if (k.isValid() && k.isWritable())
+		write();
+	} catch (IOException e) {
+	    shutdown(new RserveException(null, "Connection broken: " + e.getMessage(), e));
+	} catch (CancelledKeyException e) {
+	    shutdown(new RserveException(null, "Connection closed"));
+	}
+    }
+
+    /** frames as many queued requests into the write buffer as fit and writes them until the socket would block */
+    void write() throws IOException {
+	while (true) {
+	    while (wbuf.hasRemaining()) {
+		if (current == null) {
+		    if (wbuf.remaining() < 16)
+			break;
+		    synchronized (queue) {
+			current = queue.isEmpty() ? null : (Request) queue.removeFirst();
+		    }
+		    if (current == null)
+			break;
+		    wbuf.putInt(current.cmd).putInt(current.par.length).putInt(0).putInt(0);
+		    curOff = 0;
+		    pending.addLast(current);
+		}
+		int n = current.par.length - curOff;
+		if (n > wbuf.remaining())
+		    n = wbuf.remaining();
+		wbuf.put(current.par, curOff, n);
+		curOff += n;
+		if (curOff == current.par.length) {
+		    current.par = null;
+		    current = null;
+		}
+	    }
+	    if (wbuf.position() == 0)
+		break;
+	    wbuf.flip();
+	    ch.write(wbuf);
+	    boolean full = wbuf.hasRemaining();
+	    wbuf.compact();
+	    if (full)
+		return;
+	}
+	updateInterest();
+    }
+
+    /** reads available data and dispatches complete responses */
+    void read() throws IOException {
+	if (ch.read(rbuf) < 0)
+	    throw new EOFException("connection closed by the server");
+	rbuf.flip();
+	while (true) {
+	    if (rct == null) {
+		if (rbuf.remaining() < 16)
+		    break;
+		rcmd = rbuf.getInt();
+		int len = rbuf.getInt();
+		rbuf.getInt();
+		if (rbuf.getInt() != 0 || len < 0)
+		    throw new IOException("response is too big");
+		rct = new byte[len];
+		rpos = 0;
+	    }
+	    int n = rct.length - rpos;
+	    if (n > rbuf.remaining())
+		n = rbuf.remaining();
+	    rbuf.get(rct, rpos, n);
+	    rpos += n;
+	    if (rpos < rct.length)
+		break;
+	    byte[] ct = rct;
+	    rct = null;
+	    dispatch(new RPacket(rcmd, ct));
+	}
+	rbuf.compact();
+    }
+
+    /** completes the request corresponding to the response */
+    void dispatch(RPacket rp) throws IOException {
+	if (rp.isOOB()) // OOB messages are only used in OCAP mode
+	    return;
+	if (pending.isEmpty())
+	    throw new IOException("unexpected response from the server");
+	Request r = (Request) pending.removeFirst();
+	if (!rp.isOk()) {
+	    r.f.fail(new RserveException(null, (r.cmd == RTalk.CMD_login) ? "login failed" : "eval failed", rp));
+	    return;
+	}
+	byte[] pc = rp.getCont();
+	if (!r.resolve || pc == null || rp.getLength() <= 4) {
+	    r.f.complete(null);
+	    return;
+	}
+	if (pc[0] != RTalk.DT_SEXP && pc[0] != (RTalk.DT_SEXP|RTalk.DT_LARGE)) {
+	    r.f.fail(new RserveException(null, "Error while processing eval output: SEXP (type "+RTalk.DT_SEXP+") expected but found result type "+pc[0]+"."));
+	    return;
+	}
+	try {
+	    REXPFactory rx = new REXPFactory();
+	    rx.parseREXP(pc, (pc[0] == RTalk.DT_SEXP) ? 4 : 8);
+	    r.f.complete(rx.getREXP());
+	} catch (REXPMismatchException me) {
+	    r.f.fail(new RserveException(null, "Error when parsing response: " + me.getMessage(), me));
+	} catch (RuntimeException re) {
+	    r.f.fail(new RserveException(null, "Error when parsing response: " + re.getMessage(), re));
+	}
+    }
+
+    /** closes the channel and fails all outstanding requests (loop thread) */
+    void shutdown(RserveException x) {
+	closed = true;
+	if (key != null)
+	    key.cancel();
+	try { ch.close(); } catch (IOException e) {}
+	current = null; // it is always in pending already
+	while (!pending.isEmpty())
+	    ((Request) pending.removeFirst()).f.fail(x);
+	synchronized (queue) {
+	    while (!queue.isEmpty())
+		((Request) queue.removeFirst()).f.fail(x);
+	}
+    }
+}
@@ -0,0 +1,103 @@
+package org.rosuda.REngine.Rserve;
+
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+import java.util.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** <b>RAsyncLoop</b> is an event loop which drives any number of {@link RAsyncConnection}s from a single thread
+    using a {@link Selector}. Applications typically use the shared {@link #getDefault()} loop, but several
+    loops can be created to spread the decoding of responses across more threads.
+    @version $Id$
+*/
+public class RAsyncLoop implements Runnable {
+    Selector selector;
+    Thread thread;
+    /** tasks to run on the loop thread */
+    ConcurrentLinkedQueue tasks = new ConcurrentLinkedQueue();
+    volatile boolean running = true;
+
+    static RAsyncLoop defaultLoop;
+
+    /** creates a new event loop and starts its (daemon) thread */
+    public RAsyncLoop() throws IOException {
+	selector = Selector.open();
+	thread = new Thread(this, "Rserve NIO loop");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /** returns the shared event loop, creating it if necessary
+	@return shared event loop */
+    public static synchronized RAsyncLoop getDefault() throws IOException {
+	if (defaultLoop == null || !defaultLoop.running)
+	    defaultLoop = new RAsyncLoop();
+	return defaultLoop;
+    }
+
+    /** runs a task on the loop thread */
+    void execute(Runnable r) {
+	tasks.add(r);
+	if (Thread.currentThread() != thread)
+	    selector.wakeup();
+    }
+
+    /** registers a connection with this loop (asynchronously) */
+    void register(final RAsyncConnection c) {
+	execute(new Runnable() {
+		public void run() {
+		    try {
+			c.key = c.ch.register(selector, SelectionKey.OP_READ, c);
+			c.updateInterest();
+		    } catch (IOException e) {
+			c.shutdown(new RserveException(null, "Cannot register connection: " + e.getMessage(), e));
+		    }
+		}
+	    });
+    }
+
+    /** checks whether the loop thread is running
+	@return <code>true</code> if the loop is running */
+    public boolean isRunning() {
+	return running;
+    }
+
+    /** stops the loop, closing all connections it serves */
+    public void close() {
+	running = false;
+	selector.wakeup();
+    }
+
+    public void run() {
+	try {
+	    while (running) {
+		selector.select();
+		Runnable r;
+		while ((r = (Runnable) tasks.poll()) != null)
+		    r.run();
+		Iterator i = selector.selectedKeys().iterator();
+		while (i.hasNext()) {
+		    SelectionKey k = (SelectionKey) i.next();
+		    i.remove();
+		    ((RAsyncConnection) k.attachment()).handle(k);
+		}
+	    }
+	} catch (Throwable e) {
+	    e.printStackTrace();
+	} finally {
+	    running = false;
+	    RserveException x = new RserveException(null, "Event loop was closed");
+	    Runnable r;
+	    while ((r = (Runnable) tasks.poll()) != null)
+		r.run();
+	    Iterator i = selector.keys().iterator();
+	    while (i.hasNext())
+		((RAsyncConnection) ((SelectionKey) i.next()).attachment()).shutdown(x);
+	    try { selector.close(); } catch (IOException e) {}
+	}
+    }
+}
@@ -0,0 +1,329 @@
+package org.rosuda.REngine.Rserve;
+
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.rosuda.REngine.*;
+
+/** <b>RBatcher</b> coalesces concurrent calls of a function on single rows into one call on a data frame.
+    Each {@link #call} passes one row (one value per column) and blocks until the result for that row is available.
+    Rows arriving within {@link #getMaxDelay()} microseconds of the first row of a batch (or until the batch has
+    {@link #getMaxRows()} rows) are combined into one data frame, the function is called once with it and the result
+    is split back into one value per row. This turns the per-call overhead (round trip, dispatch in R) into a per-batch
+    overhead, which makes a big difference for functions such as <code>predict</code> that are cheap per row.
+    <p>
+    The maximal delay is the trade-off between latency and throughput: a longer delay collects larger batches at the
+    cost of a longer wait for the first caller of each batch. With a delay of 0 a batch is evaluated as soon as the
+    engine is available, so batches only form from rows arriving while the engine is busy.
+    <p>
+    There is no background thread: the first caller of a batch waits for further rows and then evaluates the batch
+    on behalf of all of its callers. Batches are evaluated one at a time, the engine must not be used by anything else
+    while the batcher is in use (unless synchronized on the batcher's engine lock, see {@link #getEngineLock()}).
+    <p>
+    The function is called with the data frame as its only argument and must return either a vector with one element
+    per row (factors are returned as strings), a list with one element per row or a data frame with one row per row
+    of the input (which is split into one-row data frames). A function with further arguments can be wrapped using
+    {@link REngine#prepare}, e.g. <code>engine.prepare("predict(model, newdata = d)", new String[] { "d" })</code>.
+    @version $Id$
+*/
+public class RBatcher {
+    /** rows of one batch and, once evaluated, their results */
+    static class Batch {
+	ArrayList rows = new ArrayList();
+	REXP[] results;
+	Exception error;
+	boolean done;
+    }
+
+    REngine engine;
+    REXP function;
+    String[] columns;
+    int maxRows;
+    long maxDelay;
+    /** batch collecting rows or <code>null</code> if the next row starts a new one */
+    Batch current;
+    /** guards the fields above and the statistics. A lock is used instead of the monitor since {@link Object#wait(long,int)} only has millisecond resolution in practice. */
+    final ReentrantLock lock = new ReentrantLock();
+    /** signalled when the current batch is full */
+    final Condition full = lock.newCondition();
+    /** serializes the evaluation of batches */
+    Object engineLock = new Object();
+    long batches, rowCount;
+
+    /** creates a batcher
+	@param engine engine to evaluate the batches (typically an {@link RConnection})
+	@param function function to call, a symbol (e.g. <code>new REXPSymbol("score")</code>), a reference to a function or a prepared expression with one argument (see {@link REngine#prepare})
+	@param columns names of the columns of the data frame
+	@param maxRows maximal number of rows in one batch
+	@param maxDelay maximal time (in microseconds) to wait for further rows after the first row of a batch */
+    public RBatcher(REngine engine, REXP function, String[] columns, int maxRows, long maxDelay) {
+	if (maxRows < 1)
+	    throw new IllegalArgumentException("a batch must have at least one row");
+	this.engine = engine;
+	this.function = function;
+	this.columns = columns;
+	this.maxRows = maxRows;
+	this.maxDelay = maxDelay;
+    }
+
+    /** creates a batcher calling a function by name, see {@link #RBatcher(REngine,REXP,String[],int,long)} */
+    public RBatcher(REngine engine, String function, String[] columns, int maxRows, long maxDelay) {
+	this(engine, new REXPSymbol(function), columns, maxRows, maxDelay);
+    }
+
+    /** sets the maximal number of rows in one batch (applies to new batches)
+	@param maxRows number of rows */
+    public void setMaxRows(int maxRows) {
+	if (maxRows < 1)
+	    throw new IllegalArgumentException("a batch must have at least one row");
+	lock.lock();
+	try {
+	    this.maxRows = maxRows;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /** returns the maximal number of rows in one batch
+	@return number of rows */
+    public int getMaxRows() {
+	lock.lock();
+	try {
+	    return maxRows;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /** sets the maximal time to wait for further rows after the first row of a batch (applies to new batches)
+	@param maxDelay delay in microseconds, 0 to evaluate batches as soon as possible */
+    public void setMaxDelay(long maxDelay) {
+	lock.lock();
+	try {
+	    this.maxDelay = maxDelay;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /** returns the maximal time to wait for further rows
+	@return delay in microseconds */
+    public long getMaxDelay() {
+	lock.lock();
+	try {
+	    return maxDelay;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /** returns the lock held while a batch is evaluated. Other users of the engine can synchronize on it to share the engine with the batcher.
+	@return lock object */
+    public Object getEngineLock() {
+	return engineLock;
+    }
+
+    /** returns the number of batches evaluated so far
+	@return number of batches */
+    public long getBatchCount() {
+	lock.lock();
+	try {
+	    return batches;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /** returns the number of rows evaluated so far, <code>getRowCount() / getBatchCount()</code> is the average batch size
+	@return number of rows */
+    public long getRowCount() {
+	lock.lock();
+	try {
+	    return rowCount;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /** calls the function on one row. The call blocks until the batch containing the row has been evaluated.
+	@param row values of the row, one (single-element) numeric, integer, logical, character or factor vector per column
+	@return result for the row */
+    public REXP call(REXP[] row) throws REngineException, REXPMismatchException {
+	if (row.length != columns.length)
+	    throw new IllegalArgumentException("the row has "+row.length+" values but there are "+columns.length+" columns");
+	Batch b;
+	int index;
+	boolean first, interrupted = false;
+	lock.lock();
+	try {
+	    first = (current == null);
+	    if (first) current = new Batch();
+	    b = current;
+	    index = b.rows.size();
+	    b.rows.add(row);
+	    if (b.rows.size() >= maxRows) { /* the batch is full, wake up its first caller */
+		current = null;
+		full.signalAll();
+	    }
+	    if (first) {
+		long left = TimeUnit.MICROSECONDS.toNanos(maxDelay);
+		while (current == b && left > 0)
+		    try {
+			left = full.awaitNanos(left);
+		    } catch (InterruptedException e) { /* the other callers depend on us, so evaluate the batch right away */
+			interrupted = true;
+			break;
+		    }
+	    }
+	} finally {
+	    lock.unlock();
+	}
+	if (first) {
+	    evaluate(b);
+	    if (interrupted) Thread.currentThread().interrupt();
+	} else {
+	    synchronized (b) {
+		while (!b.done)
+		    try {
+			b.wait();
+		    } catch (InterruptedException e) {
+			throw new REngineException(engine, "interrupted while waiting for the batch to be evaluated", e);
+		    }
+	    }
+	}
+	if (b.error instanceof REngineException) throw (REngineException) b.error;
+	if (b.error instanceof REXPMismatchException) throw (REXPMismatchException) b.error;
+	if (b.error != null) throw new REngineException(engine, "batch evaluation failed: "+b.error, b.error);
+	if (b.results == null) /* the evaluating thread failed with an Error */
+	    throw new REngineException(engine, "batch evaluation failed");
+	return b.results[index];
+    }
+
+    /** evaluates a batch and notifies its callers. The batch keeps collecting rows until the engine is available. Errors are thrown to the evaluating caller only, the other callers get an exception. */
+    void evaluate(Batch b) {
+	REXP[] res = null;
+	Exception err = null;
+	int n = 0;
+	try {
+	    REXP r;
+	    synchronized (engineLock) {
+		lock.lock();
+		try {
+		    if (current == b) current = null;
+		    n = b.rows.size();
+		} finally {
+		    lock.unlock();
+		}
+		REXP[] cols = new REXP[columns.length];
+		for (int j = 0; j < cols.length; j++)
+		    cols[j] = column(b.rows, j);
+		REXP df = REXP.createDataFrame(new RList(cols, columns));
+		r = engine.eval(REXP.asCall(function, new REXP[] { df }), null, true);
+	    }
+	    res = split(r, n);
+	    lock.lock();
+	    try {
+		batches++;
+		rowCount += n;
+	    } finally {
+		lock.unlock();
+	    }
+	} catch (Exception e) {
+	    err = e;
+	} finally {
+	    synchronized (b) {
+		b.results = res;
+		b.error = err;
+		b.done = true;
+		b.notifyAll();
+	    }
+	}
+    }
+
+    /** builds a column of the data frame from the values of the rows. The type is character if any value is a string or factor, logical if all values are logical, integer if all are integer and numeric otherwise. NA values of any type are NA in the column. */
+    static REXP column(ArrayList rows, int j) throws REXPMismatchException {
+	int n = rows.size();
+	boolean str = false, lgl = true, itg = true;
+	for (int i = 0; i < n; i++) {
+	    REXP v = ((REXP[]) rows.get(i))[j];
+	    if (v == null || v.length() != 1)
+		throw new REXPMismatchException(v, "batch row (each value must have exactly one element)");
+	    if (v.isString() || v.isFactor()) str = true;
+	    else if (!v.isLogical() && !v.isNumeric())
+		throw new REXPMismatchException(v, "batch row (only numeric, integer, logical, character and factor values are supported)");
+	    if (!v.isLogical()) lgl = false;
+	    if (!v.isInteger() || v.isFactor()) itg = false;
+	}
+	if (str) {
+	    String[] s = new String[n];
+	    for (int i = 0; i < n; i++) {
+		REXP v = ((REXP[]) rows.get(i))[j];
+		s[i] = v.isNA()[0] ? null : v.isFactor() ? v.asFactor().at(0) : v.asStrings()[0];
+	    }
+	    return new REXPString(s);
+	}
+	if (lgl) {
+	    byte[] b = new byte[n];
+	    for (int i = 0; i < n; i++)
+		b[i] = ((REXP[]) rows.get(i))[j].asBytes()[0];
+	    return new REXPLogical(b);
+	}
+	if (itg) {
+	    int[] a = new int[n];
+	    for (int i = 0; i < n; i++)
+		a[i] = ((REXP[]) rows.get(i))[j].asIntegers()[0];
+	    return new REXPInteger(a);
+	}
+	double[] d = new double[n];
+	for (int i = 0; i < n; i++) {
+	    REXP v = ((REXP[]) rows.get(i))[j];
+	    d[i] = v.isNA()[0] ? REXPDouble.NA : v.asDoubles()[0];
+	}
+	return new REXPDouble(d);
+    }
+
+    /** splits the result of a batch into the results of its rows */
+    static REXP[] split(REXP r, int n) throws REXPMismatchException {
+	REXP[] res = new REXP[n];
+	if (r != null && r.isList() && r.inherits("data.frame")) {
+	    RList l = r.asList();
+	    REXP[][] cols = new REXP[l.size()][];
+	    for (int j = 0; j < cols.length; j++)
+		cols[j] = split(l.at(j), n);
+	    for (int i = 0; i < n; i++) {
+		REXP[] c = new REXP[cols.length];
+		for (int j = 0; j < c.length; j++) c[j] = cols[j][i];
+		res[i] = REXP.createDataFrame(new RList(c, l.keys()));
+	    }
+	    return res;
+	}
+	if (r == null || (r.isList() ? r.asList().size() : r.length()) != n)
+	    throw new REXPMismatchException(r, "batch result (expected one element for each of the "+n+" rows)");
+	if (r.isList()) {
+	    RList l = r.asList();
+	    for (int i = 0; i < n; i++) res[i] = l.at(i);
+	} else if (r.isFactor()) {
+	    RFactor f = r.asFactor();
+	    for (int i = 0; i < n; i++) res[i] = new REXPString(f.at(i));
+	} else if (r.isString()) {
+	    String[] s = r.asStrings();
+	    for (int i = 0; i < n; i++) res[i] = new REXPString(s[i]);
+	} else if (r.isLogical()) {
+	    byte[] b = r.asBytes();
+	    for (int i = 0; i < n; i++) res[i] = new REXPLogical(b[i]);
+	} else if (r.isInteger()) {
+	    int[] a = r.asIntegers();
+	    for (int i = 0; i < n; i++) res[i] = new REXPInteger(a[i]);
+	} else if (r.isNumeric()) {
+	    double[] d = r.asDoubles();
+	    for (int i = 0; i < n; i++) res[i] = new REXPDouble(d[i]);
+	} else
+	    throw new REXPMismatchException(r, "batch result (vector, list or data frame expected)");
+	return res;
+    }
+}
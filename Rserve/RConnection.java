@@ -5,6 +5,7 @@ package org.rosuda.REngine.Rserve;
 // --- for licensing information see LICENSE file in the original JRclient distribution ---
 
 import java.util.*;
+import java.util.concurrent.Executor;
 import java.io.*;
 import java.net.*;
 import org.rosuda.REngine.*;
@@ -34,6 +35,55 @@ public class RConnection extends REngine {
     String host;
     int port;
 
+    /** responses with content larger than this many bytes are decoded directly from the socket, -1 disables streaming */
+    int streamThreshold = -1;
+    /** minimal number of elements of lazily decoded lists, see {@link #setLazyDecoding} */
+    int lazyElements = -1;
+    /** arena for off-heap decoding of large vectors, see {@link #setDirectArena} */
+    RDirectArena directArena;
+    long directThreshold;
+    /** executor for parallel decoding and encoding of large lists and data frames, see {@link #setParallelExecutor} */
+    Executor parallelExecutor;
+    long parallelThreshold;
+
+    /** id of the last handle in the registry of server-side objects, see {@link #createReference} */
+    long lastHandle;
+    /** set once the functions managing the registry have been defined on the server */
+    boolean refsInstalled;
+    /** names of released handles, they are removed from the registry by the next request that uses handles */
+    ArrayList releasedHandles = new ArrayList();
+
+    /** modes of <code>.REngine.eval</code>: evaluate the expression passed, parse and evaluate a text, evaluate the object of a handle or parse a text */
+    static final int MODE_EXPR = 1, MODE_TEXT = 2, MODE_REF = 3, MODE_PARSE = 4;
+    /** symbol returned by the registry functions in place of an environment, which is stored under the handle passed along instead */
+    static final String ENV_MARKER = ".REngine.env";
+    /** R code defining the registry of handles (<code>.REngine.refs</code>) and the functions operating on it in the base environment. Arguments passed as <code>x</code> are taken literally (using <code>substitute</code>) since they are sent as part of the call. */
+    static final String REFS_SETUP =
+	"local({ b <- baseenv()\n"+
+	"if (!exists('.REngine.refs', b, inherits=FALSE)) assign('.REngine.refs', new.env(parent=emptyenv()), b)\n"+
+	"f <- list(.REngine.ref=function(h) get(h, .REngine.refs, inherits=FALSE),\n"+
+	" .REngine.rho=function(h) if (is.null(h)) .GlobalEnv else .REngine.ref(h),\n"+
+	" .REngine.drop=function(d) if (length(d)) suppressWarnings(rm(list=d, envir=.REngine.refs)),\n"+
+	" .REngine.out=function(v, h, store) if (store || is.environment(v)) { assign(h, v, .REngine.refs); if (store) invisible(NULL) else as.name('"+ENV_MARKER+"') } else v,\n"+
+	" .REngine.eval=function(x, env, h, store, drop, mode) { .REngine.drop(drop); rho <- .REngine.rho(env)\n"+
+	"   v <- switch(mode, eval(substitute(x), rho), eval(parse(text=x), rho), eval(.REngine.ref(x), rho), parse(text=x, keep.source=FALSE))\n"+
+	"   .REngine.out(v, h, store) },\n"+
+	" .REngine.assign=function(s, x, env, drop, ref) { .REngine.drop(drop); assign(s, if (ref) .REngine.ref(x) else substitute(x), .REngine.rho(env)); invisible(NULL) },\n"+
+	" .REngine.put=function(h, x, drop) { .REngine.drop(drop); assign(h, substitute(x), .REngine.refs); invisible(NULL) })\n"+
+	"for (n in names(f)) { environment(f[[n]]) <- b; assign(n, f[[n]], b) } })";
+
+    /** if set, repeated strings in responses are decoded into the same instance */
+    boolean dedupStrings = false;
+    /** factory re-used for decoding responses if the receive buffer is re-used */
+    REXPFactory parseFactory;
+    /** transfer encoding at the time {@link #parseFactory} was created */
+    String parseCharset;
+
+    /** timeout of calls in milliseconds, 0 means no timeout */
+    int timeout = 0;
+    /** process id of the server process serving this connection if it is to be killed on timeout, -1 otherwise */
+    int killPid = -1;
+
     /** This static variable specifies the character set used to encode string for transfer. Under normal circumstances there should be no reason for changing this variable. The default is UTF-8, which makes sure that 7-bit ASCII characters are sent in a backward-compatible fashion. Currently (Rserve 0.1-7) there is no further conversion on Rserve's side, i.e. the strings are passed to R without re-coding. If necessary the setting should be changed <u>before</u> connecting to the Rserve in case later Rserves will provide a possibility of setting the encoding during the handshake. */
     public static String transferCharset="UTF-8";
     
@@ -141,10 +191,10 @@ public class RConnection extends REngine {
         try {
             is = s.getInputStream();
             os = s.getOutputStream();
+            rt = new RTalk(s);
         } catch (Exception gse) {
             throw new RserveException(this, "Cannot get io stream: " + gse.getMessage(), gse);
         }
-        rt = new RTalk(is,os);
 		if (session==null) {
 			byte[] IDs=new byte[32];
 			int n=-1;
@@ -260,9 +310,14 @@ public class RConnection extends REngine {
     public void voidEval(String cmd) throws RserveException {
 		if (!connected || rt==null)
 			throw new RserveException(this,"Not connected");
-		RPacket rp=rt.request(RTalk.CMD_voidEval,cmd+"\n");
-		if (rp!=null && rp.isOk()) return;
-        throw new RserveException(this,"voidEval failed",rp);
+		startCall();
+		try {
+			RPacket rp=rt.request(RTalk.CMD_voidEval,cmd,"\n",-1);
+			if (rp!=null && rp.isOk()) return;
+			throw failed("voidEval failed",rp);
+		} finally {
+			endCall();
+		}
     }
 
 	/** evaluates the given command, detaches the session (see @link{detach()}) and closes connection while the command is being evaluted (requires Rserve 0.4+).
@@ -280,9 +335,279 @@ public class RConnection extends REngine {
 		return s;
     }
 	
+    /** Sets the size above which eval responses are decoded directly from the socket as the data arrives instead of reading the whole response into memory first. This reduces the peak memory needed to retrieve large objects to about the size of the resulting Java objects. Note that if the decoding of a streamed response fails, the connection is closed, because it cannot be re-synchronized.
+	@param threshold size of the response content (in bytes) above which streaming is used, 0 means always and -1 (default) never */
+    public void setStreamingThreshold(int threshold) {
+	streamThreshold = threshold;
+    }
+
+    /** returns the threshold set by {@link #setStreamingThreshold}
+	@return threshold in bytes or -1 if streaming is disabled */
+    public int getStreamingThreshold() {
+	return streamThreshold;
+    }
+
+    /** Enables decoding of large numeric, logical and raw vectors in eval responses into off-heap vectors ({@link REXPDirectDouble}, {@link REXPDirectInteger}, {@link REXPDirectLogical} and {@link REXPDirectRaw}) allocated in the given arena. Responses larger than the threshold are then also decoded directly from the socket (see {@link #setStreamingThreshold}), so the content of such vectors is never held on the Java heap. The vectors must be closed (or the arena) to release their memory.
+	@param arena arena to allocate the vectors in or <code>null</code> to disable off-heap decoding (default)
+	@param threshold size of the vector content (in bytes) above which direct memory is used */
+    public void setDirectArena(RDirectArena arena, long threshold) {
+	directArena = arena;
+	directThreshold = threshold;
+    }
+
+    /** Enables spilling of large eval responses to disk. Responses with content larger than the threshold are copied into a temporary file as they arrive and decoded from there, mapping large numeric, integer and raw vectors directly from the file into {@link REXPDirectDouble}, {@link REXPDirectInteger} and {@link REXPDirectRaw} vectors (see {@link REXPFactory#parseREXP(RSpillFile,long)}). This allows the retrieval of results that are larger than the Java heap and the mapped segments can be handed to file channels without further copies. The file is deleted once the response has been decoded, the mapped vectors remain valid until they are closed. The file is only accessible to the owner of the process, where the file system doesn't support that (e.g. on Windows) the file gets the default permissions of the directory, so a private <code>dir</code> should be used for sensitive results.
+	@param threshold size of the response content (in bytes) above which it is spilled or -1 (default) to disable spilling
+	@param dir directory for the temporary files or <code>null</code> for the default temporary directory */
+    public void setSpillThreshold(long threshold, File dir) {
+	if (rt != null) rt.setSpillThreshold(threshold, dir);
+    }
+
+    /** returns the threshold set by {@link #setSpillThreshold}
+	@return threshold in bytes or -1 if spilling is disabled */
+    public long getSpillThreshold() {
+	return (rt == null) ? -1 : rt.getSpillThreshold();
+    }
+
+    /** returns the arena set by {@link #setDirectArena}
+	@return arena or <code>null</code> if off-heap decoding is disabled */
+    public RDirectArena getDirectArena() {
+	return directArena;
+    }
+
+    /** Enables lazy decoding of large lists and data frames in eval responses: the elements of generic vectors with at least <code>minElements</code> elements are only decoded when they are first accessed (see {@link REXPFactory#setLazyDecoding}). This is useful if only a few columns of wide data frames are used. Note that the whole response is kept in memory until all elements have been decoded or the result is no longer referenced. Responses decoded from the socket (see {@link #setStreamingThreshold}) or from spill files are decoded eagerly.
+	@param minElements minimal number of elements of lazily decoded lists or -1 (default) to disable lazy decoding */
+    public void setLazyDecoding(int minElements) {
+	lazyElements = minElements;
+    }
+
+    /** Enables parallel decoding and encoding of the elements of large lists and data frames (e.g. the columns of a data frame), see {@link REXPFactory#setParallelExecutor}. This applies to eval responses decoded from a buffer and to expressions sent by {@link #assign(String,REXP)} and {@link #eval(REXP,REXP,boolean)}. Lazy decoding (see {@link #setLazyDecoding}) takes precedence over parallel decoding.
+	@param executor executor to run the tasks or <code>null</code> (default) to disable parallel processing
+	@param threshold minimal size (in bytes) of the binary representation of vectors whose elements are processed in parallel */
+    public void setParallelExecutor(Executor executor, long threshold) {
+	parallelExecutor = executor;
+	parallelThreshold = threshold;
+    }
+
+    /** returns the executor set by {@link #setParallelExecutor}
+	@return executor or <code>null</code> if parallel processing is disabled */
+    public Executor getParallelExecutor() {
+	return parallelExecutor;
+    }
+
+    /** returns the setting of {@link #setLazyDecoding}
+	@return minimal number of elements or -1 if lazy decoding is disabled */
+    public int getLazyDecoding() {
+	return lazyElements;
+    }
+
+    /** Enables de-duplication of strings in eval responses. If enabled, equal (short) strings in the response are decoded into the same <code>String</code> instance which is faster and uses less memory for character vectors with many repeated values such as factor-like data. The only visible difference is the identity of the strings.
+	@param dedup <code>true</code> to enable, <code>false</code> (default) to disable de-duplication */
+    public void setStringDeduplication(boolean dedup) {
+	dedupStrings = dedup;
+    }
+
+    /** returns the setting of {@link #setStringDeduplication}
+	@return <code>true</code> if strings are de-duplicated */
+    public boolean getStringDeduplication() {
+	return dedupStrings;
+    }
+
+    /** Enables re-use of the receive buffer of this connection (disabled by default). Responses are then received into a buffer owned by the connection instead of a new array per response, which avoids most of the per-call allocation for calls with small results (e.g. scalar evaluations in a loop). Results returned by methods of this class are always independent of the buffer. See {@link RTalk#setReuseBuffers} for the details relevant to code using {@link RTalk} directly.
+	@param reuse <code>true</code> to re-use the receive buffer */
+    public void setReuseBuffers(boolean reuse) {
+	if (rt != null) rt.setReuseBuffers(reuse);
+	parseFactory = null;
+    }
+
+    /** checks whether the receive buffer is re-used, see {@link #setReuseBuffers}
+	@return <code>true</code> if the receive buffer is re-used */
+    public boolean getReuseBuffers() {
+	return rt != null && rt.isReuseBuffers();
+    }
+
+    /** Sets a listener which receives wire-level measurements of all requests on this connection (bytes sent and received, latency of the first response byte and of the whole response, decoding time and error codes). Use {@link RMetrics} to aggregate them in histograms. No measurements are taken if no listener is set.
+	@param l listener or <code>null</code> to remove the listener */
+    public void setMetricsListener(RTalkListener l) {
+	if (rt != null) rt.setListener(l);
+    }
+
+    /** returns the listener set by {@link #setMetricsListener}
+	@return listener or <code>null</code> if there is none */
+    public RTalkListener getMetricsListener() {
+	return (rt == null) ? null : rt.getListener();
+    }
+
+    /** Sets the timeout for calls on this connection. A call ({@link #eval(String)}, {@link #voidEval}, {@link #assign(String,REXP)}, {@link #callOCAP} etc.) which has not received its complete response within the timeout fails with {@link RserveTimeoutException}. Since the server may still be working on the request, the connection is closed at that point (see also {@link #setKillOnTimeout}). The timeout can be changed between calls, so it can be used to set a deadline for each call.
+	@param millis timeout in milliseconds, 0 (default) means calls never time out */
+    public void setTimeout(int millis) {
+	timeout = (millis < 0) ? 0 : millis;
+    }
+
+    /** returns the timeout set by {@link #setTimeout}
+	@return timeout in milliseconds, 0 if calls never time out */
+    public int getTimeout() {
+	return timeout;
+    }
+
+    /** Enables termination of the server process when a call times out. The process id of the server process serving this connection is retrieved when this is enabled, so it must be called after {@link #login}. On timeout a control connection is opened (see {@link #openControlConnection}) and the server process is killed via <code>serverEval("tools::pskill(pid)")</code>, which requires control commands to be enabled in Rserve. The kill is performed in the background and all errors are ignored.
+	@param kill <code>true</code> to kill the server process on timeout */
+    public void setKillOnTimeout(boolean kill) throws RserveException {
+	if (!kill) {
+	    killPid = -1;
+	    return;
+	}
+	if (host == null)
+	    throw new RserveException(this, "The server process can only be killed for connections created with a host and port");
+	try {
+	    killPid = eval("Sys.getpid()").asInteger();
+	} catch (REXPMismatchException me) {
+	    throw new RserveException(this, "Cannot determine the server process id", me);
+	}
+    }
+
+    /** opens the connection used to kill the server process of this connection on timeout, see {@link #setKillOnTimeout}. Subclasses can override this method if the server requires authentication.
+	@return new connection to the same server */
+    protected RConnection openControlConnection() throws RserveException {
+	return new RConnection(host, port);
+    }
+
+    /** starts the deadline of a call */
+    void startCall() {
+	if (timeout > 0)
+	    rt.setDeadline(System.currentTimeMillis() + timeout);
+    }
+
+    /** ends the deadline of a call */
+    void endCall() {
+	if (timeout > 0 && rt != null)
+	    rt.setDeadline(0);
+    }
+
+    /** creates the exception for a failed request. If the request timed out, the connection is closed and the server process is killed if requested. */
+    RserveException failed(String msg, RPacket rp) {
+	if (rt != null && rt.isTimedOut())
+	    return timedOut(msg);
+	return new RserveException(this, msg, rp);
+    }
+
+    RserveTimeoutException timedOut(String msg) {
+	close();
+	if (killPid > 0) {
+	    final int pid = killPid;
+	    killPid = -1;
+	    Thread t = new Thread(new Runnable() {
+		    public void run() {
+			try {
+			    RConnection c = openControlConnection();
+			    try {
+				c.serverEval("tools::pskill(" + pid + ")");
+			    } finally {
+				c.close();
+			    }
+			} catch (Exception e) {
+			}
+		    }
+		}, "Rserve kill");
+	    t.setDaemon(true);
+	    t.start();
+	}
+	return new RserveTimeoutException(this, msg + ": no response within " + timeout + " ms, connection closed", timeout);
+    }
+
+    /** threshold to pass to requests that will be processed by parseEvalResponse */
+    int evalStreamThreshold() {
+	if (rsrvVersion <= 100) return -1;
+	if (directArena != null && (streamThreshold < 0 || directThreshold < streamThreshold))
+	    return (directThreshold > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) directThreshold;
+	if (streamThreshold < 0 && rt.getSpillThreshold() >= 0) /* spilled responses are only returned to callers that accept packets without content */
+	    return Integer.MAX_VALUE;
+	return streamThreshold;
+    }
+
+    /** decodes the result of a streamed response directly from the input stream */
+    REXP parseStreamedResponse(RPacket rp) throws RserveException {
+		long len = rp.getLongLength();
+		try {
+			InputStream in = rt.getInputStream();
+			byte[] ph = new byte[8];
+			RTalk.readFully(in, ph, 0, 4);
+			if (ph[0]!=RTalk.DT_SEXP && ph[0]!=(RTalk.DT_SEXP|RTalk.DT_LARGE)) {
+				close();
+				throw new RserveException(this,"Error while processing eval output: SEXP (type "+RTalk.DT_SEXP+") expected but found result type "+ph[0]+".");
+			}
+			int rxo = 4;
+			if (ph[0]==(RTalk.DT_SEXP|RTalk.DT_LARGE)) {
+				RTalk.readFully(in, ph, 4, 4);
+				rxo = 8;
+			}
+			REXP res = null;
+			if (len > rxo) {
+				REXPFactory rx=new REXPFactory();
+				if (dedupStrings) rx.setDeduplicateStrings(true);
+				if (directArena != null) rx.setDirectArena(directArena, directThreshold);
+				RTalkListener l = rt.getListener();
+				long t0 = (l == null) ? 0 : System.nanoTime();
+				long n = rx.parseREXP(in);
+				if (l != null) l.responseDecoded(rt.getLastCommand(), n, System.nanoTime() - t0);
+				res = rx.getREXP();
+				len -= n;
+			}
+			len -= rxo;
+			while (len > 0) { // skip anything we didn't use so the stream stays in sync
+				long sk = in.skip(len);
+				if (sk <= 0) {
+					if (in.read() < 0) throw new EOFException("connection closed while skipping data");
+					sk = 1;
+				}
+				len -= sk;
+			}
+			return res;
+		} catch (REXPMismatchException me) {
+			close();
+			throw new RserveException(this, "Error when parsing response: " + me.getMessage(), me);
+		} catch (IOException ie) {
+			if (rt.isTimedOut())
+				throw timedOut("Error while receiving response");
+			close();
+			throw new RserveException(this, "Error while receiving response: " + ie.getMessage(), ie);
+		}
+    }
+
+    /** decodes the result of a response that has been spilled to a file */
+    REXP parseSpilledResponse(RPacket rp) throws RserveException {
+		RSpillFile f = rp.getSpillFile();
+		try {
+			byte[] ph = new byte[4];
+			f.readFully(0, ph, 0, 4);
+			if (ph[0]!=RTalk.DT_SEXP && ph[0]!=(RTalk.DT_SEXP|RTalk.DT_LARGE))
+				throw new RserveException(this,"Error while processing eval output: SEXP (type "+RTalk.DT_SEXP+") expected but found result type "+ph[0]+".");
+			int rxo = (ph[0]==(RTalk.DT_SEXP|RTalk.DT_LARGE)) ? 8 : 4;
+			if (f.length() <= rxo) return null;
+			REXPFactory rx=new REXPFactory();
+			if (dedupStrings) rx.setDeduplicateStrings(true);
+			if (directArena != null) rx.setDirectArena(directArena, directThreshold);
+			RTalkListener l = rt.getListener();
+			long t0 = (l == null) ? 0 : System.nanoTime();
+			long n = rx.parseREXP(f, rxo);
+			if (l != null) l.responseDecoded(rt.getLastCommand(), n, System.nanoTime() - t0);
+			return rx.getREXP();
+		} catch (REXPMismatchException me) {
+			throw new RserveException(this, "Error when parsing response: " + me.getMessage(), me);
+		} catch (IOException ie) {
+			throw new RserveException(this, "Error while reading spilled response: " + ie.getMessage(), ie);
+		} finally {
+			f.close();
+		}
+    }
+
     REXP parseEvalResponse(RPacket rp) throws RserveException {
+		if (rp.isSpilled())
+			return parseSpilledResponse(rp);
+		if (rp.isStreamed())
+			return parseStreamedResponse(rp);
 		int rxo=0;
-		byte[] pc=rp.getCont();
+		/* lazily decoded elements keep referencing the content, so it cannot be the re-used receive buffer */
+		byte[] pc=(lazyElements >= 0 && rp.isView()) ? rp.toByteArray() : rp.getCont();
 		if (rsrvVersion>100) { /* since 0101 eval responds correctly by using DT_SEXP type/len header which is 4 bytes long */
 			rxo=4;
 			/* we should check parameter type (should be DT_SEXP) and fail if it's not */
@@ -292,10 +617,26 @@ public class RConnection extends REngine {
 				rxo=8; // large data need skip of 8 bytes
 			/* warning: we are not checking or using the length - we assume that only the one SEXP is returned. This is true for the current CMD_eval implementation, but may not be in the future. */
 		}
-		if (pc.length>rxo) {
+		if (rp.getLength()>rxo) {
 			try {
-				REXPFactory rx=new REXPFactory();
-				rx.parseREXP(pc, rxo);
+				REXPFactory rx;
+				if (rt.isReuseBuffers()) { /* the factory (and its string codec) can be re-used since parsing replaces its content */
+					if (parseFactory == null || parseCharset != transferCharset) {
+						parseFactory = new REXPFactory();
+						parseCharset = transferCharset;
+					}
+					rx = parseFactory;
+					rx.setDeduplicateStrings(dedupStrings);
+				} else
+					rx = new REXPFactory();
+				if (dedupStrings) rx.setDeduplicateStrings(true);
+				rx.setDirectArena(directArena, directThreshold);
+				rx.setLazyDecoding(lazyElements);
+				rx.setParallelExecutor(parallelExecutor, parallelThreshold);
+				RTalkListener l = rt.getListener();
+				long t0 = (l == null) ? 0 : System.nanoTime();
+				int n = rx.parseREXP(pc, rxo);
+				if (l != null) l.responseDecoded(rt.getLastCommand(), n - rxo, System.nanoTime() - t0);
 				return rx.getREXP();
 			} catch (REXPMismatchException me) {
 				me.printStackTrace();
@@ -311,10 +652,98 @@ public class RConnection extends REngine {
     public REXP eval(String cmd) throws RserveException {
 		if (!connected || rt==null)
             throw new RserveException(this,"Not connected");
-		RPacket rp=rt.request(RTalk.CMD_eval,cmd+"\n");
-		if (rp!=null && rp.isOk())
-			return parseEvalResponse(rp);
-        throw new RserveException(this,"eval failed",rp);
+		if (getParseCacheSize() > 0) /* evaluate the cached parsed expression instead of sending the text */
+			try {
+				return eval(parseCached(cmd), null, true);
+			} catch (RserveException re) {
+				throw re;
+			} catch (REngineException ee) {
+				throw new RserveException(this, ee.getMessage(), ee);
+			} catch (REXPMismatchException me) {
+				throw new RserveException(this, me.getMessage(), me);
+			}
+		startCall();
+		try {
+			RPacket rp=rt.request(RTalk.CMD_eval,cmd,"\n",evalStreamThreshold());
+			if (rp!=null && rp.isOk())
+				return parseEvalResponse(rp);
+			throw failed("eval failed",rp);
+		} finally {
+			endCall();
+		}
+    }
+
+    /** evaluates all commands in a single pipelined exchange and retrieves their results. The requests are written back to back without waiting for the responses, so the whole batch costs roughly one network round trip instead of one per command. The number of request bytes in flight is bounded by {@link #PIPELINE_WINDOW} (but at least one request is always in flight) such that the server can never block on writing responses while we are still writing requests. All responses are collected even if some commands fail, i.e., the connection remains usable in that case.
+	@param cmds command/expression strings
+	@return array of results in the same order as the commands
+	@throws RserveException if any of the commands failed (the first failure is reported) or if the connection broke */
+    public REXP[] evalBatch(String[] cmds) throws RserveException {
+	return batch(RTalk.CMD_eval, cmds);
+    }
+
+    /** same as {@link #evalBatch(String[])} but does not fetch the results, i.e. it is the pipelined equivalent of {@link #voidEval(String)}
+	@param cmds command/expression strings
+	@throws RserveException if any of the commands failed (the first failure is reported) or if the connection broke */
+    public void voidEvalBatch(String[] cmds) throws RserveException {
+	batch(RTalk.CMD_voidEval, cmds);
+    }
+
+    /** maximal number of request bytes that {@link #evalBatch(String[])} keeps in flight. It must not exceed what the socket buffers on both sides can hold, otherwise both peers could block in writing. */
+    public static final int PIPELINE_WINDOW = 32768;
+
+    REXP[] batch(int cmd, String[] cmds) throws RserveException {
+	if (!connected || rt==null)
+	    throw new RserveException(this,"Not connected");
+	startCall();
+	try {
+	    return batchCall(cmd, cmds);
+	} finally {
+	    endCall();
+	}
+    }
+
+    private REXP[] batchCall(int cmd, String[] cmds) throws RserveException {
+	int n = cmds.length;
+	REXP[] res = new REXP[n];
+	int[] sizes = new int[n];
+	RserveException failed = null;
+	int sent = 0, received = 0, inFlight = 0;
+	byte[] next = null;
+	int streamAbove = (cmd == RTalk.CMD_eval) ? evalStreamThreshold() : -1;
+	try {
+	    while (received < n) {
+		if (next == null && sent < n)
+		    next = RTalk.stringParameter(cmds[sent]+"\n");
+		/* send as long as the window allows, always have at least one request in flight */
+		if (next != null && (sent == received || inFlight + next.length <= PIPELINE_WINDOW)) {
+		    rt.send(cmd, null, next, 0, next.length);
+		    sizes[sent++] = next.length;
+		    inFlight += next.length;
+		    next = null;
+		    continue;
+		}
+		RPacket rp = rt.response(null, streamAbove);
+		if (rp == null) {
+		    if (rt.isTimedOut())
+			throw timedOut("batch request");
+		    close();
+		    throw new RserveException(this, "Error while receiving batch response, connection closed");
+		}
+		inFlight -= sizes[received];
+		if (rp.isOk()) {
+		    if (cmd == RTalk.CMD_eval)
+			res[received] = parseEvalResponse(rp);
+		} else if (failed == null)
+		    failed = new RserveException(this, "eval failed (in batch request "+(received+1)+" of "+n+")", rp);
+		received++;
+	    }
+	} catch (IOException e) {
+	    close();
+	    throw new RserveException(this, "Error while sending batch request: " + e.getMessage(), e);
+	}
+	if (failed != null)
+	    throw failed;
+	return res;
     }
 
     /** assign a string value to a symbol in R. The symbol is created if it doesn't exist already.
@@ -343,11 +772,14 @@ public class RConnection extends REngine {
 		{ rq[ic + sl + 8] = 0; ic++; }
 	    RTalk.setHdr(RTalk.DT_STRING, sl, rq, 0);
 	    RTalk.setHdr(RTalk.DT_STRING, cl, rq, sl + 4);
+	    startCall();
 	    RPacket rp = rt.request(RTalk.CMD_setSEXP, rq);
 	    if (rp !=null && rp.isOk()) return;
-	    throw new RserveException(this, "assign failed", rp);
+	    throw failed("assign failed", rp);
 	} catch(java.io.UnsupportedEncodingException e) {
 	    throw new RserveException(this, "unsupported encoding in assign(String,String)", e);
+	} finally {
+	    endCall();
 	}
     }
 
@@ -357,7 +789,15 @@ public class RConnection extends REngine {
 	if (!isOCAP)
 	    throw new RserveException(this, "callOCAP is only available in OCAP mode");
 
-	RPacket rp = rt.request(RTalk.CMD_OCcall, call);
+	startCall();
+	try {
+	    return callOCAP(rt.request(RTalk.CMD_OCcall, call));
+	} finally {
+	    endCall();
+	}
+    }
+
+    private REXP callOCAP(RPacket rp) throws RserveException {
 	/* process any OOB messages */
 	while (rp != null && rp.isOOB()) {
 	    REXP payload = parseEvalResponse(rp);
@@ -382,7 +822,7 @@ public class RConnection extends REngine {
 		throw new RserveException(this, "Unsupported OOB command received", rp);
 	}
 	if (rp == null || !rp.isOk())
-	    throw new RserveException(this,"callOCAP failed", rp);
+	    throw failed("callOCAP failed", rp);
 	return parseEvalResponse(rp);
     }
 
@@ -395,24 +835,18 @@ public void assign(String sym, REXP rexp) throws RserveException {
 	    throw new RserveException(this,"Not connected");
 	try {
 		REXPFactory r = new REXPFactory(rexp);
-		int rl = r.getBinaryLength();
-		byte[] symn = sym.getBytes(transferCharset);
-		int sl = symn.length+1;
-		if ((sl&3)>0) sl=(sl&0xfffffc)+4; // make sure the symbol length is divisible by 4
-		byte[] rq=new byte[sl+rl+((rl>0xfffff0)?12:8)];
-		int ic;
-		for(ic=0;ic<symn.length;ic++) rq[ic+4]=symn[ic];
-		while(ic<sl) { rq[ic+4]=0; ic++; }; // pad with 0
-		RTalk.setHdr(RTalk.DT_STRING,sl,rq,0);
-		RTalk.setHdr(RTalk.DT_SEXP,rl,rq,sl+4);
-		r.getBinaryRepresentation(rq,sl+((rl>0xfffff0)?12:8));
-		RPacket rp=rt.request(RTalk.CMD_setSEXP,rq);
+		r.setParallelExecutor(parallelExecutor, parallelThreshold);
+		r.getBinaryLongLength(); // the length pass reports encoding issues before anything is sent
+		startCall();
+		RPacket rp=rt.request(RTalk.CMD_setSEXP,RTalk.stringParameter(sym),r,-1);
 		if (rp!=null && rp.isOk()) return;
-		throw new RserveException(this,"assign failed",rp);
+		throw failed("assign failed",rp);
 	} catch(java.io.UnsupportedEncodingException e) {
 	    throw new RserveException(this, "unsupported encoding in assign(String,REXP)", e);
 	} catch (REXPMismatchException me) {
 	    throw new RserveException(this, "Error creating binary representation: "+me.getMessage(), me);
+	} finally {
+	    endCall();
 	}
 }
 
@@ -423,6 +857,15 @@ public void assign(String sym, REXP rexp) throws RserveException {
 		return new RFileInputStream(rt,fn);
     }
 
+    /** open a file on the Rserve for reading with read-ahead. The file is requested in chunks of the given size and up to <code>depth</code> requests are kept in flight, so large files are transferred without waiting for a round trip per chunk. Other requests can be sent over this connection while the stream is open, but they will have to wait for the chunks in flight first.
+        @param fn file name. should not contain any path delimiters, since Rserve may restrict the access to local working directory.
+        @param chunkSize size of the chunks to request (in bytes)
+        @param depth number of chunks to request ahead, 0 disables read-ahead
+        @return input stream to be used for reading. Note that the stream is read-once only, there is no support for seek or rewind. */
+    public RFileInputStream openFile(String fn, int chunkSize, int depth) throws IOException {
+		return new RFileInputStream(rt,fn,chunkSize,depth);
+    }
+
     /** create a file on the Rserve for writing
         @param fn file name. should not contain any path delimiters, since Rserve may restrict the access to local working directory.
         @return output stream to be used for writinging. Note that the stream is write-once only, there is no support for seek or rewind. */
@@ -430,6 +873,15 @@ public void assign(String sym, REXP rexp) throws RserveException {
         return new RFileOutputStream(rt,fn);
     }
 
+    /** create a file on the Rserve for writing with write-behind. The data is sent in chunks of the given size without waiting for the server to acknowledge them, up to <code>depth</code> chunks can be in flight. Errors are therefore reported by subsequent writes or at the latest by <code>flush()</code> and <code>close()</code>.
+        @param fn file name. should not contain any path delimiters, since Rserve may restrict the access to local working directory.
+        @param chunkSize size of the chunks to send (in bytes)
+        @param depth number of chunks that can be in flight, 0 disables buffering
+        @return output stream to be used for writinging. Note that the stream is write-once only, there is no support for seek or rewind. */
+    public RFileOutputStream createFile(String fn, int chunkSize, int depth) throws IOException {
+        return new RFileOutputStream(rt,fn,chunkSize,depth);
+    }
+
     /** remove a file on the Rserve
         @param fn file name. should not contain any path delimiters, since Rserve may restrict the access to local working directory. */
     public void removeFile(String fn) throws RserveException {
@@ -580,32 +1032,63 @@ public void assign(String sym, REXP rexp) throws RserveException {
     
 //========= REngine interface API
 
+/** parses a text into an expression vector on the server
+@param text text to parse
+@param resolve resolve the resulting expression vector (<code>true</code>) or keep it on the server and return a reference (<code>false</code>), see {@link #createReference}
+@return parsed expression */
 public REXP parse(String text, boolean resolve) throws REngineException {
-	throw new REngineException(this, "Rserve doesn't support separate parsing step.");
+	if (!connected || rt==null)
+		throw new RserveException(this, "Not connected");
+	return evalHandle(new REXPString(text), MODE_PARSE, null, resolve);
 }
 
+/** evaluates an expression. If <code>where</code> is <code>null</code> and <code>resolve</code> is <code>true</code> this is the same as {@link #eval(String)} with an expression sent as REXP. Otherwise the expression is evaluated using the registry of server-side objects (see {@link #createReference}): in the given environment and/or with the result kept on the server and a reference returned. References and environments of this connection in the expression are replaced by their values on the server, so only resolved values are transferred.
+@param what expression to evaluate
+@param where environment to evaluate in (an environment or a reference to one obtained from this connection) or <code>null</code> for the global environment
+@param resolve if <code>true</code> the result is returned, otherwise a reference to it
+@return result or a reference. Environments are returned as {@link REXPEnvironment} if the expression is evaluated using the registry (i.e. unless <code>where</code> is <code>null</code>, <code>resolve</code> is <code>true</code> and there are no references in the expression) */
 public REXP eval(REXP what, REXP where, boolean resolve) throws REngineException {
 	if (!connected || rt==null)
 		throw new RserveException(this, "Not connected");
-	if (where != null)
-		throw new REngineException(this, "Rserve doesn't support environments other than .GlobalEnv");
+	String h = handleOf(what);
+	if (h != null && !(what instanceof REXPEnvironment)) /* the referenced object is evaluated (e.g. a parsed expression) */
+		return evalHandle(new REXPString(h), MODE_REF, where, resolve);
+	REXP x = substituteReferences(what);
+	if (where == null && resolve && x == what)
+		return evalSEXP(what, true);
+	return evalHandle(x, MODE_EXPR, where, resolve);
+}
+
+/** sends an expression with <code>CMD_eval</code> (or <code>CMD_voidEval</code>) */
+REXP evalSEXP(REXP what, boolean resolve) throws RserveException {
 	try {
 		REXPFactory r = new REXPFactory(what);
-		int rl = r.getBinaryLength();
-		byte[] rq = new byte[rl + ((rl > 0xfffff0) ? 8 : 4)];
-		RTalk.setHdr(RTalk.DT_SEXP, rl, rq, 0);
-		r.getBinaryRepresentation(rq, ((rl > 0xfffff0) ? 8 : 4));
-		RPacket rp = rt.request(resolve ? RTalk.CMD_eval : RTalk.CMD_voidEval, rq);
+		r.setParallelExecutor(parallelExecutor, parallelThreshold);
+		r.getBinaryLongLength(); // the length pass reports encoding issues before anything is sent
+		startCall();
+		RPacket rp = rt.request(resolve ? RTalk.CMD_eval : RTalk.CMD_voidEval, null, r, resolve ? evalStreamThreshold() : -1);
 		if (rp != null && rp.isOk())
-			return parseEvalResponse(rp);
-		throw new RserveException(this,"eval failed", rp);
+			return resolve ? parseEvalResponse(rp) : null; /* voidEval responses have no content */
+		throw failed("eval failed", rp);
 	} catch (REXPMismatchException me) {
 		throw new RserveException(this, "Error creating binary representation: " + me.getMessage(), me);
+	} finally {
+		endCall();
 	}
 }
 
 public REXP parseAndEval(String text, REXP where, boolean resolve) throws REngineException {
-	if (where!=null) throw new REngineException(this, "Rserve doesn't support environments other than .GlobalEnv");
+	if (getParseCacheSize() > 0)
+		try {
+			return eval(parseCached(text), where, resolve);
+		} catch (REXPMismatchException me) {
+			throw new REngineException(this, me.getMessage(), me);
+		}
+	if (where != null || !resolve) {
+		if (!connected || rt==null)
+			throw new RserveException(this, "Not connected");
+		return evalHandle(new REXPString(text), MODE_TEXT, where, resolve);
+	}
 	try {
 		return eval(text);
 	} catch (RserveException re) {
@@ -615,10 +1098,20 @@ public REXP parseAndEval(String text, REXP where, boolean resolve) throws REngin
 
 /** assign into an environment
 @param symbol symbol name
-@param value value to assign
-@param env environment to assign to */
+@param value value to assign, if it is a reference of this connection the referenced object is assigned
+@param env environment to assign to (an environment or a reference to one obtained from this connection) or <code>null</code> for the global environment */
 public void assign(String symbol, REXP value, REXP env) throws REngineException {
-	if (env!=null) throw new REngineException(this, "Rserve doesn't support environments other than .GlobalEnv");
+	String h = handleOf(value);
+	if (env != null || h != null) {
+		if (!connected || rt==null)
+			throw new RserveException(this, "Not connected");
+		String e = environmentHandle(env);
+		installReferences();
+		REXP d = releasedHandles();
+		evalDropping(REXP.asCall(".REngine.assign", new REXP[] { new REXPString(symbol), (h == null) ? value : new REXPString(h),
+								 (e == null) ? (REXP) new REXPNull() : new REXPString(e), d, new REXPLogical(h != null) }), d, false);
+		return;
+	}
 	try {
 		assign(symbol, value);
 	} catch (RserveException re) {
@@ -628,39 +1121,188 @@ public void assign(String symbol, REXP value, REXP env) throws REngineException
 
 /** get a value from an environment
 @param symbol symbol name
-@param env environment
+@param env environment (see {@link #eval(REXP,REXP,boolean)})
 @param resolve resolve the resulting REXP or just return a reference		
 @return value */
 public REXP get(String symbol, REXP env, boolean resolve) throws REngineException {
-	if (!resolve) throw new REngineException(this, "Rserve doesn't support references");
-	try {
-		return eval(new REXPSymbol(symbol), env, true);
-	} catch (RserveException re) {
-		throw new REngineException(this, re.getMessage());
-	}
+	return eval(new REXPSymbol(symbol), env, resolve);
 }
 
 /** fetch the contents of the given reference. The resulting REXP may never be REXPReference.
 @param ref reference to resolve
-@return resolved reference */
+@return resolved reference (environments are returned as {@link REXPEnvironment}) */
 public REXP resolveReference(REXP ref) throws REngineException {
-	throw new REngineException(this, "Rserve doesn't support references");
+	if (ref instanceof REXPEnvironment && handleOf(ref) != null)
+		return ref;
+	if (handleOf(ref) == null)
+		throw new REngineException(this, "the object is not a reference of this connection");
+	return evalHandle(substituteReferences(ref), MODE_EXPR, null, true);
 }
-	
-	public REXP createReference(REXP ref) throws REngineException {
-		throw new REngineException(this, "Rserve doesn't support references");
-	}
-	public void finalizeReference(REXP ref) throws REngineException {
-		throw new REngineException(this, "Rserve doesn't support references");
-	}
-	
+
+/** pushes a value into the registry of server-side objects of this connection and returns a reference to it. The registry is kept in the R session (as <code>.REngine.refs</code> in the base environment) and its entries are removed once the references are collected (see {@link #releaseReferences}).
+@param ref value (if it already is a reference of this connection it is returned as-is)
+@return reference */
+public REXP createReference(REXP ref) throws REngineException {
+	if (handleOf(ref) != null)
+		return ref;
+	if (!connected || rt==null)
+		throw new RserveException(this, "Not connected");
+	installReferences();
+	long h = newHandle();
+	REXP d = releasedHandles();
+	evalDropping(REXP.asCall(".REngine.put", new REXP[] { new REXPString(handleName(h)), (ref == null) ? new REXPNull() : ref, d }), d, false);
+	return new REXPReference(this, Long.valueOf(h));
+}
+
+/** queues the handle of a reference for removal from the registry, this is called by the finalizer of {@link REXPReference}. The handles are removed in batches with the next request that uses the registry or by {@link #releaseReferences}.
+@param ref reference */
+public void finalizeReference(REXP ref) throws REngineException {
+	if (ref instanceof REXPReference && ((REXPReference) ref).getEngine() == this && ((REXPReference) ref).getHandle() instanceof Long)
+		releaseHandle(((Long) ((REXPReference) ref).getHandle()).longValue());
+}
+
+/** removes the entries of all references and environments which have been collected from the registry of server-side objects. This happens automatically with the next request that uses the registry, so it is only needed if objects of released references are to be freed before that.
+@return number of released entries */
+public int releaseReferences() throws RserveException {
+	REXP d = releasedHandles();
+	int n = ((REXPString) d).length();
+	if (n > 0 && refsInstalled)
+		evalDropping(REXP.asCall(".REngine.drop", new REXP[] { d }), d, false);
+	return n;
+}
+
 public REXP getParentEnvironment(REXP env, boolean resolve) throws REngineException {
-	throw new REngineException(this, "Rserve doesn't support environments other than .GlobalEnv");
+	environmentHandle(env);
+	if (!connected || rt==null)
+		throw new RserveException(this, "Not connected");
+	return evalHandle(substituteReferences(REXP.asCall("parent.env", new REXP[] { (env == null) ? REXP.asCall("globalenv", new REXP[0]) : env })), MODE_EXPR, null, resolve);
 }
 
 public REXP newEnvironment(REXP parent, boolean resolve) throws REngineException {
-	throw new REngineException(this, "Rserve doesn't support environments other than .GlobalEnv");
+	environmentHandle(parent);
+	if (!connected || rt==null)
+		throw new RserveException(this, "Not connected");
+	return evalHandle(substituteReferences(REXP.asCall("new.env", new REXP[] { new REXPLogical(true), (parent == null) ? REXP.asCall("globalenv", new REXP[0]) : parent })), MODE_EXPR, null, resolve);
+}
+
+public boolean supportsReferences() { return true; }
+
+public boolean supportsEnvironments() { return true; }
+
+/** evaluates an expression with the functions of the registry, see {@link #eval(REXP,REXP,boolean)}
+@param x expression with references substituted, the text to parse or the name of a handle
+@param mode one of {@link #MODE_EXPR}, {@link #MODE_TEXT}, {@link #MODE_REF} or {@link #MODE_PARSE} */
+REXP evalHandle(REXP x, int mode, REXP where, boolean resolve) throws REngineException {
+	String e = environmentHandle(where);
+	installReferences();
+	long h = newHandle();
+	REXP d = releasedHandles();
+	REXP r = evalDropping(REXP.asCall(".REngine.eval", new REXP[] { (x == null) ? new REXPNull() : x, (e == null) ? (REXP) new REXPNull() : new REXPString(e),
+								new REXPString(handleName(h)), new REXPLogical(!resolve), d, new REXPInteger(mode) }), d, resolve);
+	if (!resolve)
+		return new REXPReference(this, Long.valueOf(h));
+	if (r instanceof REXPSymbol && ENV_MARKER.equals(((REXPSymbol) r).asString()))
+		return new REXPEnvironment(this, new RHandle(this, h));
+	return r;
+}
+
+/** defines the registry and its functions on the server if that hasn't happened yet */
+void installReferences() throws RserveException {
+	if (!refsInstalled) {
+		voidEval(REFS_SETUP);
+		refsInstalled = true;
+	}
 }
 
+/** allocates the id of a new handle */
+synchronized long newHandle() {
+	return ++lastHandle;
 }
 
+/** returns the name of the entry of a handle in the registry */
+static String handleName(long h) {
+	return "h" + h;
+}
+
+/** returns the name of the registry entry of a reference or environment of this connection
+@return name or <code>null</code> if <code>x</code> is neither */
+String handleOf(REXP x) {
+	if (x instanceof REXPReference && ((REXPReference) x).getEngine() == this && ((REXPReference) x).getHandle() instanceof Long)
+		return handleName(((Long) ((REXPReference) x).getHandle()).longValue());
+	if (x instanceof REXPEnvironment && ((REXPEnvironment) x).getHandle() instanceof RHandle && ((RHandle) ((REXPEnvironment) x).getHandle()).connection == this)
+		return handleName(((RHandle) ((REXPEnvironment) x).getHandle()).id);
+	return null;
+}
+
+/** returns the name of the registry entry of an environment argument
+@return name or <code>null</code> for the global environment */
+String environmentHandle(REXP env) throws REngineException {
+	if (env == null) return null;
+	String h = handleOf(env);
+	if (h == null)
+		throw new REngineException(this, "the environment is neither an environment nor a reference obtained from this connection");
+	return h;
+}
+
+/** queues a handle for removal from the registry */
+void releaseHandle(long h) {
+	synchronized (releasedHandles) {
+		releasedHandles.add(handleName(h));
+	}
+}
+
+/** takes the queued handles for removal by the next request
+@return names of the entries */
+REXP releasedHandles() {
+	synchronized (releasedHandles) {
+		String[] d = (String[]) releasedHandles.toArray(new String[releasedHandles.size()]);
+		releasedHandles.clear();
+		return new REXPString(d);
+	}
+}
+
+/** evaluates a call of a registry function that removes the handles taken by {@link #releasedHandles()}. If the request fails the handles are queued again, so they are removed by a later request (removing them twice is harmless). */
+REXP evalDropping(REXP call, REXP handles, boolean resolve) throws RserveException {
+	try {
+		return evalSEXP(call, resolve);
+	} catch (RserveException e) {
+		try {
+			String[] d = handles.asStrings();
+			synchronized (releasedHandles) {
+				for (int i = 0; i < d.length; i++)
+					releasedHandles.add(d[i]);
+			}
+		} catch (REXPMismatchException me) { }
+		throw e;
+	}
+}
+
+/** replaces references and environments of this connection in (nested) calls by calls fetching them from the registry
+@return <code>x</code> itself if there are none, otherwise a copy */
+REXP substituteReferences(REXP x) throws REngineException {
+	String h = handleOf(x);
+	if (h != null)
+		return REXP.asCall(".REngine.ref", new REXP[] { new REXPString(h) });
+	if (!(x instanceof REXPLanguage))
+		return x;
+	try {
+		RList l = x.asList();
+		REXP[] e = null;
+		for (int i = 0; i < l.size(); i++) {
+			REXP c = l.at(i), sc = substituteReferences(c);
+			if (sc != c) {
+				if (e == null) {
+					e = new REXP[l.size()];
+					for (int j = 0; j < e.length; j++) e[j] = l.at(j);
+				}
+				e[i] = sc;
+			}
+		}
+		if (e == null) return x;
+		return new REXPLanguage(l.isNamed() ? new RList(e, l.keys()) : new RList(e), x._attr());
+	} catch (REXPMismatchException me) {
+		throw new REngineException(this, "cannot substitute references: " + me.getMessage());
+	}
+}
+
+}
@@ -0,0 +1,305 @@
+package org.rosuda.REngine.Rserve;
+
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/** <b>RConnectionPool</b> is a thread-safe pool of {@link RConnection}s to one Rserve.
+    A single {@link RConnection} must only be used by one thread at a time, so multi-threaded
+    applications borrow a connection for each unit of work and release it afterwards:
+    <pre>
+    RConnectionPool pool = new RConnectionPool("localhost", 6311, 8);
+    RConnection c = pool.borrow(5000);
+    try {
+        double x = c.eval("mean(rnorm(100))").asDouble();
+    } finally {
+        pool.release(c);
+    }
+    </pre>
+    The number of connections (borrowed, idle or being created) is bounded by the pool size.
+    Idle connections are re-used most-recently-released first and are checked for liveness
+    before they are handed out. Connections that fail the check are discarded and replaced
+    by new ones. If a connection is broken while it is borrowed it should be passed to
+    {@link #invalidate} instead of {@link #release}.
+    <p>
+    Borrowed connections can be detached using {@link #detach(RConnection)} which releases their
+    slot in the pool, and the resulting {@link RSession} can later be resumed into the pool
+    with {@link #attach(RSession, long)}.
+    @version $Id$
+*/
+public class RConnectionPool {
+    /** idle connection along with the time it was released */
+    static class Idle {
+	RConnection c;
+	long since;
+
+	Idle(RConnection c, long since) {
+	    this.c = c;
+	    this.since = since;
+	}
+    }
+
+    String host;
+    int port;
+    int maxSize;
+    String user, pwd;
+
+    /** permits for connections that can be handed out, i.e. maxSize minus borrowed connections */
+    Semaphore slots;
+    /** idle connections, most recently released last */
+    LinkedList idle = new LinkedList();
+    /** connections that are currently borrowed (guarded by <code>idle</code>) */
+    HashSet borrowed = new HashSet();
+
+    volatile boolean closed = false;
+    boolean resetOnRelease = false;
+    long validateAfterIdle = 0;
+
+    /** creates a new pool of connections to the given Rserve. No connections are created until they are needed.
+	@param host host name/IP
+	@param port TCP port
+	@param maxSize maximal number of connections in the pool */
+    public RConnectionPool(String host, int port, int maxSize) {
+	if (maxSize < 1)
+	    throw new IllegalArgumentException("pool size must be positive");
+	this.host = host;
+	this.port = port;
+	this.maxSize = maxSize;
+	slots = new Semaphore(maxSize, true);
+    }
+
+    /** creates a new pool of connections to the local Rserve on the default port (6311)
+	@param maxSize maximal number of connections in the pool */
+    public RConnectionPool(int maxSize) {
+	this("127.0.0.1", 6311, maxSize);
+    }
+
+    /** sets credentials that will be used to log into new connections if the server requires authentication
+	@param user user name
+	@param pwd password */
+    public void setLogin(String user, String pwd) {
+	this.user = user;
+	this.pwd = pwd;
+    }
+
+    /** if enabled, all objects in the global environment are removed when a connection is released back into the pool. If that fails, the connection is discarded. The default is <code>false</code>.
+	@param reset <code>true</code> to reset the global environment on release */
+    public void setResetOnRelease(boolean reset) {
+	resetOnRelease = reset;
+    }
+
+    /** sets the time after which idle connections are checked for liveness before they are handed out. The check costs one round trip so busy pools may want to skip it for connections that have been used recently. The default is 0 which means that connections are always checked.
+	@param ms idle time in milliseconds */
+    public void setValidateAfterIdle(long ms) {
+	validateAfterIdle = ms;
+    }
+
+    /** returns the maximal number of connections in the pool
+	@return pool size */
+    public int getMaxSize() {
+	return maxSize;
+    }
+
+    /** returns the number of connections currently borrowed from the pool
+	@return number of borrowed connections */
+    public int getActiveCount() {
+	synchronized (idle) {
+	    return borrowed.size();
+	}
+    }
+
+    /** returns the number of idle connections in the pool
+	@return number of idle connections */
+    public int getIdleCount() {
+	synchronized (idle) {
+	    return idle.size();
+	}
+    }
+
+    /** borrows a connection from the pool, waiting as long as necessary for one to become available
+	@return connection which must be returned using {@link #release} or {@link #invalidate} */
+    public RConnection borrow() throws RserveException {
+	return borrow(-1);
+    }
+
+    /** borrows a connection from the pool
+	@param timeout maximal time to wait for a connection to become available (in milliseconds), negative value means no limit
+	@return connection which must be returned using {@link #release} or {@link #invalidate}
+	@throws RserveException if no connection became available within the timeout, the pool is closed or a new connection could not be created */
+    public RConnection borrow(long timeout) throws RserveException {
+	acquire(timeout);
+	try {
+	    RConnection c = pollIdle();
+	    if (c == null)
+		c = createConnection();
+	    synchronized (idle) {
+		if (closed) {
+		    c.close();
+		    throw new RserveException(null, "Connection pool is closed");
+		}
+		borrowed.add(c);
+	    }
+	    return c;
+	} catch (RserveException e) {
+	    slots.release();
+	    throw e;
+	} catch (RuntimeException e) {
+	    slots.release();
+	    throw e;
+	}
+    }
+
+    /** returns a borrowed connection into the pool. If the connection is not alive anymore, it is discarded.
+	@param c connection obtained from {@link #borrow} */
+    public void release(RConnection c) {
+	if (!remove(c))
+	    return;
+	boolean keep = c.isConnected();
+	if (keep && resetOnRelease) {
+	    try {
+		c.voidEval("rm(list=ls(envir=.GlobalEnv, all.names=TRUE), envir=.GlobalEnv)");
+	    } catch (RserveException e) {
+		keep = false;
+	    }
+	}
+	synchronized (idle) {
+	    if (keep && !closed)
+		idle.addLast(new Idle(c, System.currentTimeMillis()));
+	    else
+		c.close();
+	}
+	slots.release();
+    }
+
+    /** returns a borrowed connection that is known to be broken (or in an unknown state), it is closed and removed from the pool
+	@param c connection obtained from {@link #borrow} */
+    public void invalidate(RConnection c) {
+	if (!remove(c))
+	    return;
+	c.close();
+	slots.release();
+    }
+
+    /** detaches a borrowed connection (see {@link RConnection#detach()}). The connection is closed and its slot in the pool is freed.
+	@param c connection obtained from {@link #borrow}
+	@return session that can be resumed using {@link #attach(RSession, long)} or {@link RSession#attach()} */
+    public RSession detach(RConnection c) throws RserveException {
+	if (!remove(c))
+	    throw new RserveException(c, "Connection does not belong to this pool");
+	try {
+	    return c.detach();
+	} catch (RserveException e) {
+	    c.close();
+	    throw e;
+	} finally {
+	    slots.release();
+	}
+    }
+
+    /** resumes a detached session as a borrowed connection of this pool. The connection must be returned using {@link #release} or {@link #invalidate} as any other borrowed connection. Note that the session may run on a different host or port than the other connections of the pool and that released sessions are re-used for other requests.
+	@param session detached session
+	@param timeout maximal time to wait for a free slot (in milliseconds), negative value means no limit
+	@return connection to the resumed session */
+    public RConnection attach(RSession session, long timeout) throws RserveException {
+	acquire(timeout);
+	try {
+	    RConnection c = session.attach();
+	    synchronized (idle) {
+		if (closed) {
+		    c.close();
+		    throw new RserveException(null, "Connection pool is closed");
+		}
+		borrowed.add(c);
+	    }
+	    return c;
+	} catch (RserveException e) {
+	    slots.release();
+	    throw e;
+	}
+    }
+
+    /** closes all idle connections and prevents any new connections from being borrowed. Connections that are currently borrowed are closed when they are released. */
+    public void close() {
+	synchronized (idle) {
+	    closed = true;
+	    while (!idle.isEmpty())
+		((Idle) idle.removeFirst()).c.close();
+	}
+    }
+
+    /** creates a new connection. Subclasses can override this method to customize connections (e.g. by using a different constructor or setting options).
+	@return new connection */
+    protected RConnection createConnection() throws RserveException {
+	RConnection c = new RConnection(host, port);
+	if (c.needLogin()) {
+	    if (user == null) {
+		c.close();
+		throw new RserveException(c, "Server requires authentication, but no credentials were supplied, use setLogin()");
+	    }
+	    try {
+		c.login(user, pwd);
+	    } catch (RserveException e) {
+		c.close();
+		throw e;
+	    }
+	}
+	return c;
+    }
+
+    /** checks whether an idle connection can be handed out. The default implementation evaluates <code>NULL</code> which costs one round trip.
+	@param c connection to check
+	@return <code>true</code> if the connection is usable */
+    protected boolean validate(RConnection c) {
+	if (!c.isConnected())
+	    return false;
+	try {
+	    c.voidEval("NULL");
+	    return true;
+	} catch (RserveException e) {
+	    return false;
+	}
+    }
+
+    /** waits for a free slot */
+    void acquire(long timeout) throws RserveException {
+	if (closed)
+	    throw new RserveException(null, "Connection pool is closed");
+	try {
+	    if (timeout < 0)
+		slots.acquire();
+	    else if (!slots.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+		throw new RserveException(null, "Timeout while waiting for a connection from the pool");
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new RserveException(null, "Interrupted while waiting for a connection from the pool", e);
+	}
+    }
+
+    /** takes the most recently used idle connection that passes the liveness check, discarding the ones that don't
+	@return connection or <code>null</code> if there is no usable idle connection */
+    RConnection pollIdle() {
+	while (true) {
+	    Idle e;
+	    synchronized (idle) {
+		if (idle.isEmpty())
+		    return null;
+		e = (Idle) idle.removeLast();
+	    }
+	    if (System.currentTimeMillis() - e.since < validateAfterIdle ? e.c.isConnected() : validate(e.c))
+		return e.c;
+	    e.c.close();
+	}
+    }
+
+    /** removes a connection from the set of borrowed connections
+	@return <code>true</code> if the connection was borrowed from this pool */
+    boolean remove(RConnection c) {
+	synchronized (idle) {
+	    return borrowed.remove(c);
+	}
+    }
+}
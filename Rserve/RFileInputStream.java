@@ -4,6 +4,7 @@ package org.rosuda.REngine.Rserve;
 // Copyright (C) 2004 Simon Urbanek
 // --- for licensing information see LICENSE file in the original JRclient distribution ---
 
+import java.util.*;
 import java.io.*;
 import org.rosuda.REngine.*;
 import org.rosuda.REngine.Rserve.protocol.*;
@@ -13,9 +14,14 @@ import org.rosuda.REngine.Rserve.protocol.*;
     a {@link FileInputStream}. Currently mark and seek is not supported.
     The current implementation is also "one-shot" only, that means the file
     can be read only once.
+    <p>
+    Streams created with a read-ahead depth (see {@link RConnection#openFile(String,int,int)})
+    keep several read requests of a fixed chunk size in flight, so large files are transferred
+    at the speed of the network rather than one round trip per chunk. Any other request sent over
+    the same connection while the stream is open first collects the outstanding chunks.
     @version $Id$
 */
-public class RFileInputStream extends InputStream {
+public class RFileInputStream extends InputStream implements RTalk.PendingResponses {
     /** RTalk class to use for communication with the Rserve */
     RTalk rt;
     /** set to <code>true</code> when {@link #close} was called.
@@ -26,6 +32,22 @@ public class RFileInputStream extends InputStream {
 	the first time remore fread returns OK and 0 bytes */
     boolean eof;
 
+    /** size of the chunks requested ahead */
+    int chunkSize;
+    /** maximal number of read requests in flight, 0 means no read-ahead */
+    int depth;
+    /** number of read requests in flight */
+    int inFlight;
+    /** chunks that have been received but not consumed yet (the first one is <code>chunk</code>) */
+    LinkedList chunks = new LinkedList();
+    /** chunk being consumed and the position in it */
+    byte[] chunk;
+    int pos;
+    /** parameter of the read request */
+    byte[] readPar;
+    /** single-byte buffer for unbuffered {@link #read()} */
+    byte[] one;
+
     /** tries to open file on the R server, using specified {@link RTalk} object
 	and filename. Be aware that the filename has to be specified in host
 	format (which is usually unix). In general you should not use directories
@@ -34,23 +56,36 @@ public class RFileInputStream extends InputStream {
 	purposes. Therefore only filenames without path specification are considered
 	valid, the behavior in respect to absolute paths in filenames is undefined. */
     RFileInputStream(RTalk rti, String fn) throws IOException {
+	this(rti, fn, 0, 0);
+    }
+
+    /** same as {@link #RFileInputStream(RTalk,String)} but the file is read in chunks of the given size with up to <code>depth</code> read requests in flight */
+    RFileInputStream(RTalk rti, String fn, int chunkSize, int depth) throws IOException {
 	rt=rti;
 	RPacket rp=rt.request(RTalk.CMD_openFile,fn);
 	if (rp==null || !rp.isOk())
 	    throw new IOException((rp==null)?"Connection to Rserve failed":("Request return code: "+rp.getStat()));
 	closed=false; eof=false;
+	if (depth > 0 && chunkSize > 0) {
+	    this.chunkSize = chunkSize;
+	    this.depth = depth;
+	    readPar = new byte[8];
+	    RTalk.setHdr(RTalk.DT_INT, 4, readPar, 0);
+	    RTalk.setInt(chunkSize, readPar, 4);
+	}
     }
 
-    /** reads one byte from the file. This function should be avoided, since
-	{@link RFileInputStream} provides no buffering. This means that each
-	call to this function leads to a complete packet exchange between
+    /** reads one byte from the file. This function should be avoided on streams without
+	read-ahead, since each call leads to a complete packet exchange between
 	the server and the client. Use {@link #read(byte[],int,int)} instead
-	whenever possible. In fact this function calls <code>#read(b,0,1)</code>.
+	whenever possible.
 	@return -1 on any failure, or the acquired byte (0..255) on success */
     public int read() throws IOException {
-	byte[] b=new byte[1];
-	if (read(b,0,1)<1) return -1;
-	return b[0];
+	if (depth > 0 && chunk != null && pos < chunk.length)
+	    return chunk[pos++] & 255;
+	if (one == null) one = new byte[1];
+	if (read(one,0,1)<1) return -1;
+	return one[0] & 255;
     }
 
     /** Reads specified number of bytes (or less) from the remote file.
@@ -61,6 +96,14 @@ public class RFileInputStream extends InputStream {
     */
     public int read(byte[] b, int off, int len) throws IOException {
 	if (closed) throw new IOException("File is not open");
+	if (depth > 0) {
+	    if (!nextChunk()) return -1;
+	    int n = chunk.length - pos;
+	    if (n > len) n = len;
+	    System.arraycopy(chunk, pos, b, off, n);
+	    pos += n;
+	    return n;
+	}
 	if (eof) return -1;
 	RPacket rp=rt.request(RTalk.CMD_readFile,len);
 	if (rp==null || !rp.isOk())
@@ -70,9 +113,100 @@ public class RFileInputStream extends InputStream {
 	    eof=true;
 	    return -1;
 	};
-	int i=0;
-	while(i<rd.length) { b[off+i]=rd[i]; i++; };
-	return rd.length;
+	System.arraycopy(rd, 0, b, off, rp.getLength());
+	return rp.getLength();
+    }
+
+    /** returns the number of bytes that have already been received and can be read without blocking */
+    public int available() throws IOException {
+	if (depth == 0 || chunk == null) return 0;
+	int n = chunk.length - pos;
+	for (int i = 1; i < chunks.size(); i++)
+	    n += ((byte[]) chunks.get(i)).length;
+	return n;
+    }
+
+    /** reads the rest of the file and writes it into the given stream. On streams with read-ahead the chunks are passed to the stream directly without copying.
+	@param out stream to write to
+	@return number of bytes transferred */
+    public long transferTo(OutputStream out) throws IOException {
+	if (closed) throw new IOException("File is not open");
+	long total = 0;
+	if (depth > 0) {
+	    while (nextChunk()) {
+		out.write(chunk, pos, chunk.length - pos);
+		total += chunk.length - pos;
+		pos = chunk.length;
+	    }
+	    return total;
+	}
+	byte[] buf = new byte[65536];
+	int n;
+	while ((n = read(buf, 0, buf.length)) > 0) {
+	    out.write(buf, 0, n);
+	    total += n;
+	}
+	return total;
+    }
+
+    /** makes sure that <code>chunk</code> has unread content, requesting more chunks as needed
+	@return <code>false</code> if the end of the file was reached */
+    boolean nextChunk() throws IOException {
+	while (chunk == null || pos >= chunk.length) {
+	    if (chunk != null) {
+		chunks.removeFirst();
+		chunk = null;
+	    }
+	    if (chunks.isEmpty()) {
+		if (eof) return false;
+		requestAhead();
+		receive();
+	    }
+	    if (!chunks.isEmpty()) {
+		chunk = (byte[]) chunks.getFirst();
+		pos = 0;
+	    }
+	}
+	if (!eof)
+	    requestAhead();
+	return true;
+    }
+
+    /** sends read requests until <code>depth</code> requests are in flight */
+    void requestAhead() throws IOException {
+	if (inFlight >= depth) return;
+	/* if we have requests in flight, nobody else has sent anything since, so we are the owner of
+	   the pending responses and must not drain them - otherwise send() drains anyone else's */
+	if (inFlight > 0)
+	    rt.setPendingResponses(null);
+	while (inFlight < depth) {
+	    rt.send(RTalk.CMD_readFile, null, readPar, 0, readPar.length);
+	    inFlight++;
+	}
+	rt.setPendingResponses(this);
+    }
+
+    /** receives one response of the requests in flight */
+    void receive() throws IOException {
+	RPacket rp = rt.response();
+	inFlight--;
+	if (inFlight == 0)
+	    rt.setPendingResponses(null);
+	if (rp==null || !rp.isOk()) {
+	    eof = true;
+	    throw new IOException((rp==null)?"Connection to Rserve failed":("Request return code: "+rp.getStat()));
+	}
+	byte[] rd = rp.toByteArray(); // chunks are kept, so the content must not be a view of the receive buffer
+	if (rd == null || rd.length == 0)
+	    eof = true;
+	else if (!eof)
+	    chunks.addLast(rd);
+    }
+
+    /** reads all responses of the requests in flight, this is called before any other request is sent over the same connection */
+    public void drain() throws IOException {
+	while (inFlight > 0)
+	    receive();
     }
 
     /** close stream - is not related to the actual RConnection, calling
@@ -83,5 +217,7 @@ public class RFileInputStream extends InputStream {
 	if (rp==null || !rp.isOk())
 	    throw new IOException((rp==null)?"Connection to Rserve failed":("Request return code: "+rp.getStat()));
 	closed=true;
+	chunks.clear();
+	chunk=null;
     }
 }
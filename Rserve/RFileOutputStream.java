@@ -18,10 +18,15 @@ from the client to <b>Rserve</b> server. It is used very much like
 a {@link FileOutputStream}. Currently mark and seek is not supported.
 The current implementation is also "one-shot" only, that means the file
 can be written only once.
+<p>
+Streams created with a write-behind depth (see {@link RConnection#createFile(String,int,int)})
+collect the data in chunks of a fixed size and send them without waiting for the server to
+acknowledge the previous chunks (up to the given number of chunks in flight). Errors reported
+by the server are therefore only thrown by a subsequent write, {@link #sync} or {@link #close}.
 @version $Id$
 */
 
-public class RFileOutputStream extends OutputStream {
+public class RFileOutputStream extends OutputStream implements RTalk.PendingResponses {
     /** RTalk class to use for communication with the Rserve */
     RTalk rt;
     /** set to <code>true</code> when {@link #close} was called.
@@ -29,6 +34,20 @@ public class RFileOutputStream extends OutputStream {
 {@link IOException} or error result */
     boolean closed;
 
+    /** size of the chunks sent to the server */
+    int chunkSize;
+    /** maximal number of write requests in flight, 0 means no write-behind */
+    int depth;
+    /** number of write requests in flight */
+    int inFlight;
+    /** data not sent yet */
+    byte[] buf;
+    int bufLen;
+    /** parameter header for full chunks */
+    byte[] chunkHdr;
+    /** error reported by the server for a request in flight */
+    IOException error;
+
     /** tries to create a file on the R server, using specified {@link RTalk} object
         and filename. Be aware that the filename has to be specified in host
         format (which is usually unix). In general you should not use directories
@@ -40,22 +59,41 @@ public class RFileOutputStream extends OutputStream {
         @param fb filename of the file to create (existing file will be overwritten)
         */
     RFileOutputStream(RTalk rti, String fn) throws IOException {
+        this(rti, fn, 0, 0);
+    }
+
+    /** same as {@link #RFileOutputStream(RTalk,String)} but the data is sent in chunks of the given size with up to <code>depth</code> chunks in flight */
+    RFileOutputStream(RTalk rti, String fn, int chunkSize, int depth) throws IOException {
         rt=rti;
         RPacket rp=rt.request(RTalk.CMD_createFile,fn);
         if (rp==null || !rp.isOk())
             throw new IOException((rp==null)?"Connection to Rserve failed":("Request return code: "+rp.getStat()));
         closed=false;
+        if (depth > 0 && chunkSize > 0) {
+            this.chunkSize = chunkSize;
+            this.depth = depth;
+            buf = new byte[chunkSize];
+            chunkHdr = RTalk.newHdr(RTalk.DT_BYTESTREAM, chunkSize);
+        }
     }
 
-    /** writes one byte to the file. This function should be avoided, since
-    {@link RFileOutputStream} provides no buffering. This means that each
-        call to this function leads to a complete packet exchange between
+    /** writes one byte to the file. This function should be avoided on streams without
+        write-behind, since each call leads to a complete packet exchange between
         the server and the client. Use {@link #write(byte[])} instead
-        whenever possible. In fact this function calls <code>write(b,0,1)</code>.
+        whenever possible.
         @param b byte to write
         */
     public void write(int b) throws IOException {
-        byte[] ba=new byte[1];
+        if (depth > 0) {
+            if (closed) throw new IOException("File is not open");
+            buf[bufLen++] = (byte) b;
+            if (bufLen == chunkSize) {
+                sendChunk(chunkHdr, buf, 0, bufLen);
+                bufLen = 0;
+            }
+            return;
+        }
+        byte[] ba=new byte[] { (byte) b };
         write(ba,0,1);
     }
 
@@ -74,24 +112,101 @@ public class RFileOutputStream extends OutputStream {
     public void write(byte[] b, int off, int len) throws IOException {
         if (closed) throw new IOException("File is not open");
         if (len<0) len=0;
-        boolean isLarge=(len>0xfffff0);
+        if (depth > 0) {
+            while (len > 0) {
+                if (bufLen == 0 && len >= chunkSize) { // send full chunks directly from the caller's buffer
+                    sendChunk(chunkHdr, b, off, chunkSize);
+                    off += chunkSize;
+                    len -= chunkSize;
+                    continue;
+                }
+                int n = chunkSize - bufLen;
+                if (n > len) n = len;
+                System.arraycopy(b, off, buf, bufLen, n);
+                bufLen += n;
+                off += n;
+                len -= n;
+                if (bufLen == chunkSize) {
+                    sendChunk(chunkHdr, buf, 0, bufLen);
+                    bufLen = 0;
+                }
+            }
+            return;
+        }
         byte[] hdr=RTalk.newHdr(RTalk.DT_BYTESTREAM,len);
         RPacket rp=rt.request(RTalk.CMD_writeFile,hdr,b,off,len);
         if (rp==null || !rp.isOk())
             throw new IOException((rp==null)?"Connection to Rserve failed":("Request return code: "+rp.getStat()));
     }
 
+    /** sends a chunk without waiting for the response (unless <code>depth</code> chunks are in flight already) */
+    void sendChunk(byte[] hdr, byte[] b, int off, int len) throws IOException {
+        if (error != null) throw error;
+        while (inFlight >= depth)
+            receive();
+        if (error != null) throw error;
+        /* we own the pending responses if there are any, so they must not be drained by send() */
+        if (inFlight > 0)
+            rt.setPendingResponses(null);
+        rt.send(RTalk.CMD_writeFile, hdr, b, off, len);
+        inFlight++;
+        rt.setPendingResponses(this);
+    }
+
+    /** receives one response of the requests in flight */
+    void receive() throws IOException {
+        RPacket rp = rt.response();
+        inFlight--;
+        if (inFlight == 0)
+            rt.setPendingResponses(null);
+        if (rp == null)
+            throw new IOException("Connection to Rserve failed");
+        if (!rp.isOk() && error == null)
+            error = new IOException("Request return code: "+rp.getStat());
+    }
+
+    /** reads all responses of the requests in flight, this is called before any other request is sent over the same connection */
+    public void drain() throws IOException {
+        while (inFlight > 0)
+            receive();
+    }
+
     /** close stream - is not related to the actual RConnection, calling
         close does not close the RConnection.
         */
     public void close() throws IOException {
+        IOException fe = null;
+        if (depth > 0 && !closed)
+            try {
+                sync();
+            } catch (IOException e) { // the file has to be closed regardless
+                fe = e;
+            }
         RPacket rp=rt.request(RTalk.CMD_closeFile,(byte[])null);
         if (rp==null || !rp.isOk())
             throw new IOException((rp==null)?"Connection to Rserve failed":("Request return code: "+rp.getStat()));
         closed=true;
+        if (fe != null) throw fe;
+    }
+
+    /** sends any buffered data and waits for the server to acknowledge all writes. Note that (as of Rserve 1.8) there is no way to force flush on the remote side. Streams without write-behind don't buffer, so this function is a noop for them.
+        @throws IOException if sending failed or the server reported an error for any write */
+    public void sync() throws IOException {
+        if (depth == 0 || closed) return;
+        if (bufLen > 0) {
+            sendChunk(RTalk.newHdr(RTalk.DT_BYTESTREAM, bufLen), buf, 0, bufLen);
+            bufLen = 0;
+        }
+        drain();
+        if (error != null) throw error;
     }
 
-    /** currently (Rserve 0.3) there is no way to force flush on the remote side, hence this function is noop. Future versions of Rserve may support this feature though. At any rate, it is safe to call it. */
+    /** same as {@link #sync} except that errors are not thrown but kept, so they are thrown by the next write or {@link #close} (like other errors of write-behind streams). This keeps the signature of earlier versions, use {@link #sync} to get the errors right away. Streams without write-behind don't buffer, so this function is a noop for them. */
     public void flush() {
+        try {
+            sync();
+        } catch (IOException e) {
+            if (error == null) error = e;
+        }
     }
 }
@@ -0,0 +1,148 @@
+package org.rosuda.REngine.Rserve;
+
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.rosuda.REngine.*;
+
+/** <b>RFuture</b> is the result of an asynchronous request sent by {@link RAsyncConnection}.
+    The result can be either awaited using {@link #getREXP()} (or the methods of the {@link Future} interface)
+    or processed by a {@link RFuture.Listener} once it arrives. Requests cannot be cancelled once they were
+    submitted, because the server processes them in order.
+    @version $Id$
+*/
+public class RFuture implements Future {
+    /** callback interface for completed requests */
+    public interface Listener {
+	/** called once the request completed (successfully or not). Note that this method is called on the event loop thread
+	    unless the request was already completed when the listener was added, so it must not block. Typically it
+	    passes the result to an executor if any substantial work is to be done.
+	    @param f completed request */
+	void completed(RFuture f);
+    }
+
+    REXP result;
+    RserveException error;
+    boolean done = false;
+    /** listeners to notify on completion, <code>null</code> if there are none */
+    ArrayList listeners;
+
+    RFuture() {
+    }
+
+    /** always returns <code>false</code> since requests cannot be cancelled */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+	return false;
+    }
+
+    /** always returns <code>false</code> since requests cannot be cancelled */
+    public boolean isCancelled() {
+	return false;
+    }
+
+    public synchronized boolean isDone() {
+	return done;
+    }
+
+    /** waits for the request to complete and returns the result (of the class {@link REXP}), or <code>null</code> if the request doesn't produce a result */
+    public Object get() throws InterruptedException, ExecutionException {
+	synchronized (this) {
+	    while (!done)
+		wait();
+	}
+	if (error != null)
+	    throw new ExecutionException(error.getMessage(), error);
+	return result;
+    }
+
+    /** waits at most the given time for the request to complete and returns the result (of the class {@link REXP}), or <code>null</code> if the request doesn't produce a result */
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+	long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+	synchronized (this) {
+	    while (!done) {
+		long left = deadline - System.currentTimeMillis();
+		if (left <= 0)
+		    throw new TimeoutException();
+		wait(left);
+	    }
+	}
+	if (error != null)
+	    throw new ExecutionException(error.getMessage(), error);
+	return result;
+    }
+
+    /** waits for the request to complete and returns the result
+	@return result of the request or <code>null</code> if the request doesn't produce a result
+	@throws RserveException if the request failed or the waiting thread was interrupted */
+    public REXP getREXP() throws RserveException {
+	try {
+	    synchronized (this) {
+		while (!done)
+		    wait();
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new RserveException(null, "Interrupted while waiting for the result", e);
+	}
+	if (error != null)
+	    throw error;
+	return result;
+    }
+
+    /** returns the error if the request failed
+	@return exception describing the failure or <code>null</code> if the request is still running or was successful */
+    public synchronized RserveException getError() {
+	return error;
+    }
+
+    /** adds a listener which will be called when the request completes. If the request is already completed, the listener is called immediately.
+	@param l listener */
+    public void addListener(Listener l) {
+	synchronized (this) {
+	    if (!done) {
+		if (listeners == null)
+		    listeners = new ArrayList();
+		listeners.add(l);
+		return;
+	    }
+	}
+	l.completed(this);
+    }
+
+    /** completes the request successfully */
+    void complete(REXP result) {
+	finish(result, null);
+    }
+
+    /** completes the request with an error */
+    void fail(RserveException error) {
+	finish(null, error);
+    }
+
+    void finish(REXP result, RserveException error) {
+	ArrayList l;
+	synchronized (this) {
+	    if (done)
+		return;
+	    this.result = result;
+	    this.error = error;
+	    done = true;
+	    l = listeners;
+	    listeners = null;
+	    notifyAll();
+	}
+	if (l != null)
+	    for (int i = 0; i < l.size(); i++)
+		try {
+		    ((Listener) l.get(i)).completed(this);
+		} catch (RuntimeException e) { // a broken listener must not take down the event loop
+		    e.printStackTrace();
+		}
+    }
+}
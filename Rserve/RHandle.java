@@ -0,0 +1,30 @@
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+package org.rosuda.REngine.Rserve;
+
+/** handle of an environment kept in the registry of a connection (see {@link RConnection#createReference}), used as the handle of {@link org.rosuda.REngine.REXPEnvironment}. The entry is released once the handle is no longer referenced. References ({@link org.rosuda.REngine.REXPReference}) use the plain handle id as <code>Long</code> instead since they notify the engine themselves. */
+class RHandle {
+    /** connection owning the registry */
+    final RConnection connection;
+    /** id of the entry */
+    final long id;
+
+    RHandle(RConnection connection, long id) {
+	this.connection = connection;
+	this.id = id;
+    }
+
+    protected void finalize() throws Throwable {
+	try {
+	    connection.releaseHandle(id);
+	} finally {
+	    super.finalize();
+	}
+    }
+
+    public String toString() {
+	return RConnection.handleName(id);
+    }
+}
@@ -0,0 +1,122 @@
+package org.rosuda.REngine.Rserve;
+
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** lock-free histogram of non-negative values with logarithmic buckets (similar to HDR histograms).
+    Each power of two is split into {@link #SUB_BUCKETS} linear sub-buckets, so values are recorded
+    with a relative error below 1/{@link #SUB_BUCKETS} over the whole range of <code>long</code> using a fixed
+    amount of memory. Recording is wait-free except for the maximum, which uses a compare-and-set loop.
+    @version $Id$
+*/
+public class RHistogram {
+    static final int SUB_BITS = 3;
+    /** number of sub-buckets per power of two */
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong sum = new AtomicLong();
+    final AtomicLong max = new AtomicLong();
+
+    /** returns the bucket of a value */
+    static int bucket(long v) {
+	if (v < SUB_BUCKETS) return (v < 0) ? 0 : (int) v;
+	int exp = 63 - Long.numberOfLeadingZeros(v);
+	return (exp - SUB_BITS + 1) * SUB_BUCKETS + ((int) (v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /** returns the smallest value of a bucket */
+    static long lowerBound(int b) {
+	if (b < SUB_BUCKETS) return b;
+	int exp = b / SUB_BUCKETS + SUB_BITS - 1;
+	return (1L << exp) | ((long) (b % SUB_BUCKETS) << (exp - SUB_BITS));
+    }
+
+    /** records a value
+	@param v value (negative values are recorded as 0) */
+    public void record(long v) {
+	if (v < 0) v = 0;
+	counts.incrementAndGet(bucket(v));
+	count.incrementAndGet();
+	sum.addAndGet(v);
+	long m;
+	while (v > (m = max.get()) && !max.compareAndSet(m, v)) { }
+    }
+
+    /** @return number of recorded values */
+    public long getCount() {
+	return count.get();
+    }
+
+    /** @return sum of all recorded values */
+    public long getSum() {
+	return sum.get();
+    }
+
+    /** @return largest recorded value */
+    public long getMax() {
+	return max.get();
+    }
+
+    /** @return mean of the recorded values or 0 if there are none */
+    public double getMean() {
+	long n = count.get();
+	return (n == 0) ? 0.0 : ((double) sum.get() / (double) n);
+    }
+
+    /** returns a value such that the given fraction of the recorded values is less or equal (within the precision of the histogram)
+	@param q quantile between 0 and 1 (e.g. 0.99 for the 99th percentile)
+	@return value at the quantile or 0 if nothing was recorded */
+    public long getQuantile(double q) {
+	long n = 0;
+	int b;
+	for (b = 0; b < counts.length(); b++)
+	    n += counts.get(b);
+	if (n == 0) return 0;
+	long rank = (long) Math.ceil(q * n);
+	if (rank < 1) rank = 1;
+	long c = 0;
+	for (b = 0; b < counts.length(); b++) {
+	    c += counts.get(b);
+	    if (c >= rank) {
+		long hi = (b + 1 < counts.length()) ? lowerBound(b + 1) - 1 : Long.MAX_VALUE;
+		long m = max.get();
+		return (hi > m) ? m : hi;
+	    }
+	}
+	return max.get();
+    }
+
+    /** returns the recorded counts as pairs of the smallest value of each non-empty bucket and its count
+	@return array of <code>{value, count}</code> pairs in increasing order of values */
+    public long[][] getBuckets() {
+	int n = 0, b;
+	long[] c = new long[counts.length()];
+	for (b = 0; b < c.length; b++)
+	    if ((c[b] = counts.get(b)) > 0) n++;
+	long[][] r = new long[n][];
+	n = 0;
+	for (b = 0; b < c.length; b++)
+	    if (c[b] > 0) r[n++] = new long[] { lowerBound(b), c[b] };
+	return r;
+    }
+
+    /** removes all recorded values (values recorded concurrently may or may not be removed) */
+    public void reset() {
+	for (int b = 0; b < counts.length(); b++)
+	    counts.set(b, 0);
+	count.set(0);
+	sum.set(0);
+	max.set(0);
+    }
+
+    public String toString() {
+	return "count=" + getCount() + " mean=" + (long) getMean() + " p50=" + getQuantile(0.5) +
+	    " p90=" + getQuantile(0.9) + " p99=" + getQuantile(0.99) + " max=" + getMax();
+    }
+}
@@ -0,0 +1,160 @@
+package org.rosuda.REngine.Rserve;
+
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.rosuda.REngine.Rserve.protocol.RTalk;
+import org.rosuda.REngine.Rserve.protocol.RTalkListener;
+
+/** aggregates the measurements of requests in lock-free {@link RHistogram}s per command. One instance can be shared
+    by any number of connections (e.g. all connections of a {@link RConnectionPool}), see {@link RConnection#setMetricsListener}.
+    Latencies are recorded in nanoseconds, sizes in bytes.
+    <pre>
+    RMetrics m = new RMetrics();
+    c.setMetricsListener(m);
+    ...
+    System.out.println(m);
+    </pre>
+    @version $Id$
+*/
+public class RMetrics implements RTalkListener {
+    /** measurements of one command */
+    public static class Command {
+	final int cmd;
+	/** bytes sent per request */
+	public final RHistogram sent = new RHistogram();
+	/** bytes received per response */
+	public final RHistogram received = new RHistogram();
+	/** time until the first byte of the response (network and server time) */
+	public final RHistogram firstByte = new RHistogram();
+	/** time until the whole response was received */
+	public final RHistogram total = new RHistogram();
+	/** time spent decoding the response content */
+	public final RHistogram decode = new RHistogram();
+	/** number of responses per status code (see {@link org.rosuda.REngine.Rserve.protocol.RPacket#getStat()}) */
+	final AtomicLongArray status = new AtomicLongArray(128);
+
+	Command(int cmd) {
+	    this.cmd = cmd;
+	}
+
+	/** @return command code */
+	public int getCommand() {
+	    return cmd;
+	}
+
+	/** returns the number of responses with a given status
+	    @param stat status code (0 for success)
+	    @return number of responses */
+	public long getStatusCount(int stat) {
+	    return status.get(stat & 127);
+	}
+
+	/** @return number of responses with a non-zero status code */
+	public long getErrorCount() {
+	    long n = 0;
+	    for (int i = 1; i < 128; i++)
+		n += status.get(i);
+	    return n;
+	}
+    }
+
+    final ConcurrentHashMap commands = new ConcurrentHashMap();
+
+    /** returns the measurements of a command, creating them if necessary
+	@param cmd command code (e.g. {@link RTalk#CMD_eval})
+	@return measurements */
+    public Command getCommand(int cmd) {
+	Integer k = Integer.valueOf(cmd);
+	Command c = (Command) commands.get(k);
+	if (c == null) {
+	    Command n = new Command(cmd);
+	    c = (Command) commands.putIfAbsent(k, n);
+	    if (c == null) c = n;
+	}
+	return c;
+    }
+
+    /** returns all commands measured so far
+	@return array of command measurements ordered by command code */
+    public Command[] getCommands() {
+	Command[] c = (Command[]) commands.values().toArray(new Command[0]);
+	Arrays.sort(c, new Comparator() {
+		public int compare(Object a, Object b) {
+		    int x = ((Command) a).cmd, y = ((Command) b).cmd;
+		    return (x < y) ? -1 : ((x == y) ? 0 : 1);
+		}
+	    });
+	return c;
+    }
+
+    /** removes all measurements */
+    public void reset() {
+	commands.clear();
+    }
+
+    public void requestCompleted(int cmd, long sent, long received, long firstByteNanos, long totalNanos, int status) {
+	Command c = getCommand(cmd);
+	c.sent.record(sent);
+	c.received.record(received);
+	c.firstByte.record(firstByteNanos);
+	c.total.record(totalNanos);
+	c.status.incrementAndGet(status & 127);
+    }
+
+    public void responseDecoded(int cmd, long bytes, long nanos) {
+	getCommand(cmd).decode.record(nanos);
+    }
+
+    /** returns a readable name of a command
+	@param cmd command code
+	@return name such as <code>"eval"</code> or the hexadecimal code for unknown commands */
+    public static String commandName(int cmd) {
+	switch (cmd) {
+	case RTalk.CMD_login: return "login";
+	case RTalk.CMD_voidEval: return "voidEval";
+	case RTalk.CMD_eval: return "eval";
+	case RTalk.CMD_shutdown: return "shutdown";
+	case RTalk.CMD_OCcall: return "OCcall";
+	case RTalk.CMD_openFile: return "openFile";
+	case RTalk.CMD_createFile: return "createFile";
+	case RTalk.CMD_closeFile: return "closeFile";
+	case RTalk.CMD_readFile: return "readFile";
+	case RTalk.CMD_writeFile: return "writeFile";
+	case RTalk.CMD_removeFile: return "removeFile";
+	case RTalk.CMD_setSEXP: return "setSEXP";
+	case RTalk.CMD_assignSEXP: return "assignSEXP";
+	case RTalk.CMD_setBufferSize: return "setBufferSize";
+	case RTalk.CMD_setEncoding: return "setEncoding";
+	case RTalk.CMD_detachSession: return "detachSession";
+	case RTalk.CMD_detachedVoidEval: return "detachedVoidEval";
+	case RTalk.CMD_attachSession: return "attachSession";
+	case RTalk.CMD_ctrlEval: return "ctrlEval";
+	case RTalk.CMD_ctrlSource: return "ctrlSource";
+	case RTalk.CMD_ctrlShutdown: return "ctrlShutdown";
+	}
+	return "0x" + Integer.toHexString(cmd);
+    }
+
+    /** exports all measurements as text, one line per command and measurement */
+    public String toString() {
+	StringBuffer sb = new StringBuffer();
+	Command[] c = getCommands();
+	for (int i = 0; i < c.length; i++) {
+	    String n = commandName(c[i].cmd);
+	    sb.append(n).append(" sent[B]: ").append(c[i].sent).append('\n');
+	    sb.append(n).append(" received[B]: ").append(c[i].received).append('\n');
+	    sb.append(n).append(" firstByte[ns]: ").append(c[i].firstByte).append('\n');
+	    sb.append(n).append(" total[ns]: ").append(c[i].total).append('\n');
+	    if (c[i].decode.getCount() > 0)
+		sb.append(n).append(" decode[ns]: ").append(c[i].decode).append('\n');
+	    sb.append(n).append(" errors: ").append(c[i].getErrorCount()).append('\n');
+	}
+	return sb.toString();
+    }
+}
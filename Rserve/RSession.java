@@ -24,7 +24,7 @@ public class RSession implements java.io.Serializable {
 	this.host=c.host;
 	this.rsrvVersion=c.rsrvVersion;
 	byte[] ct = p.getCont();
-	if (ct==null || ct.length!=32+3*4)
+	if (ct==null || p.getLength()!=32+3*4)
 	    throw new RserveException(c, "Invalid response to session detach request.");
 	this.port = RTalk.getInt(ct, 4);
 	this.key=new byte[32];
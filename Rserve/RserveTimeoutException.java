@@ -0,0 +1,22 @@
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+package org.rosuda.REngine.Rserve;
+
+/** exception thrown when a call did not complete within the timeout set by {@link RConnection#setTimeout}. The connection is closed at that point since the state of the protocol is unknown. */
+public class RserveTimeoutException extends RserveException {
+    /** timeout (in milliseconds) that has expired */
+    protected int timeout;
+
+    public RserveTimeoutException(RConnection c, String msg, int timeout) {
+	super(c, msg);
+	this.timeout = timeout;
+    }
+
+    /** returns the timeout that has expired
+	@return timeout in milliseconds */
+    public int getTimeout() {
+	return timeout;
+    }
+}
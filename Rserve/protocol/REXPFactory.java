@@ -5,6 +5,10 @@ package org.rosuda.REngine.Rserve.protocol;
 // --- for licensing information see LICENSE file in the original JRclient distribution ---
 
 import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.rosuda.REngine.*;
 import org.rosuda.REngine.Rserve.*;
@@ -85,9 +89,373 @@ public class REXPFactory {
 	REXPFactory attr;
 	REXP cont;
 	RList rootList;
+	/** length of the binary representation as computed by {@link #getBinaryLength}, -1 if not known yet */
+	long binLength = -1;
+	/** factories of the list elements, created by {@link #getBinaryLength} for encoding */
+	REXPFactory[] children;
+	/** vectors with more elements than this are decoded into segmented vectors ({@link REXPSegmentedDouble}, {@link REXPSegmentedInteger}), by default this is the maximal length of an array */
+	public static int maxVectorLength = RTalk.MAX_ARRAY;
+	/** length of the segments of segmented vectors created by the decoder */
+	public static int segmentLength = 1 << 26;
+	/** numeric, integer and raw vectors with content of at least this many bytes are mapped from the file when decoding from a {@link RSpillFile} */
+	public static long mapThreshold = 1 << 20;
+
+	/** codec for strings, shared by all factories of one expression tree */
+	RStringCodec codec;
+	/** arena for decoding vectors into direct memory (<code>null</code> if disabled) and the content size above which it is used, shared like the codec */
+	RDirectArena directArena;
+	long directThreshold;
+	/** generic vectors with at least this many elements are decoded lazily, -1 if disabled, see {@link #setLazyDecoding} */
+	int lazyElements = -1;
+	/** executor for decoding and encoding the elements of generic vectors in parallel (<code>null</code> if disabled) and the minimal size (in bytes) of such vectors, see {@link #setParallelExecutor} */
+	Executor parallelExecutor;
+	long parallelThreshold;
+	/** maximal size of the batches of elements that are encoded in parallel into a buffer when writing to a stream */
+	static final int PARALLEL_BATCH = 1 << 26;
+	/** set for factories of nested expressions (and while the root is traced) so that only one event is emitted per expression */
+	boolean nested;
+
+	/** JFR events of decoding and encoding, see {@link REngineEvent} */
+	static final REngineEvent DECODE_EVENT = REngineEvent.define("org.rosuda.REngine.Rserve.Decode", "QAP1 Decode",
+								     new String[] { "type", "elements", "bytes" },
+								     new Class[] { String.class, long.class, long.class });
+	static final REngineEvent ENCODE_EVENT = REngineEvent.define("org.rosuda.REngine.Rserve.Encode", "QAP1 Encode",
+								     new String[] { "type", "elements", "bytes" },
+								     new Class[] { String.class, long.class, long.class });
 	
     public REXP getREXP() { return cont; }
     public REXPList getAttr() { return (attr==null)?null:(REXPList)attr.cont; }
+
+    /** returns the codec used for strings. It is shared with all nested factories and created on first use for the current {@link RConnection#transferCharset}.
+	@return string codec */
+    public RStringCodec getStringCodec() {
+		if (codec == null) codec = new RStringCodec();
+		return codec;
+    }
+
+    /** sets the codec used for strings (must be called before encoding or decoding)
+	@param codec string codec */
+    public void setStringCodec(RStringCodec codec) {
+		this.codec = codec;
+    }
+
+    /** enables de-duplication of decoded strings, see {@link RStringCodec#setDeduplicate}
+	@param dedup <code>true</code> to decode repeated strings into the same instance */
+    public void setDeduplicateStrings(boolean dedup) {
+		getStringCodec().setDeduplicate(dedup);
+    }
+
+    /** Enables decoding of large numeric, logical and raw vectors into off-heap vectors ({@link REXPDirectDouble}, {@link REXPDirectInteger}, {@link REXPDirectLogical} and {@link REXPDirectRaw}) allocated in the given arena. When decoding from a stream (see {@link #parseREXP(InputStream)}) the content is copied from the stream into direct memory chunk by chunk, so it never has to be held on the Java heap. The decoded vectors must be closed (or the arena) to release the memory. Factors are always decoded on the heap.
+	@param arena arena to allocate the vectors in or <code>null</code> to disable off-heap decoding
+	@param threshold size of the content (in bytes) above which a vector is decoded into direct memory */
+    public void setDirectArena(RDirectArena arena, long threshold) {
+		directArena = arena;
+		directThreshold = threshold;
+    }
+
+    /** Enables lazy decoding of generic vectors (lists, data frames) when parsing from a buffer (see {@link #parseREXP(byte[],int)}). The elements of generic vectors with at least <code>minElements</code> elements are not decoded, instead one pass over the headers records their positions and the list holds placeholders (see {@link RList.Deferred}) which are decoded when they are first accessed. This saves time and memory if only a few elements of wide lists or data frames are used. Note that the buffer is referenced by the placeholders, so it must not be modified and it is kept in memory as long as there are elements left to decode. Decoding from streams is never lazy.
+	@param minElements minimal number of elements of lazily decoded vectors or -1 to disable lazy decoding (default) */
+    public void setLazyDecoding(int minElements) {
+		lazyElements = minElements;
+    }
+
+    /** Enables parallel decoding and encoding of the elements of large generic vectors such as the columns of data frames. When a generic vector with a binary representation of at least <code>threshold</code> bytes is parsed from a buffer (see {@link #parseREXP(byte[],int)}), one pass over the element headers finds the position of each element and the elements are then decoded in parallel. Similarly, the elements are encoded in parallel by {@link #getBinaryRepresentation} once their lengths are known; when writing to a stream they are encoded in batches of up to 64MB into a buffer first. Decoding from streams is always serial.
+	<p>The calling thread takes part in the work, so the executor can be shared (and the factory can be used from within tasks of the executor). Each thread uses its own string codec, the result is the same as that of the serial code (except that strings are only de-duplicated within the elements decoded by the same thread).
+	@param executor executor to run the tasks or <code>null</code> to disable parallel processing (default)
+	@param threshold minimal size of the binary representation (in bytes) of vectors whose elements are processed in parallel */
+    public void setParallelExecutor(Executor executor, long threshold) {
+		parallelExecutor = executor;
+		parallelThreshold = threshold;
+    }
+
+    /** checks whether the elements of a generic vector of the given size are to be processed in parallel */
+    boolean parallel(long size) {
+		return parallelExecutor != null && size >= parallelThreshold;
+    }
+
+    /** creates a factory for the exclusive use by one thread, it shares the options of this one but has its own string codec */
+    REXPFactory worker() {
+		REXPFactory f = child();
+		f.codec = new RStringCodec(getStringCodec().getCharset().name());
+		f.codec.setDeduplicate(codec.isDeduplicate());
+		return f;
+    }
+
+    /** sets the string codec of this factory and of all factories of nested expressions (created for encoding) */
+    void useCodec(RStringCodec c) {
+		codec = c;
+		if (attr != null) attr.useCodec(c);
+		if (children != null)
+			for (int i = 0; i < children.length; i++)
+				children[i].useCodec(c);
+    }
+
+    /** work on the elements of a generic vector shared by the calling thread and the tasks submitted to the executor, see {@link #forEachElement}. Elements are claimed one at a time, so no thread ever waits for an element that has not been started. */
+    abstract static class ElementTask implements Runnable {
+		final REXPFactory parent;
+		final int n;
+		int next, done;
+		Throwable error;
+
+		ElementTask(REXPFactory parent, int n) {
+			this.parent = parent;
+			this.n = n;
+		}
+
+		/** processes one element
+		    @param f factory for the exclusive use by the current thread (see {@link REXPFactory#worker})
+		    @param i index of the element */
+		abstract void run(REXPFactory f, int i) throws REXPMismatchException;
+
+		public void run() {
+			REXPFactory f = null;
+			while (true) {
+				int i;
+				boolean skip;
+				synchronized (this) {
+					if (next >= n) return;
+					i = next++;
+					skip = (error != null);
+				}
+				try {
+					if (!skip) {
+						if (f == null) f = parent.worker();
+						run(f, i);
+					}
+				} catch (Throwable e) {
+					synchronized (this) {
+						if (error == null) error = e;
+					}
+				} finally {
+					synchronized (this) {
+						if (++done == n) notifyAll();
+					}
+				}
+			}
+		}
+    }
+
+    /** processes all elements of a task using the calling thread and the parallel executor and waits until all are done */
+    void forEachElement(ElementTask t) throws REXPMismatchException {
+		int h = Math.min(t.n - 1, Runtime.getRuntime().availableProcessors());
+		try {
+			for (int i = 0; i < h; i++)
+				parallelExecutor.execute(t);
+		} catch (RejectedExecutionException e) { /* the calling thread does the rest */
+		}
+		t.run();
+		boolean interrupted = false;
+		synchronized (t) {
+			while (t.done < t.n) /* the elements in progress use our buffers, so we have to wait for them even if interrupted */
+				try {
+					t.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		if (t.error instanceof REXPMismatchException) throw (REXPMismatchException) t.error;
+		if (t.error instanceof RuntimeException) throw (RuntimeException) t.error;
+		if (t.error instanceof Error) throw (Error) t.error;
+		if (t.error != null) throw new IllegalStateException("parallel processing failed: "+t.error.getMessage());
+    }
+
+    /** returns the offsets of the elements of a generic vector
+	@return offsets or <code>null</code> if the element sizes don't match the size of the vector */
+    static int[] elementOffsets(byte[] buf, int o, int eox) {
+		int[] offs = new int[16];
+		int n = 0;
+		while (o < eox) {
+			if (n == offs.length) {
+				int[] no = new int[n * 2];
+				System.arraycopy(offs, 0, no, 0, n);
+				offs = no;
+			}
+			offs[n++] = o;
+			o += (((buf[o]&64)!=0) ? 8 : 4) + RTalk.getLen(buf, o);
+		}
+		if (o != eox) return null;
+		if (n < offs.length) {
+			int[] no = new int[n];
+			System.arraycopy(offs, 0, no, 0, n);
+			offs = no;
+		}
+		return offs;
+    }
+
+    /** decodes the elements of a generic vector in parallel, see {@link #setParallelExecutor}
+	@return content of the vector */
+    REXP parallelVector(int xt, final byte[] buf, final int[] offs) throws REXPMismatchException {
+		final REXP[] el = new REXP[offs.length];
+		forEachElement(new ElementTask(this, offs.length) {
+			void run(REXPFactory f, int i) throws REXPMismatchException {
+				REXPFactory x = f.child();
+				x.parseREXP(buf, offs[i]);
+				el[i] = x.cont;
+			}
+		});
+		Vector v = new Vector(el.length);
+		for (int i = 0; i < el.length; i++)
+			v.addElement(el[i]);
+		return genericVector(xt, v);
+    }
+
+    /** encodes the elements <code>from</code> to <code>to - 1</code> of a generic vector in parallel, see {@link #setParallelExecutor}
+	@return offset behind the last element */
+    int storeElements(final byte[] buf, int off, final int from, int to) throws REXPMismatchException {
+		final int[] offs = new int[to - from];
+		for (int i = from; i < to; i++) {
+			offs[i - from] = off;
+			off += (int) children[i].binLength;
+		}
+		forEachElement(new ElementTask(this, offs.length) {
+			void run(REXPFactory f, int i) throws REXPMismatchException {
+				REXPFactory x = children[from + i];
+				x.useCodec(f.getStringCodec());
+				x.getBinaryRepresentation(buf, offs[i]);
+			}
+		});
+		return off;
+    }
+
+    /** writes the elements of a generic vector, consecutive elements are encoded in parallel into a buffer of up to {@link #PARALLEL_BATCH} bytes, elements larger than that are written directly. The buffer is sized to the largest batch and re-used by nested lists. */
+    void writeElements(RStreamWriter w) throws REXPMismatchException, IOException {
+		w.batchDepth++;
+		try {
+			int i = 0;
+			while (i < children.length) {
+				int j = i;
+				long bl = 0;
+				while (j < children.length && bl + children[j].binLength <= PARALLEL_BATCH)
+					bl += children[j++].binLength;
+				if (j - i < 2) {
+					children[i++].writeBinaryRepresentation(w);
+					continue;
+				}
+				if (w.batch == null || w.batch.length < bl) w.batch = new byte[(int) bl];
+				storeElements(w.batch, 0, i, j);
+				w.writeBytes(w.batch, 0, (int) bl);
+				i = j;
+			}
+		} finally {
+			if (--w.batchDepth == 0) w.batch = null;
+		}
+    }
+
+    /** skims over the elements of a generic vector and decodes them lazily if there are at least {@link #lazyElements} of them, see {@link #setLazyDecoding}
+	@return content of the vector */
+    REXP lazyVector(int xt, byte[] buf, int o, int eox) throws REXPMismatchException {
+		int[] offs = elementOffsets(buf, o, eox);
+		if (offs == null)
+			throw new REXPMismatchException(null, "decode (element sizes don't match the size of the vector)");
+		int n = offs.length;
+		Vector v = new Vector(n);
+		if (n < lazyElements) {
+			for (int i = 0; i < n; i++) {
+				REXPFactory xx = child();
+				xx.parseREXP(buf, offs[i]);
+				v.addElement(xx.cont);
+			}
+		} else {
+			/* the elements get their own factory since they may be decoded long after this factory has been re-used */
+			REXPFactory lf = child();
+			for (int i = 0; i < n; i++)
+				v.addElement(new LazyElement(lf, buf, offs[i]));
+		}
+		return genericVector(xt, v);
+    }
+
+    /** placeholder of an element of a lazily decoded generic vector. Elements may be resolved by several threads at once, so each resolve uses its own string codec. */
+    static class LazyElement implements RList.Deferred {
+		final REXPFactory factory;
+		final byte[] buf;
+		final int offset;
+
+		LazyElement(REXPFactory factory, byte[] buf, int offset) {
+			this.factory = factory;
+			this.buf = buf;
+			this.offset = offset;
+		}
+
+		public REXP resolve() {
+			REXPFactory f = factory.worker();
+			try {
+				f.parseREXP(buf, offset);
+			} catch (REXPMismatchException e) {
+				throw new IllegalStateException("cannot decode list element: " + e.getMessage(), e);
+			}
+			return f.cont;
+		}
+    }
+
+    /** checks whether vector content of the given size is to be decoded into direct memory */
+    boolean direct(long size) {
+		return directArena != null && size > directThreshold;
+    }
+
+    /** creates an empty direct vector of the given type
+	@param xt XT_ARRAY_DOUBLE, XT_ARRAY_INT, XT_ARRAY_BOOL or XT_RAW
+	@param n number of elements */
+    REXPDirectVector directVector(int xt, long n) {
+		if (xt==XT_ARRAY_DOUBLE) return new REXPDirectDouble(directArena, n, getAttr());
+		if (xt==XT_ARRAY_INT) return new REXPDirectInteger(directArena, n, getAttr());
+		if (xt==XT_ARRAY_BOOL) return new REXPDirectLogical(directArena, n, getAttr());
+		return new REXPDirectRaw(directArena, n, getAttr());
+    }
+
+    /** copies vector content from a buffer into a direct vector, see {@link RStreamReader#readDirect} */
+    static void putDirect(REXPDirectVector v, byte[] buf, int o, int n, boolean logical) {
+		if (!logical) {
+			v.putBytes(0, buf, o, n);
+			return;
+		}
+		byte[] b = new byte[(n > RStreamReader.CHUNK) ? RStreamReader.CHUNK : n];
+		int i = 0;
+		while (i < n) {
+			int l = (n - i > b.length) ? b.length : (n - i);
+			for (int j = 0; j < l; j++) {
+				byte x = buf[o + i + j];
+				b[j] = (x != 0 && x != 1) ? REXPLogical.NA : x;
+			}
+			v.putBytes(i, b, 0, l);
+			i += l;
+		}
+    }
+
+    /** checks whether the attributes describe a factor */
+    boolean isFactor() {
+		try {
+			if (getAttr()!=null) {
+				REXP ca = getAttr().asList().at("class");
+				return ca != null && getAttr().asList().at("levels") != null && "factor".equals(ca.asString());
+			}
+		} catch (Exception e) {
+		}
+		return false;
+    }
+
+    /** creates a factory for a nested expression that shares the options of this one */
+    REXPFactory child() {
+		REXPFactory f = new REXPFactory();
+		f.codec = getStringCodec();
+		f.directArena = directArena;
+		f.directThreshold = directThreshold;
+		f.lazyElements = lazyElements;
+		f.parallelExecutor = parallelExecutor;
+		f.parallelThreshold = parallelThreshold;
+		f.nested = true;
+		return f;
+    }
+
+    /** creates a factory for encoding a nested expression that shares the options of this one */
+    REXPFactory child(REXP x) throws REXPMismatchException {
+		REXPFactory f = new REXPFactory(x);
+		f.codec = getStringCodec();
+		f.parallelExecutor = parallelExecutor;
+		f.parallelThreshold = parallelThreshold;
+		f.nested = true;
+		return f;
+    }
 	
 	public REXPFactory() {
 	}
@@ -96,7 +464,10 @@ public class REXPFactory {
 		if (r == null) r=new REXPNull();
 		REXPList a = r._attr();
 		cont = r;
-		if (a != null) attr = new REXPFactory(a);
+		if (a != null) {
+			attr = new REXPFactory(a);
+			attr.nested = true;
+		}
 		if (r instanceof REXPNull) {
 			type=XT_NULL;
 		} else if (r instanceof REXPList) {
@@ -108,18 +479,22 @@ public class REXPFactory {
 			type = XT_VECTOR; // FIXME: may have to adjust names attr
 		} else if (r instanceof REXPS4) {
 			type = XT_S4;
-		} else if (r instanceof REXPInteger) { // this includes factor - FIXME: do we need speacial handling?
+		} else if (r instanceof REXPInteger || r instanceof REXPSegmentedInteger) { // this includes factor - FIXME: do we need speacial handling?
 			type = XT_ARRAY_INT;
-		} else if (r instanceof REXPDouble) {
+		} else if (r instanceof REXPDouble || r instanceof REXPSegmentedDouble) {
 			type = XT_ARRAY_DOUBLE;
 		} else if (r instanceof REXPString) {
 			type = XT_ARRAY_STR;
 		} else if (r instanceof REXPSymbol) {
 			type = XT_SYMNAME;
-		} else if (r instanceof REXPRaw) {
+		} else if (r instanceof REXPRaw || r instanceof REXPDirectRaw) {
 			type = XT_RAW;
-		} else if (r instanceof REXPLogical) {
+		} else if (r instanceof REXPLogical || r instanceof REXPDirectLogical) {
 			type = XT_ARRAY_BOOL;
+		} else if (r instanceof REXPDirectDouble) {
+			type = XT_ARRAY_DOUBLE;
+		} else if (r instanceof REXPDirectInteger) {
+			type = XT_ARRAY_INT;
 		} else {
 			// throw new REXPMismatchException(r, "decode");
 			System.err.println("*** REXPFactory unable to interpret "+r);
@@ -131,6 +506,21 @@ public class REXPFactory {
 		@param o offset in the buffer to start at
         @return position just behind the parsed xpression. Can be use for successive calls to {@link #parseREXP} if more than one expression is stored in the binary array. */
     public int parseREXP(byte[] buf, int o) throws REXPMismatchException {
+		if (nested || !REngineEvent.enabled)
+			return parse(buf, o);
+		Object ev = DECODE_EVENT.begin();
+		int e = o;
+		nested = true;
+		try {
+			e = parse(buf, o);
+		} finally {
+			nested = false;
+			if (ev != null) DECODE_EVENT.commit(ev, xtName(type), elements(), e - o);
+		}
+		return e;
+    }
+
+    int parse(byte[] buf, int o) throws REXPMismatchException {
 		int xl = RTalk.getLen(buf,o);
 		boolean hasAtt = ((buf[o]&128)!=0);
         boolean isLong = ((buf[o]&64)!=0);
@@ -140,8 +530,8 @@ public class REXPFactory {
         o+=4;
 		int eox=o+xl;
 	
-		type=xt; attr=new REXPFactory(); cont=null;
-		if (hasAtt) o = attr.parseREXP(buf, o);
+		type=xt; attr=null; cont=null;
+		if (hasAtt) o = (attr=child()).parseREXP(buf, o);
 		if (xt==XT_NULL) {
 			cont = new REXPNull(getAttr());
 			return o;
@@ -158,13 +548,16 @@ public class REXPFactory {
 			return o;
 		}
 		if (xt==XT_ARRAY_DOUBLE) {
-			int as=(eox-o)/8,i=0;
-			double[] d=new double[as];
-			while (o<eox) {
-				d[i]=Double.longBitsToDouble(RTalk.getLong(buf,o));
-				o+=8;
-				i++;
+			int as=(eox-o)/8;
+			if (direct(as*8)) {
+				REXPDirectVector v = directVector(xt, as);
+				putDirect(v, buf, o, as*8, false);
+				cont = v;
+				return eox;
 			}
+			double[] d=new double[as];
+			RTalk.getDoubles(buf, o, d, 0, as);
+			o+=as*8;
 			if (o!=eox) {
 				System.err.println("Warning: double array SEXP size mismatch\n");
 				o=eox;
@@ -196,6 +589,12 @@ public class REXPFactory {
         if (xt==XT_ARRAY_BOOL) {
             int as=RTalk.getInt(buf,o);
             o+=4;
+			if (direct(as)) {
+				REXPDirectVector v = directVector(xt, as);
+				putDirect(v, buf, o, as, true);
+				cont = v;
+				return eox;
+			}
             byte[] d=new byte[as];
 			System.arraycopy(buf,o,d,0,as);
 			for (int j = 0; j < d.length; j++) if (d[j] != 0 && d[j] != 1) d[j] = REXPLogical.NA;
@@ -214,37 +613,32 @@ public class REXPFactory {
 			return o;
 		}
 		if (xt==XT_ARRAY_INT) {
-			int as=(eox-o)/4,i=0;
-			int[] d=new int[as];
-			while (o<eox) {
-				d[i]=RTalk.getInt(buf,o);
-				o+=4;
-				i++;
+			int as=(eox-o)/4;
+			if (direct(as*4) && !isFactor()) {
+				REXPDirectVector v = directVector(xt, as);
+				putDirect(v, buf, o, as*4, false);
+				cont = v;
+				return eox;
 			}
+			int[] d=new int[as];
+			RTalk.getInts(buf, o, d, 0, as);
+			o+=as*4;
 			if (o!=eox) {
 				System.err.println("Warning: int array SEXP size mismatch\n");
 				o=eox;
 			}
-			cont = null;
-			// hack for lists - special lists attached to int are factors
-			try {
-			    if (getAttr()!=null) {
-					REXP ca = getAttr().asList().at("class");
-					REXP ls = getAttr().asList().at("levels");
-					if (ca != null && ls != null && ca.asString().equals("factor")) {
-						// R uses 1-based index, Java uses 0-based one
-						cont = new REXPFactor(d, ls.asStrings(), getAttr());
-						xt = XT_FACTOR;
-					}
-			    }
-			} catch (Exception e) {
-			}
-			if (cont == null) cont = new REXPInteger(d, getAttr());
+			cont = intVector(d);
 			return o;
 		}
         if (xt==XT_RAW) {
             int as=RTalk.getInt(buf,o);
             o+=4;
+			if (direct(as)) {
+				REXPDirectVector v = directVector(xt, as);
+				putDirect(v, buf, o, as, false);
+				cont = v;
+				return eox;
+			}
             byte[] d=new byte[as];
 			System.arraycopy(buf,o,d,0,as);
 			o = eox;
@@ -253,8 +647,8 @@ public class REXPFactory {
         }
 		if (xt==XT_LIST_NOTAG || xt==XT_LIST_TAG ||
 			xt==XT_LANG_NOTAG || xt==XT_LANG_TAG) {
-			REXPFactory lc = new REXPFactory();
-			REXPFactory nf = new REXPFactory();
+			REXPFactory lc = child();
+			REXPFactory nf = child();
 			RList l = new RList();
 			while (o<eox) {
 				String name = null;
@@ -266,9 +660,7 @@ public class REXPFactory {
 				if (name==null) l.add(lc.cont);
 				else l.put(name, lc.cont);
 			}
-			cont = (xt==XT_LANG_NOTAG || xt==XT_LANG_TAG)?
-				new REXPLanguage(l, getAttr()):
-				new REXPList(l, getAttr());
+			cont = pairList(xt, l);
 			if (o!=eox) {
 				System.err.println("Warning: int list SEXP size mismatch\n");
 				o=eox;
@@ -281,8 +673,8 @@ public class REXPFactory {
 				rootList = new RList();
 				isRoot = true;
 			}
-			REXPFactory headf = new REXPFactory();
-			REXPFactory tagf = new REXPFactory();
+			REXPFactory headf = child();
+			REXPFactory tagf = child();
 			o = headf.parseREXP(buf, o);
 			int elIndex = rootList.size();
 			rootList.add(headf.cont);
@@ -303,10 +695,21 @@ public class REXPFactory {
 			}
 			return o;
 		}
+		if ((xt==XT_VECTOR || xt==XT_VECTOR_EXP) && lazyElements >= 0) {
+			cont = lazyVector(xt, buf, o, eox);
+			return eox;
+		}
+		if ((xt==XT_VECTOR || xt==XT_VECTOR_EXP) && parallel(eox - o)) {
+			int[] offs = elementOffsets(buf, o, eox);
+			if (offs != null && offs.length > 1) {
+				cont = parallelVector(xt, buf, offs);
+				return eox;
+			}
+		}
 		if (xt==XT_VECTOR || xt==XT_VECTOR_EXP) {
 			Vector v=new Vector(); //FIXME: could we use RList?
 			while(o<eox) {
-				REXPFactory xx=new REXPFactory();
+				REXPFactory xx=child();
 				o = xx.parseREXP(buf,o);
 				v.addElement(xx.cont);
 			}
@@ -314,25 +717,7 @@ public class REXPFactory {
 				System.err.println("Warning: int vector SEXP size mismatch\n");
 				o=eox;
 			}
-			// fixup for lists since they're stored as attributes of vectors
-			if (getAttr()!=null && getAttr().asList().at("names") != null) {
-				REXP nam = getAttr().asList().at("names");
-				String names[] = null;
-				if (nam.isString()) names = nam.asStrings();
-				else if (nam.isVector()) { // names could be a vector if supplied by old Rserve
-					RList l = nam.asList();
-					Object oa[] = l.toArray();
-					names = new String[oa.length];
-					for(int i = 0; i < oa.length; i++) names[i] = ((REXP)oa[i]).asString();
-				}
-				RList l = new RList(v, names);
-				cont = (xt==XT_VECTOR_EXP)?
-					new REXPExpressionVector(l, getAttr()):
-					new REXPGenericVector(l, getAttr());
-			} else
-				cont = (xt==XT_VECTOR_EXP)?
-					new REXPExpressionVector(new RList(v), getAttr()):
-					new REXPGenericVector(new RList(v), getAttr());
+			cont = genericVector(xt, v);
 			return o;
 		}
 		if (xt==XT_ARRAY_STR) {
@@ -341,20 +726,17 @@ public class REXPFactory {
 			while (i < eox) if (buf[i++] == 0) c++;
 			String s[] = new String[c];
 			if (c > 0) {
+				RStringCodec sc = getStringCodec();
 				c = 0; i = o;
 				while (o < eox) {
 					if (buf[o] == 0) {
-						try {
-							if (buf[i] == -1) { /* if the first byte is 0xff (-1 in signed char) then it either needs to be skipped (doubling) or there is an NA value */
-								if (buf[i + 1] == 0)
-									s[c] = null; /* NA */
-								else
-									s[c] = new String(buf, i + 1, o - i - 1, RConnection.transferCharset);
-							} else
-								s[c] = new String(buf, i, o - i, RConnection.transferCharset);
-						} catch (java.io.UnsupportedEncodingException ex) {
-							s[c]="";
-						}
+						if (buf[i] == -1) { /* if the first byte is 0xff (-1 in signed char) then it either needs to be skipped (doubling) or there is an NA value */
+							if (buf[i + 1] == 0)
+								s[c] = null; /* NA */
+							else
+								s[c] = sc.decode(buf, i + 1, o - i - 1);
+						} else
+							s[c] = sc.decode(buf, i, o - i);
 						c++;
 						i = o + 1;
 					}
@@ -367,7 +749,7 @@ public class REXPFactory {
 		if (xt==XT_VECTOR_STR) {
 			Vector v=new Vector();
 			while(o<eox) {
-				REXPFactory xx=new REXPFactory();
+				REXPFactory xx=child();
 				o = xx.parseREXP(buf,o);
 				v.addElement(xx.cont.asString());
 			}
@@ -385,9 +767,9 @@ public class REXPFactory {
 			while (buf[i]!=0 && i<eox) i++;
 			try {
 				if (xt==XT_STR)
-					cont = new REXPString(new String[] { new String(buf, o, i-o, RConnection.transferCharset) }, getAttr());
+					cont = new REXPString(new String[] { getStringCodec().decode(buf, o, i-o) }, getAttr());
 				else
-					cont = new REXPSymbol(new String(buf, o, i-o, RConnection.transferCharset));					
+					cont = new REXPSymbol(getStringCodec().decode(buf, o, i-o));
 			} catch(Exception e) {
 				System.err.println("unable to convert string\n");
 				cont = null;
@@ -396,7 +778,7 @@ public class REXPFactory {
 			return o;
 		}
 		if (xt==XT_SYM) {
-			REXPFactory sym = new REXPFactory();
+			REXPFactory sym = child();
 			o = sym.parseREXP(buf, o); // PRINTNAME that's all we will use
 			cont = new REXPSymbol(sym.getREXP().asString()); // content of a symbol is its printname string (so far)
 			o=eox;
@@ -437,11 +819,236 @@ public class REXPFactory {
 		return o;
     }
 
+    /** creates the content for an integer vector. Integer vectors with a "factor" class and levels are represented by {@link REXPFactor}.
+	@param d integer payload
+	@return integer vector or factor */
+    REXP intVector(int[] d) {
+		// hack for lists - special lists attached to int are factors
+		try {
+			if (getAttr()!=null) {
+				REXP ca = getAttr().asList().at("class");
+				REXP ls = getAttr().asList().at("levels");
+				if (ca != null && ls != null && ca.asString().equals("factor")) {
+					// R uses 1-based index, Java uses 0-based one
+					return new REXPFactor(d, ls.asStrings(), getAttr());
+				}
+			}
+		} catch (Exception e) {
+		}
+		return new REXPInteger(d, getAttr());
+    }
+
+    /** creates the content for a pairlist or language object of the given type */
+    REXP pairList(int xt, RList l) {
+		return (xt==XT_LANG_NOTAG || xt==XT_LANG_TAG)?
+			new REXPLanguage(l, getAttr()):
+			new REXPList(l, getAttr());
+    }
+
+    /** creates the content for a generic or expression vector. Since names of generic vectors are stored in attributes, they are used to create a named list.
+	@param xt XT_VECTOR or XT_VECTOR_EXP
+	@param v elements
+	@return generic vector */
+    REXP genericVector(int xt, Vector v) throws REXPMismatchException {
+		// fixup for lists since they're stored as attributes of vectors
+		if (getAttr()!=null && getAttr().asList().at("names") != null) {
+			REXP nam = getAttr().asList().at("names");
+			String names[] = null;
+			if (nam.isString()) names = nam.asStrings();
+			else if (nam.isVector()) { // names could be a vector if supplied by old Rserve
+				RList l = nam.asList();
+				Object oa[] = l.toArray();
+				names = new String[oa.length];
+				for(int i = 0; i < oa.length; i++) names[i] = ((REXP)oa[i]).asString();
+			}
+			RList l = new RList(v, names);
+			return (xt==XT_VECTOR_EXP)?
+				new REXPExpressionVector(l, getAttr()):
+				new REXPGenericVector(l, getAttr());
+		}
+		return (xt==XT_VECTOR_EXP)?
+			new REXPExpressionVector(new RList(v), getAttr()):
+			new REXPGenericVector(new RList(v), getAttr());
+    }
+
+    /** parses one xpression directly from a stream. Unlike {@link #parseREXP(byte[],int)} this does not require the whole binary representation in memory: numeric, integer, logical and raw vectors are filled chunk by chunk as the data arrives and lists are decoded recursively. Other (typically small) xpressions are read one at a time and passed to {@link #parseREXP(byte[],int)}. Exactly one xpression is consumed from the stream.
+	@param is stream positioned at the header of the xpression
+	@return number of bytes consumed from the stream */
+    public long parseREXP(InputStream is) throws REXPMismatchException, IOException {
+		return parseREXP(new RStreamReader(is));
+    }
+
+    /** parses one xpression directly from a channel, see {@link #parseREXP(InputStream)}.
+	@param ch channel positioned at the header of the xpression
+	@return number of bytes consumed from the channel */
+    public long parseREXP(java.nio.channels.ReadableByteChannel ch) throws REXPMismatchException, IOException {
+		return parseREXP(java.nio.channels.Channels.newInputStream(ch));
+    }
+
+    /** parses one xpression from a spill file. Numeric, integer and raw vectors with content larger than {@link #mapThreshold} are not read but mapped from the file into {@link REXPDirectDouble}, {@link REXPDirectInteger} and {@link REXPDirectRaw} vectors, so they don't use any heap memory. The mapped vectors remain valid after the spill file is closed, their memory is released when they are closed (or garbage collected).
+	@param f spill file
+	@param offset position of the xpression header in the file
+	@return number of bytes consumed */
+    public long parseREXP(RSpillFile f, long offset) throws REXPMismatchException, IOException {
+		return parseREXP(new RMappedReader(f, offset));
+    }
+
+    long parseREXP(RStreamReader in) throws REXPMismatchException, IOException {
+		if (nested || !REngineEvent.enabled)
+			return parse(in);
+		Object ev = DECODE_EVENT.begin();
+		long n = 0;
+		nested = true;
+		try {
+			n = parse(in);
+		} finally {
+			nested = false;
+			if (ev != null) DECODE_EVENT.commit(ev, xtName(type), elements(), n);
+		}
+		return n;
+    }
+
+    long parse(RStreamReader in) throws REXPMismatchException, IOException {
+		long start = in.pos;
+		byte[] h = new byte[8];
+		in.readFully(h, 0, 4);
+		boolean hasAtt = ((h[0]&128)!=0);
+		boolean isLong = ((h[0]&64)!=0);
+		int xt = (int)(h[0]&63);
+		if (isLong) in.readFully(h, 4, 4);
+		long xl = RTalk.getLongLen(h, 0);
+		long eox = in.pos + xl;
+
+		if (xt!=XT_ARRAY_DOUBLE && xt!=XT_ARRAY_INT && xt!=XT_ARRAY_BOOL && xt!=XT_RAW &&
+			xt!=XT_VECTOR && xt!=XT_VECTOR_EXP &&
+			xt!=XT_LIST_NOTAG && xt!=XT_LIST_TAG && xt!=XT_LANG_NOTAG && xt!=XT_LANG_TAG) {
+			/* everything else is read as a whole and parsed from the buffer */
+			int hl = (int)(in.pos - start);
+			if (xl > RTalk.MAX_ARRAY - hl)
+				throw new IOException(xtName(xt) + " of " + xl + " bytes is too big to decode");
+			byte[] b = new byte[hl + (int) xl];
+			System.arraycopy(h, 0, b, 0, hl);
+			in.readFully(b, hl, (int) xl);
+			parseREXP(b, 0);
+			return in.pos - start;
+		}
+
+		type=xt; attr=null; cont=null;
+		if (hasAtt) (attr=child()).parseREXP(in);
+		ByteBuffer[] mapped = null;
+		if ((xt==XT_ARRAY_DOUBLE || (xt==XT_ARRAY_INT && !isFactor())) &&
+			(mapped = in.map(eox - in.pos, (xt==XT_ARRAY_DOUBLE) ? 8 : 4)) != null) {
+			cont = (xt==XT_ARRAY_DOUBLE) ? (REXP) new REXPDirectDouble(mapped, getAttr()) : (REXP) new REXPDirectInteger(mapped, getAttr());
+		} else if ((xt==XT_ARRAY_DOUBLE || (xt==XT_ARRAY_INT && !isFactor())) && direct(eox - in.pos)) {
+			int es = (xt==XT_ARRAY_DOUBLE) ? 8 : 4;
+			long n = (eox - in.pos) / es;
+			REXPDirectVector v = directVector(xt, n);
+			cont = v;
+			in.readDirect(v, n * es, false);
+		} else if (xt==XT_ARRAY_DOUBLE) {
+			long n = (eox - in.pos) / 8;
+			if (n > maxVectorLength) { /* long vector */
+				double[][] sg = new double[(int)((n + segmentLength - 1) / segmentLength)][];
+				for (int i = 0; i < sg.length; i++) {
+					sg[i] = new double[(int) Math.min(segmentLength, n - (long) i * segmentLength)];
+					in.readDoubles(sg[i], 0, sg[i].length);
+				}
+				cont = new REXPSegmentedDouble(sg, getAttr());
+			} else {
+				double[] d = new double[(int) n];
+				in.readDoubles(d, 0, d.length);
+				cont = new REXPDouble(d, getAttr());
+			}
+		} else if (xt==XT_ARRAY_INT) {
+			long n = (eox - in.pos) / 4;
+			if (n > maxVectorLength) { /* long vector (factors cannot be that long since their levels are integers) */
+				int[][] sg = new int[(int)((n + segmentLength - 1) / segmentLength)][];
+				for (int i = 0; i < sg.length; i++) {
+					sg[i] = new int[(int) Math.min(segmentLength, n - (long) i * segmentLength)];
+					in.readInts(sg[i], 0, sg[i].length);
+				}
+				cont = new REXPSegmentedInteger(sg, getAttr());
+			} else {
+				int[] d = new int[(int) n];
+				in.readInts(d, 0, d.length);
+				cont = intVector(d);
+			}
+		} else if (xt==XT_ARRAY_BOOL || xt==XT_RAW) {
+			int n = in.readInt();
+			if (xt==XT_RAW && (mapped = in.map(n, 1)) != null) {
+				cont = new REXPDirectRaw(mapped, getAttr());
+			} else if (direct(n)) {
+				REXPDirectVector v = directVector(xt, n);
+				cont = v;
+				in.readDirect(v, n, xt==XT_ARRAY_BOOL);
+			} else {
+				byte[] d = new byte[n];
+				in.readFully(d, 0, d.length);
+				if (xt==XT_RAW)
+					cont = new REXPRaw(d, getAttr());
+				else {
+					for (int j = 0; j < d.length; j++) if (d[j] != 0 && d[j] != 1) d[j] = REXPLogical.NA;
+					cont = new REXPLogical(d, getAttr());
+				}
+			}
+		} else if (xt==XT_VECTOR || xt==XT_VECTOR_EXP) {
+			Vector v=new Vector();
+			while (in.pos < eox) {
+				REXPFactory xx=child();
+				xx.parseREXP(in);
+				v.addElement(xx.cont);
+			}
+			cont = genericVector(xt, v);
+		} else { /* XT_LIST_* and XT_LANG_* */
+			REXPFactory lc = child();
+			REXPFactory nf = child();
+			RList l = new RList();
+			while (in.pos < eox) {
+				String name = null;
+				lc.parseREXP(in);
+				if (xt==XT_LIST_TAG || xt==XT_LANG_TAG) {
+					nf.parseREXP(in);
+					if (nf.cont.isSymbol() || nf.cont.isString()) name = nf.cont.asString();
+				}
+				if (name==null) l.add(lc.cont);
+				else l.put(name, lc.cont);
+			}
+			cont = pairList(xt, l);
+		}
+		if (in.pos > eox)
+			throw new IOException("SEXP size mismatch (" + xtName(xt) + " exceeds its length)");
+		in.skip(eox - in.pos); // padding
+		return in.pos - start;
+    }
+
     /** Calculates the length of the binary representation of the REXP including all headers. This is the amount of memory necessary to store the REXP via {@link #getBinaryRepresentation}.
+        <p>The first call builds the encoding plan, i.e. the factories of all nested elements along with their lengths, which is then used by all subsequent calls and by {@link #getBinaryRepresentation} and {@link #writeBinaryRepresentation}. Hence a factory can be used to encode the same REXP any number of times at the cost of one traversal each, but the REXP must not be modified once the plan has been built.
         <p>Please note that currently only XT_[ARRAY_]INT, XT_[ARRAY_]DOUBLE and XT_[ARRAY_]STR are supported! All other types will return 4 which is the size of the header.
-        @return length of the REXP including headers (4 or 8 bytes)*/
+        @return length of the REXP including headers (4 or 8 bytes)
+	@throws REXPMismatchException if the REXP cannot be encoded or the representation is longer than 2GB (see {@link #getBinaryLongLength}) */
     public int getBinaryLength() throws REXPMismatchException {
-		int l=0;
+		long l = getBinaryLongLength();
+		if (l > RTalk.MAX_ARRAY)
+			throw new REXPMismatchException(cont, "binary representation ("+l+" bytes exceed the maximal array size, only streaming is possible)");
+		return (int) l;
+    }
+
+    /** returns the number of bytes of the content of a raw or logical vector (which is limited to 32-bit by QAP1) */
+    long byteLength() throws REXPMismatchException {
+		if (cont instanceof REXPDirectVector) {
+			long n = ((REXPDirectVector) cont).longLength();
+			if (n > RTalk.MAX_ARRAY)
+				throw new REXPMismatchException(cont, "encode (raw and logical vectors are limited to 2^31 elements)");
+			return n;
+		}
+		return cont.asBytes().length;
+    }
+
+    /** Calculates the length of the binary representation of the REXP including all headers, see {@link #getBinaryLength}. Representations longer than 2GB (e.g. of long vectors) can only be written to a stream using {@link #writeBinaryRepresentation}.
+	@return length of the REXP including headers */
+    public long getBinaryLongLength() throws REXPMismatchException {
+		if (binLength >= 0) return binLength;
+		long l=0;
 		int rxt = type;
 		if (type==XT_LIST || type==XT_LIST_TAG || type==XT_LIST_NOTAG)
 			rxt=(cont.asList()!=null && cont.asList().isNamed())?XT_LIST_TAG:XT_LIST_NOTAG;
@@ -458,24 +1065,25 @@ public class REXPFactory {
 		RList al = null;
 		if (a!=null) al = a.asList();
 		if (al != null && al.size()>0) hasAttr=true;
-		if (hasAttr)
-			l+=attr.getBinaryLength();
+		if (hasAttr) {
+			if (attr.codec == null) attr.codec = getStringCodec();
+			l+=attr.getBinaryLongLength();
+		}
 		switch (rxt) {
 			case XT_NULL:
 			case XT_S4:
 				break;
 			case XT_INT: l+=4; break;
 			case XT_DOUBLE: l+=8; break;
-			case XT_RAW: l+=4 + cont.asBytes().length; if ((l&3)>0) l=l-(l&3)+4; break;
+			case XT_RAW: l+=4 + byteLength(); if ((l&3)>0) l=l-(l&3)+4; break;
 			case XT_STR:
 			case XT_SYMNAME:
-				l+=(cont==null)?1:(cont.asString().length()+1);
-				if ((l&3)>0) l=l-(l&3)+4;
-					break;
-			case XT_ARRAY_INT: l+=cont.asIntegers().length*4; break;
-			case XT_ARRAY_DOUBLE: l+=cont.asDoubles().length*8; break;
+				l+=stringLength((cont==null)?null:cont.asString());
+				break;
+			case XT_ARRAY_INT: l+=((cont instanceof REXPSegmentedInteger || cont instanceof REXPDirectVector)?((REXPVector)cont).longLength():cont.asIntegers().length)*4; break;
+			case XT_ARRAY_DOUBLE: l+=((cont instanceof REXPSegmentedDouble || cont instanceof REXPDirectVector)?((REXPVector)cont).longLength():cont.asDoubles().length)*8; break;
 			case XT_ARRAY_CPLX: l+=cont.asDoubles().length*8; break;
-			case XT_ARRAY_BOOL: l += cont.asBytes().length + 4; if ((l & 3) > 0) l = l - (l & 3) + 4; break;
+			case XT_ARRAY_BOOL: l += byteLength() + 4; if ((l & 3) > 0) l = l - (l & 3) + 4; break;
 			case XT_LIST_TAG:
 			case XT_LIST_NOTAG:
 			case XT_LANG_TAG:
@@ -484,18 +1092,14 @@ public class REXPFactory {
 			case XT_VECTOR:
 			{
 				final RList lst = cont.asList();
+				children = new REXPFactory[lst.size()];
 				int i=0;
 				while (i<lst.size()) {
 					REXP x = lst.at(i);
-					l += (x==null)?4:(new REXPFactory(x).getBinaryLength());
-					if (rxt==XT_LIST_TAG) {
-						int pl=l;
-						String s = lst.keyAt(i);
-						l+=4; // header for a symbol
-						l+=(s==null)?1:(s.length()+1);
-						if ((l&3)>0) l=l-(l&3)+4;
-						// System.out.println("TAG length: "+(l-pl));
-					}
+					children[i] = child((x==null)?new REXPNull():x);
+					l += children[i].getBinaryLongLength();
+					if (rxt==XT_LIST_TAG || rxt==XT_LANG_TAG)
+						l += 4 + stringLength(lst.keyAt(i)); // tag symbol
 					i++;
 				}
 				if ((l&3)>0) l=l-(l&3)+4;
@@ -504,19 +1108,12 @@ public class REXPFactory {
 			case XT_ARRAY_STR:
 			{
 				String sa[] = cont.asStrings();
+				RStringCodec sc = getStringCodec();
 				int i=0;
 				while (i < sa.length) {
 					if (sa[i] != null) {
-						try {
-							byte b[] = sa[i].getBytes(RConnection.transferCharset);
-							if (b.length > 0) {
-								if (b[0] == -1) l++;
-								l += b.length;
-							}
-							b = null;
-						} catch (java.io.UnsupportedEncodingException uex) {
-							// FIXME: we should so something ... so far we hope noone's gonna mess with the encoding
-						}
+						l += sc.encodedLength(sa[i]);
+						if (sc.startsWithFF(sa[i])) l++;
 					} else l++; // NA = -1
 					l++;
 					i++;
@@ -527,7 +1124,184 @@ public class REXPFactory {
 		} // switch
         if (l>0xfffff0) l+=4; // large data need 4 more bytes
 							  // System.out.println("len:"+(l+4)+" "+xtName(rxt)+"/"+xtName(type)+" "+cont);
-		return l+4; // add the header
+		return binLength = l+4; // add the header
+    }
+
+    /** length of a string in its binary representation, i.e., including the terminating NUL and padding (<code>null</code> is stored as empty string)
+	@param s string
+	@return length in bytes */
+    int stringLength(String s) {
+		int l = 1;
+		if (s != null) l += getStringCodec().encodedLength(s);
+		if ((l&3)>0) l=l-(l&3)+4;
+		return l;
+    }
+
+    /** Writes the binary representation of the REXP including header to a stream. The content is the same as stored by {@link #getBinaryRepresentation}, but it is written in chunks through a fixed-size buffer, so no buffer of the full size is needed.
+	@param os stream to write to (it is flushed at the end)
+	@return number of bytes written */
+    public long writeBinaryRepresentation(OutputStream os) throws REXPMismatchException, IOException {
+		RStreamWriter w = new RStreamWriter(os, 8192);
+		writeBinaryRepresentation(w);
+		w.flush();
+		return w.count;
+    }
+
+    void writeBinaryRepresentation(RStreamWriter w) throws REXPMismatchException, IOException {
+		if (nested || !REngineEvent.enabled) {
+			write(w);
+			return;
+		}
+		Object ev = ENCODE_EVENT.begin();
+		long start = w.count;
+		nested = true;
+		try {
+			write(w);
+		} finally {
+			nested = false;
+			if (ev != null) ENCODE_EVENT.commit(ev, xtName(type), elements(), w.count - start);
+		}
+    }
+
+    void write(RStreamWriter w) throws REXPMismatchException, IOException {
+		long myl=getBinaryLongLength();
+		boolean isLarge=(myl>0xfffff0);
+		boolean hasAttr = false;
+		final REXPList a = getAttr();
+		RList al = null;
+		if (a != null) al = a.asList();
+		if (al != null && al.size()>0) hasAttr=true;
+		int rxt=type;
+		long start = w.count;
+		if (type==XT_VECTOR_STR) rxt=XT_ARRAY_STR; // VECTOR_STR is broken right now
+		if (type==XT_LIST || type==XT_LIST_TAG || type==XT_LIST_NOTAG)
+			rxt=(cont.asList()!=null && cont.asList().isNamed())?XT_LIST_TAG:XT_LIST_NOTAG;
+		w.writeHdr(rxt|(hasAttr?XT_HAS_ATTR:0),myl-(isLarge?8:4));
+		if (hasAttr) attr.writeBinaryRepresentation(w);
+		switch (rxt) {
+			case XT_INT: w.writeInt(cont.asInteger()); break;
+			case XT_DOUBLE: w.writeLong(Double.doubleToRawLongBits(cont.asDouble())); break;
+			case XT_ARRAY_INT:
+			{
+				if (cont instanceof REXPSegmentedInteger) {
+					int[][] sg = ((REXPSegmentedInteger) cont).getSegments();
+					for (int i = 0; i < sg.length; i++)
+						w.writeInts(sg[i], 0, sg[i].length);
+					break;
+				}
+				if (cont instanceof REXPDirectVector) {
+					w.writeDirect((REXPDirectVector) cont, ((REXPDirectVector) cont).longLength() * 4, false);
+					break;
+				}
+				int ia[]=cont.asIntegers();
+				w.writeInts(ia, 0, ia.length);
+				break;
+			}
+			case XT_ARRAY_DOUBLE:
+			{
+				if (cont instanceof REXPSegmentedDouble) {
+					double[][] sg = ((REXPSegmentedDouble) cont).getSegments();
+					for (int i = 0; i < sg.length; i++)
+						w.writeDoubles(sg[i], 0, sg[i].length);
+					break;
+				}
+				if (cont instanceof REXPDirectVector) {
+					w.writeDirect((REXPDirectVector) cont, ((REXPDirectVector) cont).longLength() * 8, false);
+					break;
+				}
+				double da[]=cont.asDoubles();
+				w.writeDoubles(da, 0, da.length);
+				break;
+			}
+			case XT_ARRAY_BOOL:
+			{
+				if (cont instanceof REXPDirectVector) {
+					int n = (int) byteLength();
+					w.writeInt(n);
+					w.writeDirect((REXPDirectVector) cont, n, true);
+					if (n > 0)
+						w.fill(3, (4 - (n & 3)) & 3);
+					break;
+				}
+				byte ba[] = cont.asBytes();
+				w.writeInt(ba.length);
+				for(int i =0; i < ba.length; i++)
+					w.writeByte((ba[i] == REXPLogical.NA) ? 2 : ((ba[i] == REXPLogical.FALSE) ? 0 : 1));
+				if (ba.length > 0)
+					w.fill(3, (4 - (ba.length & 3)) & 3);
+				break;
+			}
+			case XT_RAW:
+			{
+				if (cont instanceof REXPDirectVector) {
+					int n = (int) byteLength();
+					w.writeInt(n);
+					w.writeDirect((REXPDirectVector) cont, n, false);
+					break;
+				}
+				byte by[] = cont.asBytes();
+				w.writeInt(by.length);
+				w.writeBytes(by, 0, by.length);
+				break;
+			}
+			case XT_ARRAY_STR:
+			{
+				String sa[] = cont.asStrings();
+				RStringCodec sc = getStringCodec();
+				long so = w.count;
+				for (int i = 0; i < sa.length; i++) {
+					if (sa[i] != null) {
+						if (sc.startsWithFF(sa[i])) /* if the first entry happens to be -1 then we need to double it so it doesn't get confused with NAs */
+							w.writeByte(-1);
+						w.writeString(sc, sa[i]);
+					} else
+						w.writeByte(-1); /* NAs are stored as 0xff (-1 in signed bytes) */
+					w.writeByte(0);
+				}
+				w.fill(1, (4 - ((w.count - so) & 3)) & 3); // padding if necessary..
+				break;
+			}
+			case XT_LIST_TAG:
+			case XT_LIST_NOTAG:
+			case XT_LANG_TAG:
+			case XT_LANG_NOTAG:
+			case XT_LIST:
+			case XT_VECTOR:
+			case XT_VECTOR_EXP:
+			{
+				final RList lst = cont.asList();
+				if ((rxt == XT_VECTOR || rxt == XT_VECTOR_EXP) && children != null && children.length > 1 && parallel(myl)) {
+					writeElements(w);
+					break;
+				}
+				if (lst != null && children != null)
+					for (int i = 0; i < children.length; i++) {
+						children[i].writeBinaryRepresentation(w);
+						if (rxt == XT_LIST_TAG || rxt == XT_LANG_TAG) {
+							String s = lst.keyAt(i);
+							w.writeHdr(XT_SYMNAME, stringLength(s));
+							writeString(w, s);
+						}
+					}
+				break;
+			}
+			case XT_SYMNAME:
+			case XT_STR:
+				writeString(w, cont.asString());
+				break;
+		}
+		/* types without content (and those not supported) are zero-filled up to the announced length just like in getBinaryRepresentation */
+		if (w.count - start < myl)
+			w.fill(0, myl - (w.count - start));
+		else if (w.count - start > myl)
+			throw new IOException("encoded length of "+xtName(rxt)+" exceeds the announced length");
+    }
+
+    /** writes a string including the terminating NUL and padding, see {@link #getStringBinaryRepresentation} */
+    void writeString(RStreamWriter w, String s) throws IOException {
+		long so = w.count;
+		if (s != null) w.writeString(getStringCodec(), s);
+		w.fill(0, 4 - ((w.count - so) & 3));
     }
 
     /** Stores the REXP in its binary (ready-to-send) representation including header into a buffer and returns the index of the byte behind the REXP.
@@ -536,6 +1310,21 @@ public class REXPFactory {
         @param off offset of the first byte where to store the REXP
         @return the offset of the first byte behind the stored REXP */
     public int getBinaryRepresentation(byte[] buf, int off) throws REXPMismatchException {
+		if (nested || !REngineEvent.enabled)
+			return store(buf, off);
+		Object ev = ENCODE_EVENT.begin();
+		int e = off;
+		nested = true;
+		try {
+			e = store(buf, off);
+		} finally {
+			nested = false;
+			if (ev != null) ENCODE_EVENT.commit(ev, xtName(type), elements(), e - off);
+		}
+		return e;
+    }
+
+    int store(byte[] buf, int off) throws REXPMismatchException {
 		int myl=getBinaryLength();
         boolean isLarge=(myl>0xfffff0);
 		boolean hasAttr = false;
@@ -559,15 +1348,25 @@ public class REXPFactory {
 			case XT_DOUBLE: RTalk.setLong(Double.doubleToRawLongBits(cont.asDouble()),buf,off); break;
 			case XT_ARRAY_INT:
 			{
-				int ia[]=cont.asIntegers();
-				int i=0, io=off;
-				while(i<ia.length) {
-					RTalk.setInt(ia[i++],buf,io); io+=4;
+				if (cont instanceof REXPDirectVector) {
+					((REXPDirectVector) cont).getBytes(0, buf, off, ((REXPDirectVector) cont).length() * 4);
+					break;
 				}
+				int ia[]=cont.asIntegers();
+				RTalk.setInts(ia, 0, ia.length, buf, off);
 				break;
 			}
 			case XT_ARRAY_BOOL:
 			{
+				if (cont instanceof REXPDirectVector) {
+					int n = ((REXPDirectVector) cont).length(), io = off + 4;
+					RTalk.setInt(n, buf, off);
+					((REXPDirectVector) cont).getBytes(0, buf, io, n);
+					for (int i = 0; i < n; i++, io++)
+						buf[io] = (byte) ( (buf[io] == REXPLogical.NA) ? 2 : ((buf[io] == REXPLogical.FALSE) ? 0 : 1) );
+					while ((io & 3) != 0) buf[io++] = 3;
+					break;
+				}
 				byte ba[] = cont.asBytes();
 				int io = off;
 				RTalk.setInt(ba.length, buf, io);
@@ -581,15 +1380,22 @@ public class REXPFactory {
 			}
 			case XT_ARRAY_DOUBLE:
 			{
-				double da[]=cont.asDoubles();
-				int i=0, io=off;
-				while(i<da.length) {
-					RTalk.setLong(Double.doubleToRawLongBits(da[i++]),buf,io); io+=8;
+				if (cont instanceof REXPDirectVector) {
+					((REXPDirectVector) cont).getBytes(0, buf, off, ((REXPDirectVector) cont).length() * 8);
+					break;
 				}
+				double da[]=cont.asDoubles();
+				RTalk.setDoubles(da, 0, da.length, buf, off);
 				break;
 			}
 			case XT_RAW:
 			{
+				if (cont instanceof REXPDirectVector) {
+					int n = ((REXPDirectVector) cont).length();
+					RTalk.setInt(n, buf, off);
+					((REXPDirectVector) cont).getBytes(0, buf, off + 4, n);
+					break;
+				}
 				byte by[] = cont.asBytes();
 				RTalk.setInt(by.length, buf, off); off+=4;
 				System.arraycopy(by, 0, buf, off, by.length);
@@ -598,21 +1404,13 @@ public class REXPFactory {
 			case XT_ARRAY_STR:
 			{
 				String sa[] = cont.asStrings();
+				RStringCodec sc = getStringCodec();
 				int i = 0, io = off;
 				while (i < sa.length) {
 					if (sa[i] != null) {
-						try {
-							byte b[] = sa[i].getBytes(RConnection.transferCharset);
-							if (b.length > 0) {
-								if (b[0] == -1) /* if the first entry happens to be -1 then we need to double it so it doesn't get confused with NAs */
-									buf[io++] = -1;
-								System.arraycopy(b, 0, buf, io, b.length);
-								io += b.length;
-							}
-							b = null;
-						} catch (java.io.UnsupportedEncodingException uex) {
-							// FIXME: we should so something ... so far we hope noone's gonna mess with the encoding
-						}
+						if (sc.startsWithFF(sa[i])) /* if the first entry happens to be -1 then we need to double it so it doesn't get confused with NAs */
+							buf[io++] = -1;
+						io = sc.encode(sa[i], buf, io);
 					} else
 						buf[io++] = -1; /* NAs are stored as 0xff (-1 in signed bytes) */
 					buf[io++] = 0;
@@ -632,14 +1430,19 @@ public class REXPFactory {
 			{
 				int io = off;
 				final RList lst = cont.asList();
-				if (lst != null) {
+				if ((rxt == XT_VECTOR || rxt == XT_VECTOR_EXP) && children != null && children.length > 1 && parallel(myl)) {
+					storeElements(buf, off, 0, children.length);
+					break;
+				}
+				if (lst != null && children != null) {
 					int i=0;
-					while (i<lst.size()) {
-						REXP x = lst.at(i);
-						if (x == null) x=new REXPNull();
-						io = new REXPFactory(x).getBinaryRepresentation(buf, io);
-						if (rxt == XT_LIST_TAG || rxt == XT_LANG_TAG)
-							io = new REXPFactory(new REXPSymbol(lst.keyAt(i))).getBinaryRepresentation(buf, io);
+					while (i<children.length) {
+						io = children[i].getBinaryRepresentation(buf, io);
+						if (rxt == XT_LIST_TAG || rxt == XT_LANG_TAG) {
+							String tag = lst.keyAt(i);
+							io = RTalk.setHdr(XT_SYMNAME, stringLength(tag), buf, io);
+							io = putString(buf, io, tag);
+						}
 						i++;
 					}
 				}
@@ -649,12 +1452,20 @@ public class REXPFactory {
 	    
 			case XT_SYMNAME:
 			case XT_STR:
-				getStringBinaryRepresentation(buf, off, cont.asString());
+				putString(buf, off, cont.asString());
 				break;
 		}
 		return ooff+myl;
     }
 
+    /** stores a string including the terminating NUL and padding using the string codec, see {@link #getStringBinaryRepresentation} */
+    int putString(byte[] buf, int off, String s) {
+		int io = (s == null) ? off : getStringCodec().encode(s, buf, off);
+		buf[io++]=0;
+		while ((io&3)!=0) buf[io++]=0; // padding if necessary..
+		return io;
+    }
+
     public static int getStringBinaryRepresentation(byte[] buf, int off, String s) {
 		if (s==null) s="";
 		int io=off;
@@ -672,6 +1483,13 @@ public class REXPFactory {
 		return io;
     }
 
+    /** number of elements of the expression (for events) */
+    long elements() {
+		if (cont instanceof REXPVector) return ((REXPVector) cont).length();
+		if (cont instanceof REXPList) return ((REXPList) cont).length();
+		return (cont == null) ? 0 : 1;
+    }
+
     /** returns human-readable name of the xpression type as string. Arrays are denoted by a trailing asterisk (*).
 	@param xt xpression type
 	@return name of the xpression type */
@@ -0,0 +1,57 @@
+package org.rosuda.REngine.Rserve.protocol;
+
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/** {@link RStreamReader} that decodes content from a {@link RSpillFile}. Small items are read through a buffer, large vectors are mapped from the file (see {@link #map}). */
+class RMappedReader extends RStreamReader {
+    RSpillFile file;
+    /** position in the file corresponding to <code>pos == 0</code> */
+    long base;
+    /** read buffer, its content ends at file position <code>base + pos + rb.remaining()</code> */
+    ByteBuffer rb;
+
+    RMappedReader(RSpillFile file, long offset) {
+	super(null);
+	this.file = file;
+	base = offset;
+	rb = ByteBuffer.allocate(CHUNK);
+	rb.limit(0);
+    }
+
+    void readFully(byte[] b, int off, int len) throws IOException {
+	while (len > 0) {
+	    if (!rb.hasRemaining()) {
+		rb.clear();
+		int n = file.fc.read(rb, base + pos);
+		rb.flip();
+		if (n <= 0)
+		    throw new EOFException("spill file ended unexpectedly");
+	    }
+	    int l = (len > rb.remaining()) ? rb.remaining() : len;
+	    rb.get(b, off, l);
+	    off += l;
+	    len -= l;
+	    pos += l;
+	}
+    }
+
+    void skip(long n) throws IOException {
+	if (n < rb.remaining())
+	    rb.position(rb.position() + (int) n);
+	else
+	    rb.limit(0);
+	pos += n;
+    }
+
+    ByteBuffer[] map(long n, int elementSize) throws IOException {
+	if (n < REXPFactory.mapThreshold) return null;
+	ByteBuffer[] s = file.map(base + pos, n, elementSize);
+	skip(n);
+	return s;
+    }
+}
@@ -12,12 +12,31 @@ import org.rosuda.REngine.Rserve.protocol.RTalk;
 public class RPacket {
     int cmd;
     byte[] cont;
+    long len;
+    /** set if <code>cont</code> is a re-used buffer (which can be longer than <code>len</code>) */
+    boolean view;
+    /** file holding the content if it has been spilled to disk */
+    RSpillFile spill;
 
     /** construct new packet
 	@param Rcmd command
 	@param Rcont content */
     public RPacket(int Rcmd, byte[] Rcont) {
-	cmd=Rcmd; cont=Rcont;
+	cmd=Rcmd; cont=Rcont; len=(Rcont==null)?0:Rcont.length;
+    }
+
+    /** construct new packet whose content has not been read yet (it is still pending in the stream)
+	@param Rcmd command
+	@param Rlen length of the content */
+    public RPacket(int Rcmd, int Rlen) {
+	this(Rcmd, (long) Rlen);
+    }
+
+    /** construct new packet whose content has not been read yet (it is still pending in the stream), the content can be longer than 2GB
+	@param Rcmd command
+	@param Rlen length of the content */
+    public RPacket(int Rcmd, long Rlen) {
+	cmd=Rcmd; cont=null; len=Rlen;
     }
     
     /** get command
@@ -39,9 +58,48 @@ public class RPacket {
 	@return status code returned on last response */
     public int getStat() { return ((cmd>>24)&127); }
 
-    /** get content
+    /** get content. If the packet is a view of the receive buffer of a connection (see {@link RTalk#setReuseBuffers}), the array can be longer than {@link #getLength()} and its content is only valid until the next response is received on that connection, use {@link #toByteArray()} to keep it.
 	@return inner package content */
     public byte[] getCont() { return cont; }
 
-    public String toString() { return "RPacket[cmd="+cmd+",len="+((cont==null)?"<null>":(""+cont.length))+"]"; }
+    /** get a copy of the content that can be kept
+	@return content of exactly {@link #getLength()} bytes or <code>null</code> if there is no content (or it is streamed) */
+    public byte[] toByteArray() {
+	if (cont == null) return null;
+	if (cont.length == len && !view) return cont;
+	byte[] b = new byte[(int) len];
+	System.arraycopy(cont, 0, b, 0, (int) len);
+	return b;
+    }
+
+    /** check whether this packet is a view of a re-used receive buffer (see {@link RTalk#setReuseBuffers})
+	@return <code>true</code> if the content is only valid until the next response is received */
+    public boolean isView() { return view; }
+
+    /** re-uses this packet as a view of a receive buffer */
+    void set(int Rcmd, byte[] Rcont, int Rlen) {
+	cmd=Rcmd; cont=Rcont; len=Rlen; view=true;
+    }
+
+    /** get length of the content as announced by the header
+	@return content length or <code>Integer.MAX_VALUE</code> if the content is longer (which is only possible for streamed packets, see {@link #getLongLength()}) */
+    public int getLength() { return (len > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) len; }
+
+    /** get length of the content as announced by the header (which supports 64-bit lengths)
+	@return content length */
+    public long getLongLength() { return len; }
+
+    /** check whether the content of this packet has been left in the stream (see {@link RTalk#response(byte[],int)})
+	@return <code>true</code> if the content has to be read from the stream */
+    public boolean isStreamed() { return (cont==null && spill==null && len>0); }
+
+    /** check whether the content of this packet has been spilled to a file (see {@link RTalk#setSpillThreshold})
+	@return <code>true</code> if the content is in {@link #getSpillFile()} */
+    public boolean isSpilled() { return spill!=null; }
+
+    /** get the file holding the content of a spilled packet. The receiver is responsible for closing it.
+	@return spill file or <code>null</code> if the content is not spilled */
+    public RSpillFile getSpillFile() { return spill; }
+
+    public String toString() { return "RPacket[cmd="+cmd+",len="+((cont==null)?(isStreamed()?("<stream:"+len+">"):(isSpilled()?("<file:"+len+">"):"<null>")):(""+len))+"]"; }
 }
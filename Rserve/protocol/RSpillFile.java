@@ -0,0 +1,113 @@
+package org.rosuda.REngine.Rserve.protocol;
+
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.rosuda.REngine.RDirectArena;
+
+/** temporary file holding the content of a response that was too big to be kept in memory (see {@link RTalk#setSpillThreshold}). The content is decoded from the file with {@link REXPFactory#parseREXP(RSpillFile,long)}, which maps large vectors directly from the file instead of copying them onto the heap.
+    <p>
+    Closing the spill file deletes it. Vectors mapped from the file remain valid after that (the operating system keeps the data until they are unmapped, on Windows the file itself is only deleted when the JVM exits). */
+public class RSpillFile {
+    File file;
+    RandomAccessFile raf;
+    FileChannel fc;
+    long length;
+
+    RSpillFile(File file, long length) throws IOException {
+	this.file = file;
+	this.length = length;
+	raf = new RandomAccessFile(file, "r");
+	fc = raf.getChannel();
+    }
+
+    /** copies content from a stream into a new temporary file. The file is made readable and writable by its owner only (where the file system supports it) before any content is written to it.
+	@param is stream to read from
+	@param len number of bytes to copy
+	@param dir directory for the file or <code>null</code> for the default temporary directory
+	@return spill file */
+    public static RSpillFile create(InputStream is, long len, File dir) throws IOException {
+	File f = File.createTempFile("rserve", ".qap", dir);
+	try {
+	    /* createTempFile uses the umask, so restrict the file to its owner (the response may hold sensitive data).
+	       This is best effort, file systems without such permissions (e.g. on Windows) report failure. */
+	    f.setReadable(false, false);
+	    f.setReadable(true, true);
+	    f.setWritable(false, false);
+	    f.setWritable(true, true);
+	    OutputStream os = new FileOutputStream(f);
+	    try {
+		byte[] b = new byte[RStreamReader.CHUNK];
+		long n = len;
+		while (n > 0) {
+		    int l = (n > b.length) ? b.length : ((int) n);
+		    RTalk.readFully(is, b, 0, l);
+		    os.write(b, 0, l);
+		    n -= l;
+		}
+	    } finally {
+		os.close();
+	    }
+	    return new RSpillFile(f, len);
+	} catch (IOException e) {
+	    f.delete();
+	    throw e;
+	}
+    }
+
+    /** returns the file
+	@return file (which no longer exists once closed) */
+    public File getFile() { return file; }
+
+    /** returns the size of the content
+	@return size in bytes */
+    public long length() { return length; }
+
+    /** reads exactly <code>len</code> bytes at the given position
+	@param position position in the file
+	@param b buffer
+	@param off offset in the buffer
+	@param len number of bytes to read */
+    public void readFully(long position, byte[] b, int off, int len) throws IOException {
+	ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+	while (bb.hasRemaining()) {
+	    int n = fc.read(bb, position);
+	    if (n < 0)
+		throw new EOFException("spill file ended unexpectedly");
+	    position += n;
+	}
+    }
+
+    /** maps a part of the file into memory. The segments are little-endian, read-only and each can be released with {@link RDirectArena#free}.
+	@param position position in the file
+	@param size number of bytes to map
+	@param elementSize size of an element, segments never split an element
+	@return segments of at most {@link RDirectArena#DEFAULT_SEGMENT_SIZE} bytes */
+    public ByteBuffer[] map(long position, long size, int elementSize) throws IOException {
+	int sb = RDirectArena.DEFAULT_SEGMENT_SIZE - RDirectArena.DEFAULT_SEGMENT_SIZE % elementSize;
+	ByteBuffer[] s = new ByteBuffer[(int) ((size + sb - 1) / sb)];
+	for (int i = 0; i < s.length; i++) {
+	    MappedByteBuffer m = fc.map(FileChannel.MapMode.READ_ONLY, position + (long) i * sb, Math.min(sb, size - (long) i * sb));
+	    m.order(ByteOrder.LITTLE_ENDIAN);
+	    s[i] = m;
+	}
+	return s;
+    }
+
+    /** closes and deletes the file */
+    public void close() {
+	try {
+	    raf.close();
+	} catch (IOException e) {
+	}
+	if (!file.delete())
+	    file.deleteOnExit();
+    }
+}
@@ -0,0 +1,107 @@
+package org.rosuda.REngine.Rserve.protocol;
+
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import org.rosuda.REngine.REXPDirectVector;
+import org.rosuda.REngine.REXPLogical;
+
+/** helper class used by {@link REXPFactory} to decode QAP1 content directly from a stream.
+    It keeps track of the number of bytes consumed so far and uses a small scratch buffer
+    to convert vector payloads chunk by chunk, i.e. the content is never held in memory as a whole.
+*/
+class RStreamReader {
+    /** size of the scratch buffer, must be divisible by 8 */
+    static final int CHUNK = 65536;
+
+    InputStream is;
+    /** number of bytes consumed so far */
+    long pos;
+    /** scratch buffer for chunked conversions */
+    byte[] buf;
+
+    RStreamReader(InputStream is) {
+	this.is = is;
+	pos = 0;
+	buf = new byte[CHUNK];
+    }
+
+    /** reads exactly <code>len</code> bytes from the stream
+	@param b buffer to store the bytes in
+	@param off offset in the buffer
+	@param len number of bytes to read */
+    void readFully(byte[] b, int off, int len) throws IOException {
+	RTalk.readFully(is, b, off, len);
+	pos += len;
+    }
+
+    /** reads one Intel-endian integer */
+    int readInt() throws IOException {
+	readFully(buf, 0, 4);
+	return RTalk.getInt(buf, 0);
+    }
+
+    /** skips over the given number of bytes */
+    void skip(long n) throws IOException {
+	while (n > 0) {
+	    int l = (n > CHUNK) ? CHUNK : ((int) n);
+	    readFully(buf, 0, l);
+	    n -= l;
+	}
+    }
+
+    /** reads <code>n</code> doubles into the given array
+	@param d target array
+	@param off offset in the target array
+	@param n number of elements to read */
+    void readDoubles(double[] d, int off, int n) throws IOException {
+	while (n > 0) {
+	    int l = (n > CHUNK / 8) ? (CHUNK / 8) : n;
+	    readFully(buf, 0, l * 8);
+	    RTalk.getDoubles(buf, 0, d, off, l);
+	    off += l;
+	    n -= l;
+	}
+    }
+
+    /** reads <code>n</code> integers into the given array
+	@param d target array
+	@param off offset in the target array
+	@param n number of elements to read */
+    void readInts(int[] d, int off, int n) throws IOException {
+	while (n > 0) {
+	    int l = (n > CHUNK / 4) ? (CHUNK / 4) : n;
+	    readFully(buf, 0, l * 4);
+	    RTalk.getInts(buf, 0, d, off, l);
+	    off += l;
+	    n -= l;
+	}
+    }
+
+    /** reads <code>n</code> bytes of vector content into a direct vector. Logical values are mapped from their QAP1 encoding to {@link REXPLogical} values if <code>logical</code> is set.
+	@param v target vector
+	@param n number of bytes to read
+	@param logical <code>true</code> for logical vectors */
+    void readDirect(REXPDirectVector v, long n, boolean logical) throws IOException {
+	long o = 0;
+	while (o < n) {
+	    int l = (n - o > CHUNK) ? CHUNK : ((int) (n - o));
+	    readFully(buf, 0, l);
+	    if (logical)
+		for (int j = 0; j < l; j++) if (buf[j] != 0 && buf[j] != 1) buf[j] = REXPLogical.NA;
+	    v.putBytes(o, buf, 0, l);
+	    o += l;
+	}
+    }
+
+    /** maps the next <code>n</code> bytes of vector content instead of reading them, which is only supported by readers of files ({@link RMappedReader})
+	@param n number of bytes
+	@param elementSize size of an element
+	@return little-endian segments holding the content (which has been skipped) or <code>null</code> if the content has to be read */
+    ByteBuffer[] map(long n, int elementSize) throws IOException {
+	return null;
+    }
+}
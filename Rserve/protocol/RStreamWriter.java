@@ -0,0 +1,178 @@
+package org.rosuda.REngine.Rserve.protocol;
+
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+import java.io.*;
+import org.rosuda.REngine.REXPDirectVector;
+import org.rosuda.REngine.REXPLogical;
+
+/** helper class used by {@link REXPFactory} to encode QAP1 content directly into a stream.
+    The content is assembled in a fixed-size buffer which is written out whenever it fills up,
+    i.e. the encoded representation is never held in memory as a whole. The buffer is re-used,
+    so {@link RTalk} keeps one writer per connection.
+*/
+class RStreamWriter {
+    /** default size of the buffer, must be divisible by 8 */
+    static final int CHUNK = 65536;
+
+    OutputStream os;
+    /** buffer and the number of bytes used in it */
+    byte[] buf;
+    int n;
+    /** number of bytes written so far (including the buffered ones) */
+    long count;
+    /** buffer for elements encoded in parallel, shared by nested lists and released when the outermost of them is written (see {@link REXPFactory#writeElements}) and the nesting depth */
+    byte[] batch;
+    int batchDepth;
+
+    RStreamWriter(OutputStream os, int size) {
+	this.os = os;
+	buf = new byte[size];
+    }
+
+    RStreamWriter(OutputStream os) {
+	this(os, CHUNK);
+    }
+
+    /** makes sure there is room for at least <code>len</code> bytes (which must not exceed the buffer size) */
+    void ensure(int len) throws IOException {
+	if (buf.length - n < len)
+	    flushBuffer();
+    }
+
+    /** writes the buffered content to the stream without flushing the stream */
+    void flushBuffer() throws IOException {
+	if (n > 0) {
+	    os.write(buf, 0, n);
+	    n = 0;
+	}
+    }
+
+    /** writes the buffered content and flushes the stream */
+    void flush() throws IOException {
+	flushBuffer();
+	os.flush();
+    }
+
+    void writeByte(int b) throws IOException {
+	if (n == buf.length)
+	    flushBuffer();
+	buf[n++] = (byte) b;
+	count++;
+    }
+
+    /** writes an Intel-endian integer */
+    void writeInt(int v) throws IOException {
+	ensure(4);
+	RTalk.setInt(v, buf, n);
+	n += 4;
+	count += 4;
+    }
+
+    /** writes an Intel-endian long */
+    void writeLong(long v) throws IOException {
+	ensure(8);
+	RTalk.setLong(v, buf, n);
+	n += 8;
+	count += 8;
+    }
+
+    /** writes a parameter/expression header, see {@link RTalk#setHdr} */
+    void writeHdr(int ty, long len) throws IOException {
+	ensure(8);
+	int o = RTalk.setHdr(ty, len, buf, n);
+	count += o - n;
+	n = o;
+    }
+
+    void writeBytes(byte[] b, int off, int len) throws IOException {
+	if (len > buf.length - n) {
+	    flushBuffer();
+	    if (len >= buf.length) { // large blocks are written directly
+		os.write(b, off, len);
+		count += len;
+		return;
+	    }
+	}
+	System.arraycopy(b, off, buf, n, len);
+	n += len;
+	count += len;
+    }
+
+    /** writes the content of a direct vector. Logical values are mapped to their QAP1 encoding if <code>logical</code> is set.
+	@param v vector
+	@param len number of bytes to write
+	@param logical <code>true</code> for logical vectors */
+    void writeDirect(REXPDirectVector v, long len, boolean logical) throws IOException {
+	long o = 0;
+	while (o < len) {
+	    if (n == buf.length)
+		flushBuffer();
+	    int l = buf.length - n;
+	    if (l > len - o) l = (int) (len - o);
+	    v.getBytes(o, buf, n, l);
+	    if (logical)
+		for (int j = n; j < n + l; j++)
+		    buf[j] = (byte) ((buf[j] == REXPLogical.NA) ? 2 : ((buf[j] == REXPLogical.FALSE) ? 0 : 1));
+	    n += l;
+	    count += l;
+	    o += l;
+	}
+    }
+
+    /** writes <code>len</code> copies of the byte <code>b</code> */
+    void fill(int b, long len) throws IOException {
+	while (len > 0) {
+	    if (n == buf.length)
+		flushBuffer();
+	    int l = buf.length - n;
+	    if (l > len) l = (int) len;
+	    java.util.Arrays.fill(buf, n, n + l, (byte) b);
+	    n += l;
+	    count += l;
+	    len -= l;
+	}
+    }
+
+    /** writes an encoded string (without terminating NUL) */
+    void writeString(RStringCodec c, String s) throws IOException {
+	int max = c.maxEncodedLength(s.length());
+	if (max > buf.length) { // long strings are encoded separately
+	    byte[] b = c.encode(s);
+	    writeBytes(b, 0, b.length);
+	    return;
+	}
+	ensure(max);
+	int o = c.encode(s, buf, n);
+	count += o - n;
+	n = o;
+    }
+
+    void writeDoubles(double[] d, int off, int len) throws IOException {
+	while (len > 0) {
+	    ensure(8);
+	    int l = (buf.length - n) / 8;
+	    if (l > len) l = len;
+	    RTalk.setDoubles(d, off, l, buf, n);
+	    n += l * 8;
+	    count += l * 8;
+	    off += l;
+	    len -= l;
+	}
+    }
+
+    void writeInts(int[] d, int off, int len) throws IOException {
+	while (len > 0) {
+	    ensure(4);
+	    int l = (buf.length - n) / 4;
+	    if (l > len) l = len;
+	    RTalk.setInts(d, off, l, buf, n);
+	    n += l * 4;
+	    count += l * 4;
+	    off += l;
+	    len -= l;
+	}
+    }
+}
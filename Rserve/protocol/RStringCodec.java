@@ -0,0 +1,298 @@
+package org.rosuda.REngine.Rserve.protocol;
+
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+import java.nio.*;
+import java.nio.charset.*;
+
+/** encoder/decoder of strings in the transfer encoding (see {@link org.rosuda.REngine.Rserve.RConnection#transferCharset}).
+    Strings are encoded directly into the target buffer and decoded directly from the source buffer
+    with fast paths for ASCII and UTF-8, other encodings use a cached {@link CharsetEncoder}/{@link CharsetDecoder}.
+    Optionally the decoder de-duplicates repeated values, i.e. equal byte sequences are decoded into the same
+    <code>String</code> instance, which saves both time and memory for the highly repetitive character vectors typical in R.
+    <p>
+    Instances are not thread-safe, {@link REXPFactory} shares one instance across the tree of factories used to
+    encode or decode one expression.
+*/
+public class RStringCodec {
+    /** maximal number of distinct values remembered for de-duplication */
+    static final int DEDUP_MAX = 65536;
+    /** only values up to this length (in bytes) are de-duplicated */
+    static final int DEDUP_MAX_LEN = 64;
+
+    /* Charset.forName() is relatively expensive so we cache the last one */
+    static String lastName;
+    static Charset lastCharset;
+
+    Charset charset;
+    boolean utf8;
+    CharsetEncoder encoder;
+    CharsetDecoder decoder;
+    /** scratch space for decoding, created on first use */
+    char[] cbuf;
+
+    boolean dedup;
+    /** de-duplication table (open addressing): encoded bytes, their hashes and the corresponding strings */
+    byte[][] dkeys;
+    int[] dhash;
+    String[] dvals;
+    int dcount;
+
+    /** creates a codec for the given encoding
+	@param charsetName name of the encoding */
+    public RStringCodec(String charsetName) {
+	charset = lookup(charsetName);
+	utf8 = charset.name().equals("UTF-8");
+    }
+
+    /** creates a codec for the current transfer encoding */
+    public RStringCodec() {
+	this(org.rosuda.REngine.Rserve.RConnection.transferCharset);
+    }
+
+    static synchronized Charset lookup(String name) {
+	if (lastCharset == null || !name.equals(lastName)) {
+	    lastCharset = Charset.forName(name);
+	    lastName = name;
+	}
+	return lastCharset;
+    }
+
+    /** enables or disables de-duplication of decoded strings
+	@param dedup <code>true</code> to return the same instance for repeated values */
+    public void setDeduplicate(boolean dedup) {
+	this.dedup = dedup;
+    }
+
+    /** checks whether de-duplication is enabled
+	@return <code>true</code> if de-duplication is enabled */
+    public boolean isDeduplicate() {
+	return dedup;
+    }
+
+    /** returns the encoding of this codec
+	@return charset */
+    public Charset getCharset() {
+	return charset;
+    }
+
+    //--- encoding ---
+
+    /** computes the number of bytes needed to encode a string (without terminating NUL), for ASCII and UTF-8 this is done without encoding the string
+	@param s string to encode
+	@return length of the encoded string */
+    public int encodedLength(String s) {
+	int n = s.length(), i = 0;
+	while (i < n && s.charAt(i) < 128) i++;
+	if (i == n) return n;
+	if (!utf8)
+	    return encodeOther(s).remaining();
+	int l = i;
+	while (i < n) {
+	    char c = s.charAt(i++);
+	    if (c < 0x80) l++;
+	    else if (c < 0x800) l += 2;
+	    else if (c >= 0xd800 && c < 0xdc00 && i < n && s.charAt(i) >= 0xdc00 && s.charAt(i) < 0xe000) { l += 4; i++; }
+	    else if (c >= 0xd800 && c < 0xe000) l++; // unpaired surrogates are replaced by '?'
+	    else l += 3;
+	}
+	return l;
+    }
+
+    /** returns the maximal number of bytes a string of the given length can be encoded to
+	@param chars length of the string
+	@return maximal length in bytes */
+    public int maxEncodedLength(int chars) {
+	if (utf8) return chars * 3;
+	return (int) Math.ceil(chars * (double) encoder().maxBytesPerChar());
+    }
+
+    /** encodes a string into the buffer (without terminating NUL). The buffer must be large enough, see {@link #encodedLength} and {@link #maxEncodedLength}.
+	@param s string to encode
+	@param buf target buffer
+	@param off offset in the buffer
+	@return offset behind the encoded string */
+    public int encode(String s, byte[] buf, int off) {
+	int n = s.length(), i = 0;
+	while (i < n) {
+	    char c = s.charAt(i);
+	    if (c >= 128) break;
+	    buf[off++] = (byte) c;
+	    i++;
+	}
+	if (i == n) return off;
+	if (!utf8) {
+	    ByteBuffer bb = encodeOther(s.substring(i));
+	    int l = bb.remaining();
+	    bb.get(buf, off, l);
+	    return off + l;
+	}
+	while (i < n) {
+	    char c = s.charAt(i++);
+	    if (c < 0x80)
+		buf[off++] = (byte) c;
+	    else if (c < 0x800) {
+		buf[off++] = (byte) (0xc0 | (c >> 6));
+		buf[off++] = (byte) (0x80 | (c & 0x3f));
+	    } else if (c >= 0xd800 && c < 0xdc00 && i < n && s.charAt(i) >= 0xdc00 && s.charAt(i) < 0xe000) {
+		int cp = 0x10000 + ((c - 0xd800) << 10) + (s.charAt(i++) - 0xdc00);
+		buf[off++] = (byte) (0xf0 | (cp >> 18));
+		buf[off++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+		buf[off++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+		buf[off++] = (byte) (0x80 | (cp & 0x3f));
+	    } else if (c >= 0xd800 && c < 0xe000)
+		buf[off++] = (byte) '?';
+	    else {
+		buf[off++] = (byte) (0xe0 | (c >> 12));
+		buf[off++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+		buf[off++] = (byte) (0x80 | (c & 0x3f));
+	    }
+	}
+	return off;
+    }
+
+    /** encodes a string into a new array
+	@param s string to encode
+	@return encoded string (without terminating NUL) */
+    public byte[] encode(String s) {
+	byte[] b = new byte[encodedLength(s)];
+	encode(s, b, 0);
+	return b;
+    }
+
+    /** checks whether the encoded string starts with the byte 0xff (which has to be escaped in string arrays since it denotes NA). This cannot happen in ASCII and UTF-8.
+	@param s string
+	@return <code>true</code> if the first encoded byte is 0xff */
+    public boolean startsWithFF(String s) {
+	if (utf8 || s.length() == 0 || s.charAt(0) < 128) return false;
+	ByteBuffer bb = encodeOther(s.substring(0, 1));
+	return bb.remaining() > 0 && bb.get(0) == -1;
+    }
+
+    CharsetEncoder encoder() {
+	if (encoder == null)
+	    encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	return encoder;
+    }
+
+    ByteBuffer encodeOther(String s) {
+	try {
+	    return encoder().encode(CharBuffer.wrap(s));
+	} catch (CharacterCodingException e) { // cannot happen with REPLACE
+	    return ByteBuffer.wrap(new byte[0]);
+	}
+    }
+
+    //--- decoding ---
+
+    /** decodes a string
+	@param buf source buffer
+	@param off offset of the encoded string
+	@param len length of the encoded string
+	@return decoded string */
+    public String decode(byte[] buf, int off, int len) {
+	if (!dedup || len > DEDUP_MAX_LEN)
+	    return decodeString(buf, off, len);
+	int h = 0;
+	for (int i = 0; i < len; i++)
+	    h = 31 * h + buf[off + i];
+	if (dkeys == null) {
+	    dkeys = new byte[1024][];
+	    dhash = new int[1024];
+	    dvals = new String[1024];
+	}
+	int mask = dkeys.length - 1, k = (h ^ (h >>> 16)) & mask;
+	while (dkeys[k] != null) {
+	    if (dhash[k] == h && equal(dkeys[k], buf, off, len))
+		return dvals[k];
+	    k = (k + 1) & mask;
+	}
+	String s = decodeString(buf, off, len);
+	if (dcount < DEDUP_MAX) {
+	    byte[] key = new byte[len];
+	    System.arraycopy(buf, off, key, 0, len);
+	    dkeys[k] = key;
+	    dhash[k] = h;
+	    dvals[k] = s;
+	    if (++dcount * 2 > dkeys.length)
+		growTable();
+	}
+	return s;
+    }
+
+    static boolean equal(byte[] key, byte[] buf, int off, int len) {
+	if (key.length != len) return false;
+	for (int i = 0; i < len; i++)
+	    if (key[i] != buf[off + i]) return false;
+	return true;
+    }
+
+    void growTable() {
+	byte[][] ok = dkeys;
+	int[] oh = dhash;
+	String[] ov = dvals;
+	int n = ok.length * 2, mask = n - 1;
+	dkeys = new byte[n][];
+	dhash = new int[n];
+	dvals = new String[n];
+	for (int i = 0; i < ok.length; i++)
+	    if (ok[i] != null) {
+		int h = oh[i], k = (h ^ (h >>> 16)) & mask;
+		while (dkeys[k] != null) k = (k + 1) & mask;
+		dkeys[k] = ok[i];
+		dhash[k] = h;
+		dvals[k] = ov[i];
+	    }
+    }
+
+    String decodeString(byte[] buf, int off, int len) {
+	if (len == 0) return "";
+	if (!utf8) {
+	    int i = 0;
+	    while (i < len && buf[off + i] >= 0) i++;
+	    if (i < len) {
+		if (decoder == null)
+		    decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		try {
+		    return decoder.decode(ByteBuffer.wrap(buf, off, len)).toString();
+		} catch (CharacterCodingException e) { // cannot happen with REPLACE
+		    return "";
+		}
+	    }
+	}
+	if (cbuf == null || cbuf.length < len)
+	    cbuf = new char[(len < 256) ? 256 : len];
+	char[] c = cbuf;
+	int n = 0, i = off, end = off + len;
+	while (i < end) {
+	    int b = buf[i];
+	    if (b >= 0) { c[n++] = (char) b; i++; continue; }
+	    /* multi-byte UTF-8 sequence (only reached for UTF-8 since other encodings were handled above) */
+	    int need, cp;
+	    if ((b & 0xe0) == 0xc0) { need = 1; cp = b & 0x1f; }
+	    else if ((b & 0xf0) == 0xe0) { need = 2; cp = b & 0x0f; }
+	    else if ((b & 0xf8) == 0xf0) { need = 3; cp = b & 0x07; }
+	    else { c[n++] = '\ufffd'; i++; continue; }
+	    int j = 1;
+	    while (j <= need && i + j < end && (buf[i + j] & 0xc0) == 0x80) {
+		cp = (cp << 6) | (buf[i + j] & 0x3f);
+		j++;
+	    }
+	    if (j <= need || (need == 1 && cp < 0x80) || (need == 2 && (cp < 0x800 || (cp >= 0xd800 && cp < 0xe000))) || (need == 3 && (cp < 0x10000 || cp > 0x10ffff))) {
+		c[n++] = '\ufffd'; // malformed or overlong sequence
+		i += j;
+		continue;
+	    }
+	    i += j;
+	    if (cp >= 0x10000) {
+		cp -= 0x10000;
+		c[n++] = (char) (0xd800 + (cp >> 10));
+		c[n++] = (char) (0xdc00 + (cp & 0x3ff));
+	    } else
+		c[n++] = (char) cp;
+	}
+	return new String(c, 0, n);
+    }
+}
@@ -7,10 +7,14 @@ package org.rosuda.REngine.Rserve.protocol;
 import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import org.rosuda.REngine.Rserve.RConnection;
 import org.rosuda.REngine.Rserve.protocol.REXPFactory;
 import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REngineEvent;
+import org.rosuda.REngine.REXPMismatchException;
 
 /** This class encapsulates the QAP1 protocol used by Rserv.
     it is independent of the underying protocol(s), therefore RTalk
@@ -98,13 +102,206 @@ public class RTalk {
 
     InputStream is;
     OutputStream os;
+    /** owner of outstanding responses that have to be drained before the next request, see {@link #setPendingResponses} */
+    PendingResponses pending;
+    /** buffer assembling requests (and encoding expressions directly into the stream), created on first use */
+    RStreamWriter writer;
+    /** buffer for response headers (re-used, the header is not retained beyond {@link #response(byte[],int)}) */
+    final byte[] hdr = new byte[16];
+    /** if set, responses are received into {@link #rbuf} and returned as views by {@link #rpacket} */
+    boolean reuseBuffers;
+    /** responses with content larger than this are spilled to a file in {@link #spillDir}, -1 if disabled */
+    long spillThreshold = -1;
+    File spillDir;
+    /** receive buffer and the packet viewing it (only used if {@link #reuseBuffers} is set) */
+    byte[] rbuf;
+    RPacket rpacket;
+    /** codec used to encode string parameters and the name of its encoding */
+    RStringCodec codec;
+    String codecName;
+    /** socket of the connection (if known), its timeout is used to enforce the deadline */
+    java.net.Socket socket;
+    /** deadline for receiving responses (as <code>System.currentTimeMillis()</code>), 0 if there is none */
+    long deadline;
+    /** timeout currently set on the socket */
+    int soTimeout;
+    /** set if reading failed because the deadline has passed */
+    boolean timedOut;
+    /** listener receiving measurements or <code>null</code> if there is none */
+    RTalkListener listener;
+    /** requests sent but not answered yet, each as <code>{cmd, start time, bytes sent}</code> (only maintained if there is a listener) */
+    java.util.LinkedList inFlight;
+    /** command of the last response received */
+    int lastCmd = -1;
     
     /** constructor; parameters specify the streams
 	@param sis socket input stream
 	@param sos socket output stream */
 
     public RTalk(InputStream sis, OutputStream sos) {
-	is=sis; os=sos;
+	is=new DeadlineInputStream(sis); os=sos;
+    }
+
+    /** constructor for streams of a socket which allows the use of deadlines, see {@link #setDeadline}
+	@param sock connected socket */
+    public RTalk(java.net.Socket sock) throws IOException {
+	this(sock.getInputStream(), sock.getOutputStream());
+	socket = sock;
+    }
+
+    /** sets the time by which responses must have been received. Any read from the connection after that time fails with a <code>SocketTimeoutException</code> and {@link #isTimedOut()} returns <code>true</code>. Since the state of the protocol is unknown after a timeout, the connection must be closed. Blocking reads are interrupted at the deadline only if this object was created for a socket, otherwise the deadline is checked before each read.
+	@param deadline deadline as <code>System.currentTimeMillis()</code> or 0 to remove the deadline */
+    public void setDeadline(long deadline) {
+	this.deadline = deadline;
+	timedOut = false;
+    }
+
+    /** returns the deadline set by {@link #setDeadline}
+	@return deadline or 0 if there is none */
+    public long getDeadline() {
+	return deadline;
+    }
+
+    /** checks whether a read failed because the deadline passed
+	@return <code>true</code> if the deadline passed while waiting for data */
+    public boolean isTimedOut() {
+	return timedOut;
+    }
+
+    /** maximal length of a Java array, longer content can only be streamed */
+    public static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    /** responses larger than this are never received into the re-used buffer, so it does not retain a lot of memory after an occasional large response */
+    public static final int REUSE_MAX = 1 << 20;
+
+    /** enables or disables re-use of the receive buffer. When enabled, the content of each response (up to {@link #REUSE_MAX} bytes) is received into a buffer owned by this connection and all responses are returned in the same {@link RPacket} instance, so a steady stream of small requests does not allocate anything on the receiving side. The packet and its content are only valid until the next response is received (see {@link RPacket#isView()}), callers that keep the content must copy it (see {@link RPacket#toByteArray()}).
+	@param reuse <code>true</code> to re-use the receive buffer */
+    public void setReuseBuffers(boolean reuse) {
+	reuseBuffers = reuse;
+	if (!reuse) {
+	    rbuf = null;
+	    rpacket = null;
+	}
+    }
+
+    /** Enables spilling of large responses to disk. The content of OK responses that are longer than <code>threshold</code> is copied from the socket into a temporary file instead of memory and the packet returned by {@link #response(byte[],int)} holds that file (see {@link RPacket#isSpilled()}). Large vectors can then be decoded by mapping them from the file (see {@link REXPFactory#parseREXP(RSpillFile,long)}), which allows the retrieval of results that are larger than the Java heap. This only applies to requests whose caller accepts packets without content, i.e. which pass a non-negative <code>streamAbove</code> threshold (as {@link org.rosuda.REngine.Rserve.RConnection#eval} does). The files are restricted to the owner of the process where the file system supports it (see {@link RSpillFile#create}), otherwise pass a private <code>dir</code>.
+	@param threshold size of the content in bytes above which it is spilled or -1 to disable spilling
+	@param dir directory for the files or <code>null</code> for the default temporary directory */
+    public void setSpillThreshold(long threshold, File dir) {
+	spillThreshold = threshold;
+	spillDir = dir;
+    }
+
+    /** returns the threshold set by {@link #setSpillThreshold}
+	@return threshold in bytes or -1 if spilling is disabled */
+    public long getSpillThreshold() {
+	return spillThreshold;
+    }
+
+    /** checks whether the receive buffer is re-used, see {@link #setReuseBuffers}
+	@return <code>true</code> if the receive buffer is re-used */
+    public boolean isReuseBuffers() {
+	return reuseBuffers;
+    }
+
+    /** returns the re-used packet set up as a view of the given content */
+    RPacket view(int cmd, byte[] cont, int len) {
+	if (rpacket == null)
+	    rpacket = new RPacket(0, null);
+	rpacket.set(cmd, cont, len);
+	return rpacket;
+    }
+
+    /** sets the listener receiving measurements of all requests. When no listener is set, no measurements are taken.
+	@param l listener or <code>null</code> to remove the listener */
+    public void setListener(RTalkListener l) {
+	inFlight = (l == null) ? null : new java.util.LinkedList();
+	listener = l;
+    }
+
+    /** returns the listener set by {@link #setListener}
+	@return listener or <code>null</code> */
+    public RTalkListener getListener() {
+	return listener;
+    }
+
+    /** returns the command of the request answered by the last response received
+	@return command or -1 if it is not known */
+    public int getLastCommand() {
+	return lastCmd;
+    }
+
+    /** records a request that was sent */
+    void sent(int cmd, long start, long bytes) {
+	inFlight.add(new long[] { cmd, start, bytes });
+    }
+
+    /** reports a response to the listener */
+    void received(int rep, long rl, long headerTime) {
+	if ((rep & 0xf0000) == CMD_OOB || inFlight.isEmpty()) { // OOB messages are not responses to requests
+	    lastCmd = -1;
+	    return;
+	}
+	long[] rq = (long[]) inFlight.removeFirst();
+	lastCmd = (int) rq[0];
+	listener.requestCompleted(lastCmd, rq[2], rl + 16, headerTime - rq[1], System.nanoTime() - rq[1], (rep >> 24) & 127);
+    }
+
+    /** prepares the socket for a read according to the deadline */
+    void checkDeadline() throws IOException {
+	if (deadline == 0) {
+	    if (soTimeout != 0) {
+		soTimeout = 0;
+		socket.setSoTimeout(0);
+	    }
+	    return;
+	}
+	long left = deadline - System.currentTimeMillis();
+	if (left <= 0) {
+	    timedOut = true;
+	    throw new java.net.SocketTimeoutException("deadline exceeded");
+	}
+	if (socket != null) {
+	    soTimeout = (left > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) left;
+	    socket.setSoTimeout(soTimeout);
+	}
+    }
+
+    /** input stream that enforces the deadline on all reads */
+    class DeadlineInputStream extends FilterInputStream {
+	DeadlineInputStream(InputStream in) {
+	    super(in);
+	}
+
+	public int read() throws IOException {
+	    checkDeadline();
+	    try {
+		return in.read();
+	    } catch (java.net.SocketTimeoutException e) {
+		timedOut = true;
+		throw e;
+	    }
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+	    checkDeadline();
+	    try {
+		return in.read(b, off, len);
+	    } catch (java.net.SocketTimeoutException e) {
+		timedOut = true;
+		throw e;
+	    }
+	}
+
+	public long skip(long n) throws IOException {
+	    checkDeadline();
+	    try {
+		return in.skip(n);
+	    } catch (java.net.SocketTimeoutException e) {
+		timedOut = true;
+		throw e;
+	    }
+	}
     }
 
     /** writes bit-wise int to a byte buffer at specified position in Intel-endian form
@@ -126,15 +323,23 @@ public class RTalk {
         @return offset in buf just after the header. Please note that since Rserve 0.3 the header can be either 4 or 8 bytes long, depending on the len parameter.
         */
     public static int setHdr(int ty, int len, byte[] buf, int o) {
+	return setHdr(ty, (long) len, buf, o);
+    }
+
+    /** writes cmd/resp/type byte + 3/7 bytes len into a byte buffer at specified offset. Lengths up to 56 bits are supported (the "large" format).
+	@param ty type/cmd/resp byte
+	@param len length
+	@param buf buffer
+	@param o offset
+        @return offset in buf just after the header (4 or 8 bytes) */
+    public static int setHdr(int ty, long len, byte[] buf, int o) {
         buf[o]=(byte)((ty&255)|((len>0xfffff0)?DT_LARGE:0)); o++;
 	buf[o]=(byte)(len&255); o++;
-	buf[o]=(byte)((len&0xff00)>>8); o++;
-	buf[o]=(byte)((len&0xff0000)>>16); o++;
+	buf[o]=(byte)((len>>8)&255); o++;
+	buf[o]=(byte)((len>>16)&255); o++;
         if (len>0xfffff0) { // for large data we need to set the next 4 bytes as well
-            buf[o]=(byte)((len&0xff000000)>>24); o++;
-            buf[o]=0; o++; // since len is int, we get 32-bits only
-            buf[o]=0; o++;
-            buf[o]=0; o++;
+	    setInt((int)(len>>>24), buf, o);
+	    o+=4;
         }
         return o;
     }
@@ -157,7 +362,7 @@ public class RTalk {
 	return ((buf[o]&255)|((buf[o+1]&255)<<8)|((buf[o+2]&255)<<16)|((buf[o+3]&255)<<24));
     }
 
-    /** converts bit-wise stored length from a header. "long" format is supported up to 32-bit
+    /** converts bit-wise stored length from a header. "long" format is supported up to 32-bit, use {@link #getLongLen} for longer content
 	@param buf buffer
 	@param o offset of the header (length is at o+1)
 	@return length */
@@ -170,6 +375,17 @@ public class RTalk {
         ((buf[o+1]&255)|((buf[o+2]&255)<<8)|((buf[o+3]&255)<<16));
     }
 
+    /** converts bit-wise stored length from a header including the full 56-bit "long" format
+	@param buf buffer
+	@param o offset of the header (length is at o+1)
+	@return length */
+    public static long getLongLen(byte[] buf, int o) {
+	long l = (buf[o+1]&255)|((buf[o+2]&255)<<8)|((buf[o+3]&255)<<16);
+	if ((buf[o]&64)>0)
+	    l |= (((long)getInt(buf, o+4))&0xffffffffL)<<24;
+	return l;
+    }
+
     /** converts bit-wise Intel-endian format into long
 	@param buf buffer
 	@param o offset (8 bytes will be used)
@@ -186,6 +402,65 @@ public class RTalk {
 	setInt((int)(l>>32),buf,o+4);
     }
 
+    /** arrays shorter than this are converted element by element, which is faster than (and does not allocate) the buffer views used for bulk conversion */
+    static final int SMALL = 16;
+
+    /** converts a block of Intel-endian doubles into Java doubles in one bulk operation
+	@param buf buffer containing the representation
+	@param o offset in the buffer (8*n bytes will be used)
+	@param d target array
+	@param doff offset in the target array
+	@param n number of doubles to convert */
+    public static void getDoubles(byte[] buf, int o, double[] d, int doff, int n) {
+	if (n < SMALL) {
+	    for (int i = 0; i < n; i++, o += 8) d[doff + i] = Double.longBitsToDouble(getLong(buf, o));
+	    return;
+	}
+	ByteBuffer.wrap(buf, o, n * 8).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(d, doff, n);
+    }
+
+    /** stores a block of doubles in Intel-endian form in one bulk operation
+	@param d source array
+	@param doff offset in the source array
+	@param n number of doubles to convert
+	@param buf buffer to store the representation in
+	@param o offset in the buffer (8*n bytes will be used) */
+    public static void setDoubles(double[] d, int doff, int n, byte[] buf, int o) {
+	if (n < SMALL) {
+	    for (int i = 0; i < n; i++, o += 8) setLong(Double.doubleToRawLongBits(d[doff + i]), buf, o);
+	    return;
+	}
+	ByteBuffer.wrap(buf, o, n * 8).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().put(d, doff, n);
+    }
+
+    /** converts a block of Intel-endian ints into Java ints in one bulk operation
+	@param buf buffer containing the representation
+	@param o offset in the buffer (4*n bytes will be used)
+	@param d target array
+	@param doff offset in the target array
+	@param n number of ints to convert */
+    public static void getInts(byte[] buf, int o, int[] d, int doff, int n) {
+	if (n < SMALL) {
+	    for (int i = 0; i < n; i++, o += 4) d[doff + i] = getInt(buf, o);
+	    return;
+	}
+	ByteBuffer.wrap(buf, o, n * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(d, doff, n);
+    }
+
+    /** stores a block of ints in Intel-endian form in one bulk operation
+	@param d source array
+	@param doff offset in the source array
+	@param n number of ints to convert
+	@param buf buffer to store the representation in
+	@param o offset in the buffer (4*n bytes will be used) */
+    public static void setInts(int[] d, int doff, int n, byte[] buf, int o) {
+	if (n < SMALL) {
+	    for (int i = 0; i < n; i++, o += 4) setInt(d[doff + i], buf, o);
+	    return;
+	}
+	ByteBuffer.wrap(buf, o, n * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(d, doff, n);
+    }
+
     /** sends a request with no attached parameters
 	@param cmd command
 	@return returned packet or <code>null</code> if something went wrong */
@@ -203,41 +478,91 @@ public class RTalk {
     }
 
     /** read the response. Return <code>null</code> on error (FIXME: need to use exceptions) */
-    public RPacket response() { return response(null); }
+    public RPacket response() { return response(null, -1); }
 
     /** read the response. If header is <code>null</code> then is it read from the socket otherwise
 	the provided header is used instead of reading it. Note that if provided, the
 	header aray must have at least 16 bytes and it must at most contain one message */
-    public RPacket response(byte[] header) {
+    public RPacket response(byte[] header) { return response(header, -1); }
+
+    /** read the response. If <code>streamAbove</code> is not negative and the response is OK
+	with content longer than <code>streamAbove</code> bytes, the content is not read. Instead a
+	packet without content is returned (see {@link RPacket#isStreamed()}) and the caller is
+	responsible for consuming exactly {@link RPacket#getLength()} bytes from {@link #getInputStream()}.
+	If spilling is enabled (see {@link #setSpillThreshold}) such content may be stored in a file instead (see {@link RPacket#isSpilled()}).
+	@param header header to use or <code>null</code> if it is to be read from the socket
+	@param streamAbove threshold for leaving the content in the stream or -1 to always read the content
+	@return response packet or <code>null</code> on error */
+    public RPacket response(byte[] header, int streamAbove) {
 	try {
 	    if (header == null) {
-		header = new byte[16];
-		int n = is.read(header);
-		if (n != 16)
-		    return null;
+		header = hdr;
+		readFully(is, header, 0, 16);
 	    }
+	    long headerTime = (listener == null) ? 0 : System.nanoTime();
 	    int rep = getInt(header, 0);
-	    int rl  = getInt(header, 4);
+	    long rl = (((long)getInt(header, 4))&0xffffffffL)|(((long)getInt(header, 12))<<32);
 	    if (rl > 0) {
-		byte[] ct = new byte[rl];
+		if (streamAbove >= 0 && spillThreshold >= 0 && rl > spillThreshold && header.length == 16 && (rep & 15) == 1) {
+		    RPacket sp = new RPacket(rep, rl);
+		    sp.spill = RSpillFile.create(is, rl, spillDir);
+		    if (listener != null) received(rep, rl, headerTime);
+		    return sp;
+		}
+		/* content that does not fit into an array is always left in the stream */
+		if (((streamAbove >= 0 && rl > streamAbove) || rl > MAX_ARRAY) && header.length == 16 && (rep & 15) == 1) {
+		    if (listener != null) received(rep, rl, headerTime);
+		    return new RPacket(rep, rl);
+		}
+		if (rl > MAX_ARRAY)
+		    throw new IOException("response is too big ("+rl+" bytes)");
+		if (reuseBuffers && rl <= REUSE_MAX && header.length == 16) {
+		    if (rbuf == null || rbuf.length < rl)
+			rbuf = new byte[(rl < 4096) ? 4096 : (int) rl];
+		    readFully(is, rbuf, 0, (int) rl);
+		    if (listener != null) received(rep, rl, headerTime);
+		    return view(rep, rbuf, (int) rl);
+		}
+		byte[] ct = new byte[(int) rl];
                 int n = 0;
 		if (header.length > 16) {
 		    n = header.length - 16;
 		    System.arraycopy(header, 16, ct, 0, n);
 		}
-                while (n < rl) {
-                    int rd = is.read(ct, n, rl - n);
-                    n += rd;
-                }
+		readFully(is, ct, n, (int) rl - n);
+		if (listener != null) received(rep, rl, headerTime);
 		return new RPacket(rep, ct);
 	    }
-	    return new RPacket(rep, null);
+	    if (listener != null) received(rep, 0, headerTime);
+	    return reuseBuffers ? view(rep, null, 0) : new RPacket(rep, null);
 	} catch(Exception e) {
-	    e.printStackTrace();
+	    if (!timedOut) e.printStackTrace();
 	    return null;
 	}
     }
 
+    /** returns the input stream used to read responses. It is only needed to consume content of streamed responses, see {@link #response(byte[],int)}.
+	@return input stream */
+    public InputStream getInputStream() {
+	return is;
+    }
+
+    /** reads exactly <code>len</code> bytes from an input stream
+	@param is stream to read from
+	@param b buffer to store the bytes into
+	@param off offset in the buffer
+	@param len number of bytes to read
+	@throws EOFException if the stream ends before all bytes have been read */
+    public static void readFully(InputStream is, byte[] b, int off, int len) throws IOException {
+	while (len > 0) {
+	    int n = is.read(b, off, len);
+	    if (n < 0)
+		throw new EOFException("connection closed while reading data");
+	    off += n;
+	    len -= n;
+	}
+    }
+
     /** sends a request with attached prefix and  parameters. Both prefix and cont can be <code>null</code>. Effectively <code>request(a,b,null)</code> and <code>request(a,null,b)</code> are equivalent.
 	@param cmd command - a special command of -1 prevents request from sending anything
         @param prefix - this content is sent *before* cont. It is provided to save memory copy operations where a small header precedes a large data chunk (usually prefix conatins the parameter header and cont contains the actual data).
@@ -246,6 +571,56 @@ public class RTalk {
         @param len number of bytes in cont to send (it is clipped to the length of cont if necessary)
 	@return returned packet or <code>null</code> if something went wrong */
     public RPacket request(int cmd, byte[] prefix, byte[] cont, int offset, int len) {
+	return request(cmd, prefix, cont, offset, len, -1);
+    }
+
+    /** same as {@link #request(int,byte[],byte[],int,int)} but allows the content of large responses to remain in the stream, see {@link #response(byte[],int)}.
+	@param cmd command - a special command of -1 prevents request from sending anything
+        @param prefix - this content is sent *before* cont
+        @param cont contents
+        @param offset offset in cont where to start sending
+        @param len number of bytes in cont to send
+	@param streamAbove threshold for leaving the response content in the stream or -1 to always read the content
+	@return returned packet or <code>null</code> if something went wrong */
+    public RPacket request(int cmd, byte[] prefix, byte[] cont, int offset, int len, int streamAbove) {
+	Object ev = REQUEST_EVENT.begin();
+	RPacket rp = null;
+	try {
+	    if (cmd!=-1)
+		send(cmd, prefix, cont, offset, len);
+	    return rp = response(null, streamAbove);
+	} catch(Exception e) {
+	    if (!timedOut) e.printStackTrace();
+	    return null;
+	} finally {
+	    if (ev != null) requestEvent(ev, cmd, ((prefix == null) ? 0 : prefix.length) + ((cont == null) ? 0 : len), rp);
+	}
+    }
+
+    /** JFR event of a request, see {@link REngineEvent} */
+    static final REngineEvent REQUEST_EVENT = REngineEvent.define("org.rosuda.REngine.Rserve.Request", "Rserve Request",
+								  new String[] { "command", "payload", "response", "status" },
+								  new Class[] { int.class, long.class, long.class, int.class });
+
+    /** commits a request event
+	@param ev event
+	@param cmd command
+	@param payload size of the request payload
+	@param rp response or <code>null</code> if the request failed */
+    static void requestEvent(Object ev, int cmd, long payload, RPacket rp) {
+	REQUEST_EVENT.commit(ev, new Object[] { Integer.valueOf(cmd), Long.valueOf(payload),
+						Long.valueOf((rp == null) ? -1 : rp.getLongLength()), Integer.valueOf((rp == null) ? -1 : rp.getStat()) });
+    }
+
+    /** sends a request without waiting for the response. Parameters are the same as in {@link #request(int,byte[],byte[],int,int)}, the response has to be collected using {@link #response()}.
+	@param cmd command
+        @param prefix - this content is sent *before* cont
+        @param cont contents
+        @param offset offset in cont where to start sending
+        @param len number of bytes in cont to send */
+    public void send(int cmd, byte[] prefix, byte[] cont, int offset, int len) throws IOException {
+	if (pending != null)
+	    drainPending();
         if (cont!=null) {
             if (offset>=cont.length) { cont=null; len=0; }
             else if (len>cont.length-offset) len=cont.length-offset;
@@ -254,23 +629,47 @@ public class RTalk {
         if (len<0) len=0;
         int contlen=(cont==null)?0:len;
         if (prefix!=null && prefix.length>0) contlen+=prefix.length;
-	byte[] hdr=new byte[16];
-	setInt(cmd,hdr,0);
-	setInt(contlen,hdr,4);
-	for(int i=8;i<16;i++) hdr[i]=0;
-	try {
-	    if (cmd!=-1) {
-		os.write(hdr);
-		if (prefix!=null && prefix.length>0)
-		    os.write(prefix);
-		if (cont!=null && cont.length>0)
-		    os.write(cont,offset,len);
-	    }
-	    return response();
-	} catch(Exception e) {
-	    e.printStackTrace();
-	    return null;
-	}
+	if (listener != null) sent(cmd, System.nanoTime(), 16 + contlen);
+	/* the header, prefix and content are assembled in the connection buffer so that a
+	   request goes out in one write (and hence one segment since TCP_NODELAY is set);
+	   only content that does not fit into the buffer is written directly */
+	RStreamWriter w = writer();
+	w.writeInt(cmd);
+	w.writeInt(contlen);
+	w.writeLong(0);
+	if (prefix!=null && prefix.length>0)
+	    w.writeBytes(prefix, 0, prefix.length);
+	if (cont!=null && len>0)
+	    w.writeBytes(cont, offset, len);
+	w.flush();
+    }
+
+    /** returns the writer of this connection with an empty buffer */
+    RStreamWriter writer() {
+	if (writer == null)
+	    writer = new RStreamWriter(os);
+	writer.n = 0; // discard anything left over from a failed request
+	return writer;
+    }
+
+    /** interface of objects that have sent requests whose responses have not been read yet (e.g. streams reading ahead). Before any other request is sent, the responses are drained, so the other request will receive its own response. */
+    public interface PendingResponses {
+	/** reads all outstanding responses */
+	void drain() throws IOException;
+    }
+
+    /** sets the object that owns outstanding responses. It will be asked to drain them (once) as soon as any request is sent, so the object has to call this method again if it sends more requests without reading the responses.
+	@param p object with outstanding responses or <code>null</code> if there are none */
+    public void setPendingResponses(PendingResponses p) {
+	pending = p;
+    }
+
+    /** drains any outstanding responses, see {@link #setPendingResponses} */
+    public void drainPending() throws IOException {
+	PendingResponses p = pending;
+	pending = null;
+	if (p != null)
+	    p.drain();
     }
 
     /** sends a request with one string parameter attached
@@ -278,23 +677,89 @@ public class RTalk {
 	@param par parameter - length and DT_STRING will be prepended
 	@return returned packet or <code>null</code> if something went wrong */
     public RPacket request(int cmd, String par) {
+	return request(cmd, par, -1);
+    }
+
+    /** sends a request with one string parameter attached, allowing the content of large responses to remain in the stream, see {@link #response(byte[],int)}.
+	@param cmd command
+	@param par parameter - length and DT_STRING will be prepended
+	@param streamAbove threshold for leaving the response content in the stream or -1 to always read the content
+	@return returned packet or <code>null</code> if something went wrong */
+    public RPacket request(int cmd, String par, int streamAbove) {
+	return request(cmd, par, null, streamAbove);
+    }
+
+    /** sends a request with one string parameter followed by a suffix (e.g. a newline), which saves the concatenation of the two
+	@param cmd command
+	@param par parameter - length and DT_STRING will be prepended
+	@param suffix string appended to the parameter or <code>null</code>
+	@param streamAbove threshold for leaving the response content in the stream or -1 to always read the content
+	@return returned packet or <code>null</code> if something went wrong */
+    public RPacket request(int cmd, String par, String suffix, int streamAbove) {
+	Object ev = REQUEST_EVENT.begin();
+	RPacket rp = null;
+	int pl = 0;
 	try {
-            byte[] b=par.getBytes(RConnection.transferCharset);
-            int sl=b.length+1;
-            if ((sl&3)>0) sl=(sl&0xfffffc)+4; // make sure the length is divisible by 4
-	    byte[] rq=new byte[sl+5];
-            int i;
-	    for(i=0;i<b.length;i++)
-                rq[i+4]=b[i];
-            while (i<sl) { // pad with 0
-                rq[i+4]=0; i++;
-            };
-	    setHdr(DT_STRING,sl,rq,0);
-	    return request(cmd,rq);
+	    pl = send(cmd, par, suffix);
+	    return rp = response(null, streamAbove);
 	} catch (Exception e) {
-	    e.printStackTrace();
+	    if (!timedOut) e.printStackTrace();
+	    return null;
+	} finally {
+	    if (ev != null) requestEvent(ev, cmd, pl, rp);
 	}
-	return null;
+    }
+
+    /** sends a request with one string parameter without waiting for the response. The string is encoded directly into the connection buffer, the result is the same as sending {@link #stringParameter}.
+	@param cmd command
+	@param par parameter - length and DT_STRING will be prepended
+	@return length of the payload */
+    public int send(int cmd, String par) throws IOException {
+	return send(cmd, par, null);
+    }
+
+    /** sends a request with one string parameter followed by a suffix without waiting for the response, see {@link #send(int,String)}
+	@param cmd command
+	@param par parameter - length and DT_STRING will be prepended
+	@param suffix string appended to the parameter or <code>null</code>
+	@return length of the payload */
+    public int send(int cmd, String par, String suffix) throws IOException {
+	if (pending != null)
+	    drainPending();
+	if (codec == null || codecName != RConnection.transferCharset) {
+	    codecName = RConnection.transferCharset;
+	    codec = new RStringCodec(codecName);
+	}
+	int sl = codec.encodedLength(par) + ((suffix == null) ? 0 : codec.encodedLength(suffix)) + 1;
+	if ((sl&3)>0) sl=sl-(sl&3)+4; // make sure the length is divisible by 4
+	int hl = (sl>0xfffff0)?8:4;
+	RStreamWriter w = writer();
+	if (listener != null) sent(cmd, System.nanoTime(), 16 + hl + sl);
+	w.writeInt(cmd);
+	w.writeInt(hl + sl);
+	w.writeLong(0);
+	w.writeHdr(DT_STRING, sl);
+	long start = w.count;
+	w.writeString(codec, par);
+	if (suffix != null)
+	    w.writeString(codec, suffix);
+	w.fill(0, sl - (w.count - start));
+	w.flush();
+	return hl + sl;
+    }
+
+    /** encodes a string as a <code>DT_STRING</code> parameter (including the parameter header)
+	@param par string to encode
+	@return encoded parameter */
+    public static byte[] stringParameter(String par) throws UnsupportedEncodingException {
+	byte[] b=par.getBytes(RConnection.transferCharset);
+	int sl=b.length+1;
+	if ((sl&3)>0) sl=(sl&0xfffffc)+4; // make sure the length is divisible by 4
+	int hl=(sl>0xfffff0)?8:4;
+	byte[] rq=new byte[sl+hl];
+	System.arraycopy(b, 0, rq, hl, b.length); // the rest is already 0-padded
+	setHdr(DT_STRING,sl,rq,0);
+	return rq;
     }
 
     /** sends a request with one REXP (single <code>DT_SEXP</code> payload)
@@ -303,18 +768,56 @@ public class RTalk {
 	@return returned packet or <code>null</code> if something went wrong */
     public RPacket request(int cmd, REXP object) {
 	try {
-	    REXPFactory r = new REXPFactory(object);
-	    int rl = r.getBinaryLength();
-	    byte[] rq = new byte[rl + ((rl > 0xfffff0) ? 8 : 4)];
-	    setHdr(RTalk.DT_SEXP, rl, rq, 0);
-	    r.getBinaryRepresentation(rq, (rl > 0xfffff0) ? 8 : 4);
-	    return request(cmd, rq);
+	    return request(cmd, null, new REXPFactory(object), -1);
 	} catch (Exception e) {
 	    e.printStackTrace();
 	}
 	return null;
     }
 
+    /** sends a request with an optional prefix followed by one <code>DT_SEXP</code> parameter. The expression is encoded directly into the socket stream through a buffer that is re-used for all requests on this connection, so no buffer of the full request size is allocated.
+	@param cmd command
+	@param prefix parameters to send before the expression (can be <code>null</code>)
+	@param r factory of the expression to send
+	@param streamAbove threshold for leaving the response content in the stream or -1 to always read the content, see {@link #response(byte[],int)}
+	@return returned packet or <code>null</code> if something went wrong */
+    public RPacket request(int cmd, byte[] prefix, REXPFactory r, int streamAbove) {
+	Object ev = REQUEST_EVENT.begin();
+	RPacket rp = null;
+	try {
+	    send(cmd, prefix, r);
+	    return rp = response(null, streamAbove);
+	} catch (Exception e) {
+	    if (!timedOut) e.printStackTrace();
+	} finally {
+	    if (ev != null) requestEvent(ev, cmd, ((prefix == null) ? 0 : prefix.length) + r.binLength, rp);
+	}
+	return null;
+    }
+
+    /** sends a request with an optional prefix followed by one <code>DT_SEXP</code> parameter without waiting for the response, see {@link #request(int,byte[],REXPFactory,int)}.
+	@param cmd command
+	@param prefix parameters to send before the expression (can be <code>null</code>)
+	@param r factory of the expression to send */
+    public void send(int cmd, byte[] prefix, REXPFactory r) throws IOException, REXPMismatchException {
+	if (pending != null)
+	    drainPending();
+	long rl = r.getBinaryLongLength();
+	int pl = (prefix == null) ? 0 : prefix.length;
+	long len = pl + rl + ((rl > 0xfffff0) ? 8 : 4);
+	writer();
+	if (listener != null) sent(cmd, System.nanoTime(), 16 + len);
+	writer.writeInt(cmd);
+	writer.writeInt((int) len);
+	writer.writeInt(0);
+	writer.writeInt((int) (len >>> 32)); // high 32 bits of the length
+	if (prefix != null)
+	    writer.writeBytes(prefix, 0, pl);
+	writer.writeHdr(DT_SEXP, rl);
+	r.writeBinaryRepresentation(writer);
+	writer.flush();
+    }
+
     /** sends a request with one string parameter attached
         @param cmd command
         @param par parameter of the type DT_INT
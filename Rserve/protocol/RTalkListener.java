@@ -0,0 +1,26 @@
+package org.rosuda.REngine.Rserve.protocol;
+
+// JRclient library - client interface to Rserve, see http://www.rosuda.org/Rserve/
+// Copyright (C) 2004-21 Simon Urbanek
+// --- for licensing information see LICENSE file in the original JRclient distribution ---
+
+/** listener which receives wire-level measurements of the requests sent through an {@link RTalk}, see {@link RTalk#setListener}.
+    The methods are called synchronously on the thread performing the request, so they must be fast and must not use the connection.
+    {@link org.rosuda.REngine.Rserve.RMetrics} is an implementation aggregating the measurements in histograms.
+*/
+public interface RTalkListener {
+    /** called when the response to a request has been received
+	@param cmd command of the request (e.g. {@link RTalk#CMD_eval})
+	@param sent number of bytes sent (including the header)
+	@param received number of bytes of the response (including the header), for streamed responses this includes the content still pending in the stream
+	@param firstByteNanos time from sending the request until the response header arrived
+	@param totalNanos time from sending the request until the response was received, for streamed responses the content is not included (see {@link #responseDecoded})
+	@param status status code of the response (see {@link RPacket#getStat()}), 0 for success */
+    void requestCompleted(int cmd, long sent, long received, long firstByteNanos, long totalNanos, int status);
+
+    /** called when the content of a response has been decoded into a REXP
+	@param cmd command of the request
+	@param bytes size of the decoded content
+	@param nanos time spent decoding (for streamed responses this includes receiving the content) */
+    void responseDecoded(int cmd, long bytes, long nanos);
+}
@@ -0,0 +1,757 @@
+package org.rosuda.REngine.Rserve;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import org.rosuda.REngine.RDirectArena;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDirectDouble;
+import org.rosuda.REngine.REXPDirectInteger;
+import org.rosuda.REngine.REXPDirectLogical;
+import org.rosuda.REngine.REXPDirectRaw;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPGenericVector;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPLanguage;
+import org.rosuda.REngine.REXPList;
+import org.rosuda.REngine.REXPLogical;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPRaw;
+import org.rosuda.REngine.REXPSegmentedDouble;
+import org.rosuda.REngine.REXPSegmentedInteger;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.REXPSymbol;
+import org.rosuda.REngine.RFactor;
+import org.rosuda.REngine.REXPFactor;
+import org.rosuda.REngine.RList;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+import org.rosuda.REngine.Rserve.protocol.RPacket;
+import org.rosuda.REngine.Rserve.protocol.RSpillFile;
+import org.rosuda.REngine.Rserve.protocol.RStringCodec;
+import org.rosuda.REngine.Rserve.protocol.RTalk;
+
+/**
+ * QAP1 encoding/decoding tests that don't require a running Rserve.
+ */
+public class REXPFactoryTest {
+
+  private static byte[] encode(REXP x) throws REXPMismatchException {
+    final REXPFactory f = new REXPFactory(x);
+    final byte[] buf = new byte[f.getBinaryLength()];
+    f.getBinaryRepresentation(buf, 0);
+    return buf;
+  }
+
+  private static REXP decode(byte[] buf) throws REXPMismatchException {
+    final REXPFactory f = new REXPFactory();
+    assertEquals(buf.length, f.parseREXP(buf, 0));
+    return f.getREXP();
+  }
+
+  private static REXP decodeStream(byte[] buf) throws Exception {
+    final REXPFactory f = new REXPFactory();
+    final ByteArrayInputStream is = new ByteArrayInputStream(buf);
+    assertEquals(buf.length, f.parseREXP(is));
+    assertEquals(0, is.available());
+    return f.getREXP();
+  }
+
+  private static REXP sampleFrame() throws REXPMismatchException {
+    final double[] d = new double[100000];
+    final int[] i = new int[d.length];
+    final String[] s = new String[d.length];
+    for (int k = 0; k < d.length; k++) {
+      d[k] = k * 0.5;
+      i[k] = (k % 7 == 0) ? REXPInteger.NA : k;
+      s[k] = (k % 11 == 0) ? null : ("s" + (k % 13));
+    }
+    d[3] = REXPDouble.NA;
+    final RList l = new RList();
+    l.put("d", new REXPDouble(d));
+    l.put("i", new REXPInteger(i));
+    l.put("s", new REXPString(s));
+    l.put("b", new REXPLogical(new boolean[] { true, false, true }));
+    l.put("r", new REXPRaw(new byte[] { 1, 2, 3, 4, 5 }));
+    l.put("f", new REXPFactor(new RFactor(new String[] { "a", "b", null, "a" })));
+    l.put("p", new REXPList(new RList(new REXP[] { new REXPInteger(1), new REXPString("x") }, new String[] { "one", "two" })));
+    return REXP.createDataFrame(l);
+  }
+
+  private static void assertSameFrame(REXP a, REXP b) throws REXPMismatchException {
+    assertTrue(b instanceof REXPGenericVector);
+    final RList la = a.asList(), lb = b.asList();
+    assertArrayEquals(la.keys(), lb.keys());
+    assertArrayEquals(la.at("d").asDoubles(), lb.at("d").asDoubles(), 0.0);
+    assertTrue(REXPDouble.isNA(lb.at("d").asDoubles()[3]));
+    assertArrayEquals(la.at("i").asIntegers(), lb.at("i").asIntegers());
+    assertArrayEquals(la.at("s").asStrings(), lb.at("s").asStrings());
+    assertNull(lb.at("s").asStrings()[0]);
+    assertArrayEquals(la.at("b").asBytes(), lb.at("b").asBytes());
+    assertArrayEquals(la.at("r").asBytes(), lb.at("r").asBytes());
+    assertTrue(lb.at("f").isFactor());
+    assertArrayEquals(la.at("f").asStrings(), lb.at("f").asStrings());
+    assertEquals("x", lb.at("p").asList().at("two").asString());
+    assertTrue(b.inherits("data.frame"));
+  }
+
+  @Test
+  public void roundTripTest() throws Exception {
+    final REXP x = sampleFrame();
+    assertSameFrame(x, decode(encode(x)));
+  }
+
+  @Test
+  public void streamingEncodeTest() throws Exception {
+    final REXP x = sampleFrame();
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    final long n = new REXPFactory(x).writeBinaryRepresentation(os);
+    final byte[] buf = encode(x);
+    assertEquals(buf.length, n);
+    assertArrayEquals(buf, os.toByteArray());
+    assertSameFrame(x, decode(os.toByteArray()));
+  }
+
+  @Test
+  public void taggedLanguageAndUnicodeNamesTest() throws Exception {
+    final RList args = new RList(new REXP[] { new REXPSymbol("f"), new REXPDouble(1.5), new REXPString("\u00e9t\u00e9") },
+        new String[] { "", "x", "caf\u00e9" });
+    final RList l = new RList();
+    l.put("\u00fcber", new REXPLanguage(args));
+    l.put("abc", new REXPString(new String[] { "\u00e9", null, "" }));
+    final REXP x = new REXPList(l);
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new REXPFactory(x).writeBinaryRepresentation(os);
+    assertArrayEquals(encode(x), os.toByteArray());
+
+    final RList d = decode(os.toByteArray()).asList();
+    assertEquals("\u00fcber", d.keyAt(0));
+    final RList call = d.at(0).asList();
+    assertEquals("caf\u00e9", call.keyAt(2));
+    assertEquals("\u00e9t\u00e9", call.at(2).asString());
+    assertArrayEquals(new String[] { "\u00e9", null, "" }, d.at("abc").asStrings());
+  }
+
+  @Test
+  public void reusedPlanTest() throws Exception {
+    // a wide data frame and a deeply nested list encoded twice by the same factory
+    final RList cols = new RList();
+    for (int i = 0; i < 2000; i++) {
+      cols.put("c" + i, (i % 2 == 0) ? (REXP) new REXPInteger(new int[] { i, i + 1 }) : new REXPString(new String[] { "a", "b" }));
+    }
+    REXP nested = new REXPDouble(1.0);
+    for (int i = 0; i < 200; i++) {
+      nested = new REXPList(new RList(new REXP[] { nested, new REXPInteger(i) }, new String[] { "inner", "level" }));
+    }
+    final REXP x = new REXPGenericVector(new RList(new REXP[] { REXP.createDataFrame(cols), nested }, new String[] { "df", "nested" }));
+    final REXPFactory f = new REXPFactory(x);
+    final byte[] a = new byte[f.getBinaryLength()], b = new byte[f.getBinaryLength()];
+    assertEquals(a.length, f.getBinaryRepresentation(a, 0));
+    assertEquals(b.length, f.getBinaryRepresentation(b, 0));
+    assertArrayEquals(a, b);
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    f.writeBinaryRepresentation(os);
+    assertArrayEquals(a, os.toByteArray());
+
+    final RList d = decode(a).asList();
+    assertEquals(2000, d.at("df").asList().size());
+    assertEquals("b", d.at("df").asList().at("c1999").asStrings()[1]);
+    REXP n = d.at("nested");
+    for (int i = 199; i >= 0; i--) {
+      assertEquals(i, n.asList().at("level").asInteger());
+      n = n.asList().at("inner");
+    }
+    assertEquals(1.0, n.asDouble(), 0.0);
+  }
+
+  @Test
+  public void stringArrayCodecTest() throws Exception {
+    final String[] s = { "plain", "", null, "\u00e9t\u00e9", "\u20ac 5", "\ud83d\ude00 smile", "\ud800 lone", "plain", "\u00ff" };
+    final REXP x = new REXPString(s);
+    final byte[] buf = encode(x);
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new REXPFactory(x).writeBinaryRepresentation(os);
+    assertArrayEquals(buf, os.toByteArray());
+
+    final String[] d = decode(buf).asStrings();
+    assertEquals(s.length, d.length);
+    for (int i = 0; i < s.length; i++) {
+      if (i == 6) {
+        assertEquals("? lone", d[i]); // unpaired surrogates cannot be encoded
+      } else {
+        assertEquals(s[i], d[i]);
+      }
+    }
+    assertArrayEquals(s[5].getBytes("UTF-8"), new RStringCodec("UTF-8").encode(s[5]));
+
+    // repeated values share one instance only with de-duplication
+    assertNotSame(d[0], d[7]);
+    final REXPFactory f = new REXPFactory();
+    f.setDeduplicateStrings(true);
+    f.parseREXP(buf, 0);
+    final String[] dd = f.getREXP().asStrings();
+    assertSame(dd[0], dd[7]);
+    assertEquals(s[5], dd[5]);
+
+    // other encodings go through the charset encoder
+    final RStringCodec latin = new RStringCodec("ISO-8859-1");
+    assertEquals(4, latin.encodedLength("caf\u00e9"));
+    assertTrue(latin.startsWithFF("\u00ff"));
+    final byte[] b = latin.encode("caf\u00e9");
+    assertEquals("caf\u00e9", latin.decode(b, 0, b.length));
+  }
+
+  @Test
+  public void namedListIndexTest() throws Exception {
+    final RList l = new RList();
+    for (int i = 0; i < 50000; i++) {
+      l.put("e" + i, new REXPInteger(i));
+    }
+    final RList d = decode(encode(new REXPList(l))).asList();
+    assertEquals(50000, d.size());
+    assertEquals(49999, d.at("e49999").asInteger());
+    assertEquals(17, d.indexOfKey("e17"));
+    assertNull(d.at("missing"));
+
+    // modifications of the names are picked up by the index
+    d.setKeyAt(3, "renamed");
+    assertNull(d.at("e3"));
+    assertEquals(3, d.at("renamed").asInteger());
+    d.names.set(4, "direct");
+    assertEquals(4, d.at("direct").asInteger());
+    assertEquals(5, ((REXP) d.removeByKey("e5")).asInteger());
+    assertEquals(5, d.indexOfKey("e6"));
+    assertEquals(d.size(), d.names.size());
+    assertEquals(6, d.at("e6").asInteger());
+
+    // put replaces the first occurrence and appends new names
+    d.put("e6", new REXPDouble(0.5));
+    assertEquals(0.5, d.at(5).asDouble(), 0.0);
+    d.put("new", new REXPDouble(1.5));
+    assertEquals(d.size() - 1, d.indexOfKey("new"));
+    d.add(new REXPDouble(2.5));
+    assertEquals(null, d.keyAt(d.size() - 1));
+    assertEquals(d.size() - 1, d.indexOfKey(null));
+    assertTrue(d.containsKey("e100"));
+  }
+
+  @Test
+  public void factorTest() throws Exception {
+    final String[] s = new String[4 * RFactor.PARALLEL_CHUNK + 17];
+    for (int i = 0; i < s.length; i++) {
+      s[i] = (i % 101 == 0) ? null : ("level" + ((i * 7919L) % 5003));
+    }
+    final RFactor f = new RFactor(s, 1);
+    final RFactor p = new RFactor(s, 1, 4);
+    assertArrayEquals(f.levels(), p.levels());
+    assertArrayEquals(f.asIntegers(), p.asIntegers());
+    assertArrayEquals(s, p.asStrings());
+    assertEquals(5003, p.levels().length);
+    assertEquals(REXPInteger.NA, p.indexAt(0));
+    // an interrupt of the caller is kept while the workers are joined
+    Thread.currentThread().interrupt();
+    assertArrayEquals(f.asIntegers(), new RFactor(s, 1, 4).asIntegers());
+    assertTrue(Thread.interrupted());
+
+    final String l = s[12345];
+    final int li = p.levelIndex(l);
+    assertEquals(l, p.levelAtIndex(li));
+    int n = 0;
+    for (int i = 0; i < s.length; i++) {
+      if (l.equals(s[i])) {
+        n++;
+      }
+    }
+    assertEquals(n, p.count(li));
+    assertEquals(n, p.count(l));
+    assertEquals(n, p.counts()[li - 1]);
+    assertTrue(p.contains(l));
+    assertEquals(-1, p.levelIndex("missing"));
+
+    final REXPFactor x = new REXPFactor(p);
+    assertEquals(li, x.levelIndex(l));
+    assertEquals(n, x.counts()[li - 1]);
+  }
+
+  @Test
+  public void streamingDecodeTest() throws Exception {
+    final REXP x = sampleFrame();
+    final byte[] buf = encode(x);
+    assertSameFrame(x, decodeStream(buf));
+  }
+
+  @Test
+  public void histogramTest() throws Exception {
+    final RHistogram h = new RHistogram();
+    for (int i = 1; i <= 10000; i++) {
+      h.record(i);
+    }
+    assertEquals(10000, h.getCount());
+    assertEquals(10000, h.getMax());
+    assertEquals(5000.5, h.getMean(), 1e-9);
+    final long p50 = h.getQuantile(0.5), p99 = h.getQuantile(0.99);
+    assertTrue(Math.abs(p50 - 5000) <= 5000 / RHistogram.SUB_BUCKETS);
+    assertTrue(Math.abs(p99 - 9900) <= 9900 / RHistogram.SUB_BUCKETS);
+    assertEquals(10000, h.getQuantile(1.0));
+    long n = 0;
+    final long[][] b = h.getBuckets();
+    for (int i = 0; i < b.length; i++) {
+      n += b[i][1];
+    }
+    assertEquals(10000, n);
+    h.record(Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, h.getQuantile(1.0));
+    h.reset();
+    assertEquals(0, h.getCount());
+    assertEquals(0, h.getQuantile(0.5));
+  }
+
+  @Test
+  public void metricsListenerTest() throws Exception {
+    // two responses: OK with 8 bytes of content and an error without content
+    final byte[] in = new byte[16 + 8 + 16];
+    RTalk.setInt(RTalk.RESP_OK, in, 0);
+    RTalk.setInt(8, in, 4);
+    RTalk.setInt(RTalk.RESP_ERR | (127 << 24), in, 24);
+    final RTalk rt = new RTalk(new ByteArrayInputStream(in), new ByteArrayOutputStream());
+    final RMetrics m = new RMetrics();
+    rt.setListener(m);
+    final byte[] rq = RTalk.stringParameter("1+1");
+    RPacket p = rt.request(RTalk.CMD_eval, rq);
+    assertTrue(p.isOk());
+    assertEquals(RTalk.CMD_eval, rt.getLastCommand());
+    p = rt.request(RTalk.CMD_voidEval, rq);
+    assertTrue(p.isError());
+
+    final RMetrics.Command[] c = m.getCommands();
+    assertEquals(2, c.length);
+    assertEquals(RTalk.CMD_voidEval, c[0].getCommand());
+    assertEquals(RTalk.CMD_eval, c[1].getCommand());
+    assertEquals(16 + rq.length, c[1].sent.getMax());
+    assertEquals(24, c[1].received.getMax());
+    assertEquals(0, c[1].getErrorCount());
+    assertEquals(1, c[0].getErrorCount());
+    assertEquals(1, c[0].getStatusCount(127));
+    assertTrue(c[1].total.getMax() >= c[1].firstByte.getMax());
+    assertTrue(m.toString().indexOf("voidEval errors: 1") >= 0);
+  }
+
+  @Test
+  public void singleWriteRequestTest() throws Exception {
+    final int[] writes = new int[1];
+    final ByteArrayOutputStream out = new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(byte[] b, int off, int len) {
+        writes[0]++;
+        super.write(b, off, len);
+      }
+    };
+    final byte[] in = new byte[32];
+    RTalk.setInt(RTalk.RESP_OK, in, 0);
+    RTalk.setInt(RTalk.RESP_OK, in, 16);
+    final RTalk rt = new RTalk(new ByteArrayInputStream(in), out);
+    final byte[] prefix = RTalk.stringParameter("x");
+    final byte[] cont = RTalk.stringParameter("1+1");
+    assertTrue(rt.request(RTalk.CMD_eval, prefix, cont, 0, cont.length).isOk());
+    assertEquals(1, writes[0]);
+    final byte[] sent = out.toByteArray();
+    assertEquals(16 + prefix.length + cont.length, sent.length);
+    assertEquals(RTalk.CMD_eval, RTalk.getInt(sent, 0));
+    assertEquals(prefix.length + cont.length, RTalk.getInt(sent, 4));
+    assertEquals(prefix[4], sent[20]);
+    assertEquals(cont[4], sent[16 + prefix.length + 4]);
+
+    // content larger than the buffer is written directly after the header
+    writes[0] = 0;
+    out.reset();
+    final byte[] big = new byte[200000];
+    big[199999] = 42;
+    assertTrue(rt.request(RTalk.CMD_eval, null, big, 0, big.length).isOk());
+    assertEquals(2, writes[0]);
+    assertEquals(16 + big.length, out.size());
+    assertEquals(42, out.toByteArray()[16 + 199999]);
+  }
+
+  @Test
+  public void reusedReceiveBufferTest() throws Exception {
+    final ByteArrayOutputStream in = new ByteArrayOutputStream();
+    final byte[] hdr = new byte[16];
+    for (int i = 1; i <= 3; i++) {
+      final byte[] ct = new byte[8 * i];
+      ct[0] = (byte) i;
+      RTalk.setInt(RTalk.RESP_OK, hdr, 0);
+      RTalk.setInt(ct.length, hdr, 4);
+      in.write(hdr);
+      in.write(ct);
+    }
+    RTalk.setInt(RTalk.RESP_ERR | (127 << 24), hdr, 0);
+    RTalk.setInt(0, hdr, 4);
+    in.write(hdr);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final RTalk rt = new RTalk(new ByteArrayInputStream(in.toByteArray()), out);
+    rt.setReuseBuffers(true);
+
+    final RPacket p1 = rt.request(RTalk.CMD_eval, "a", "\n", -1);
+    assertTrue(p1.isView());
+    assertEquals(8, p1.getLength());
+    final byte[] kept = p1.toByteArray();
+    assertEquals(8, kept.length);
+    assertEquals(1, kept[0]);
+    final RPacket p2 = rt.request(RTalk.CMD_eval, "b");
+    assertSame(p1, p2);
+    assertEquals(16, p2.getLength());
+    assertEquals(2, p2.getCont()[0]);
+    assertEquals(1, kept[0]);
+    final RPacket p3 = rt.request(RTalk.CMD_eval, "c");
+    assertEquals(24, p3.getLength());
+    assertEquals(3, p3.getCont()[0]);
+    final RPacket p4 = rt.request(RTalk.CMD_eval, "d");
+    assertTrue(p4.isError());
+    assertEquals(127, p4.getStat());
+    assertNull(p4.toByteArray());
+
+    // the string parameter is encoded in place, including the suffix and padding
+    final byte[] sent = out.toByteArray();
+    final byte[] expected = RTalk.stringParameter("a\n");
+    assertEquals(expected.length, RTalk.getInt(sent, 4));
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], sent[16 + i]);
+    }
+  }
+
+  @Test
+  public void longLengthHeaderTest() throws Exception {
+    final byte[] h = new byte[8];
+    final long len = 5000000000L;
+    assertEquals(8, RTalk.setHdr(REXPFactory.XT_ARRAY_DOUBLE, len, h, 0));
+    assertEquals(len, RTalk.getLongLen(h, 0));
+    assertEquals(REXPFactory.XT_ARRAY_DOUBLE | RTalk.DT_LARGE, h[0] & 0xff);
+
+    // responses longer than an array can hold are always left in the stream
+    final byte[] in = new byte[16];
+    RTalk.setInt(RTalk.RESP_OK, in, 0);
+    RTalk.setInt(16, in, 4);
+    RTalk.setInt(1, in, 12);
+    final RTalk rt = new RTalk(new ByteArrayInputStream(in), new ByteArrayOutputStream());
+    final RPacket rp = rt.request(RTalk.CMD_eval, "x");
+    assertTrue(rp.isStreamed());
+    assertEquals((1L << 32) + 16, rp.getLongLength());
+    assertEquals(Integer.MAX_VALUE, rp.getLength());
+  }
+
+  @Test
+  public void segmentedVectorTest() throws Exception {
+    final int maxLength = REXPFactory.maxVectorLength, segLength = REXPFactory.segmentLength;
+    try {
+      REXPFactory.maxVectorLength = 1000;
+      REXPFactory.segmentLength = 300;
+      final double[] d = new double[1001];
+      final int[] i = new int[d.length];
+      for (int k = 0; k < d.length; k++) {
+        d[k] = k * 0.25;
+        i[k] = k;
+      }
+      i[700] = REXPInteger.NA;
+
+      // long vectors are decoded into segments on the streaming path
+      final REXP sd = decodeStream(encode(new REXPDouble(d)));
+      assertTrue(sd instanceof REXPSegmentedDouble);
+      assertEquals(4, ((REXPSegmentedDouble) sd).getSegments().length);
+      assertEquals(1001L, ((REXPSegmentedDouble) sd).longLength());
+      assertEquals(250.0, ((REXPSegmentedDouble) sd).get(1000), 0.0);
+      assertArrayEquals(d, sd.asDoubles(), 0.0);
+      final REXP si = decodeStream(encode(new REXPInteger(i)));
+      assertTrue(si instanceof REXPSegmentedInteger);
+      assertTrue(((REXPSegmentedInteger) si).isNA(700));
+      assertArrayEquals(i, si.asIntegers());
+
+      // shorter vectors and the array decoder are not affected
+      assertTrue(decodeStream(encode(new REXPDouble(new double[1000]))) instanceof REXPDouble);
+      assertTrue(decode(encode(new REXPDouble(d))) instanceof REXPDouble);
+
+      // segmented vectors encode like plain ones
+      final byte[] buf = encode(new REXPDouble(d));
+      assertArrayEquals(buf, encode(sd));
+      final ByteArrayOutputStream os = new ByteArrayOutputStream();
+      assertEquals(buf.length, new REXPFactory(sd).writeBinaryRepresentation(os));
+      assertArrayEquals(buf, os.toByteArray());
+      assertArrayEquals(encode(new REXPInteger(i)), encode(si));
+    } finally {
+      REXPFactory.maxVectorLength = maxLength;
+      REXPFactory.segmentLength = segLength;
+    }
+  }
+
+  @Test
+  public void directVectorTest() throws Exception {
+    final RDirectArena arena = new RDirectArena(100); // small segments to cross segment boundaries
+    final double[] d = new double[50];
+    final int[] i = new int[d.length];
+    final byte[] b = new byte[d.length];
+    for (int k = 0; k < d.length; k++) {
+      d[k] = k * 1.5;
+      i[k] = k;
+      b[k] = (byte) k;
+    }
+    d[20] = REXPDouble.NA;
+    i[30] = REXPInteger.NA;
+    final byte[] lg = new byte[] { REXPLogical.TRUE, REXPLogical.NA, REXPLogical.FALSE, REXPLogical.TRUE, REXPLogical.TRUE };
+
+    final REXPDirectDouble dd = new REXPDirectDouble(arena, d, null);
+    assertEquals(5, dd.getSegments().length);
+    assertEquals(73.5, dd.get(49), 0.0);
+    assertTrue(dd.isNA(20));
+    final double[] part = new double[20];
+    dd.get(10, part, 0, part.length);
+    assertEquals(15.0, part[0], 0.0);
+    assertEquals(43.5, part[19], 0.0);
+    assertEquals(400, arena.getAllocated());
+
+    final RList l = new RList();
+    l.put("d", new REXPDouble(d));
+    l.put("i", new REXPInteger(i));
+    l.put("r", new REXPRaw(b));
+    l.put("l", new REXPLogical(lg));
+    l.put("f", new REXPFactor(new RFactor(new String[] { "a", "b", "a", "a", "b", "b", "b", "a", "a", "a", "b", "a", "b", "b", "a", "a", "b", "b", "a", "a", "b", "a", "a", "b", "a", "a", "b", "b", "a", "b" })));
+    l.put("small", new REXPInteger(new int[] { 1 }));
+    final REXP x = new REXPGenericVector(l);
+    final byte[] buf = encode(x);
+
+    for (int pass = 0; pass < 2; pass++) {
+      final REXPFactory f = new REXPFactory();
+      f.setDirectArena(arena, 4);
+      if (pass == 0) {
+        assertEquals(buf.length, f.parseREXP(new ByteArrayInputStream(buf)));
+      } else {
+        assertEquals(buf.length, f.parseREXP(buf, 0));
+      }
+      final RList r = f.getREXP().asList();
+      assertTrue(r.at("d") instanceof REXPDirectDouble);
+      assertArrayEquals(d, r.at("d").asDoubles(), 0.0);
+      assertTrue(((REXPDirectDouble) r.at("d")).isNA(20));
+      assertTrue(r.at("i") instanceof REXPDirectInteger);
+      assertArrayEquals(i, r.at("i").asIntegers());
+      assertTrue(r.at("r") instanceof REXPDirectRaw);
+      assertArrayEquals(b, r.at("r").asBytes());
+      assertTrue(r.at("l") instanceof REXPDirectLogical);
+      assertArrayEquals(lg, r.at("l").asBytes());
+      assertTrue(((REXPDirectLogical) r.at("l")).isNA(1));
+      assertTrue(r.at("f").isFactor());
+      assertTrue(r.at("small") instanceof REXPInteger);
+
+      // direct vectors encode exactly like heap vectors
+      final REXP y = f.getREXP();
+      assertArrayEquals(buf, encode(y));
+      final ByteArrayOutputStream os = new ByteArrayOutputStream();
+      new REXPFactory(y).writeBinaryRepresentation(os);
+      assertArrayEquals(buf, os.toByteArray());
+    }
+    assertEquals(9, arena.getVectorCount());
+
+    final REXPDirectDouble own = new REXPDirectDouble(null, 3);
+    own.set(2, 7.0);
+    assertEquals(7.0, own.asDoubles()[2], 0.0);
+    own.close();
+    assertTrue(own.isClosed());
+
+    arena.close();
+    assertTrue(dd.isClosed());
+    assertEquals(0, arena.getAllocated());
+    assertEquals(0, arena.getVectorCount());
+    try {
+      dd.get(0);
+      assertTrue(false);
+    } catch (IllegalStateException e) {
+    }
+  }
+
+  @Test
+  public void spilledResponseTest() throws Exception {
+    final REXP x = sampleFrame();
+    final byte[] sexp = encode(x);
+    final byte[] ph = new byte[8];
+    final int phl = RTalk.setHdr(RTalk.DT_SEXP, sexp.length, ph, 0);
+    final ByteArrayOutputStream in = new ByteArrayOutputStream();
+    final byte[] hdr = new byte[16];
+    RTalk.setInt(RTalk.RESP_OK, hdr, 0);
+    RTalk.setInt(phl + sexp.length, hdr, 4);
+    in.write(hdr);
+    in.write(ph, 0, phl);
+    in.write(sexp);
+    final RTalk rt = new RTalk(new ByteArrayInputStream(in.toByteArray()), new ByteArrayOutputStream());
+    rt.setSpillThreshold(1000, null);
+
+    final RPacket rp = rt.request(RTalk.CMD_eval, "x", "\n", Integer.MAX_VALUE);
+    assertTrue(rp.isOk());
+    assertTrue(rp.isSpilled());
+    assertFalse(rp.isStreamed());
+    final RSpillFile f = rp.getSpillFile();
+    assertEquals(phl + sexp.length, f.length());
+    assertTrue(f.getFile().exists());
+
+    final long mapThreshold = REXPFactory.mapThreshold;
+    final REXP y;
+    try {
+      REXPFactory.mapThreshold = 1000;
+      final REXPFactory rx = new REXPFactory();
+      assertEquals(sexp.length, rx.parseREXP(f, phl));
+      y = rx.getREXP();
+    } finally {
+      REXPFactory.mapThreshold = mapThreshold;
+      f.close();
+    }
+    assertFalse(f.getFile().exists());
+    // large vectors are mapped and remain valid after the file has been closed
+    final REXP d = y.asList().at("d");
+    assertTrue(d instanceof REXPDirectDouble);
+    assertTrue(y.asList().at("i") instanceof REXPDirectInteger);
+    assertTrue(y.asList().at("b") instanceof REXPLogical);
+    assertSameFrame(x, y);
+    ((REXPDirectDouble) d).close();
+    assertTrue(((REXPDirectDouble) d).isClosed());
+  }
+
+  @Test
+  public void lazyDecodingTest() throws Exception {
+    final RList l = new RList();
+    for (int k = 0; k < 20; k++) {
+      l.put("c" + k, (k % 2 == 0) ? (REXP) new REXPDouble(new double[] { k, k + 0.5 }) : (REXP) new REXPString("s" + k));
+    }
+    l.put("nested", new REXPGenericVector(new RList(new REXP[] { new REXPInteger(42) })));
+    final REXP x = new REXPGenericVector(l);
+    final byte[] buf = encode(x);
+
+    final REXPFactory f = new REXPFactory();
+    f.setLazyDecoding(10);
+    assertEquals(buf.length, f.parseREXP(buf, 0));
+    final RList r = f.getREXP().asList();
+    assertEquals(21, r.size());
+    assertArrayEquals(l.keys(), r.keys()); // names are available without decoding the elements
+    for (int k = 0; k < r.size(); k++) {
+      assertTrue(r.isDeferred(k));
+    }
+    assertArrayEquals(new double[] { 4, 4.5 }, r.at("c4").asDoubles(), 0.0);
+    assertFalse(r.isDeferred(4));
+    assertTrue(r.isDeferred(5));
+    assertEquals("s5", r.at(5).asString());
+    assertSame(r.at(5), r.at("c5"));
+    // the nested list has fewer elements than the threshold and is decoded as usual
+    assertEquals(42, r.at("nested").asList().at(0).asInteger());
+    assertFalse(r.at("nested").asList().isDeferred(0));
+    // replaced elements are returned resolved
+    assertTrue(r.isDeferred(7));
+    final Object old7 = r.set(7, new REXPString("new"));
+    assertEquals("s7", ((REXP) old7).asString());
+    r.set(7, old7);
+
+    // bulk access resolves all elements
+    final Object[] all = r.toArray();
+    for (int k = 0; k < all.length; k++) {
+      assertTrue(all[k] instanceof REXP);
+      assertFalse(r.isDeferred(k));
+    }
+    assertArrayEquals(buf, encode(f.getREXP()));
+
+    // data frames
+    final REXP df = sampleFrame();
+    final REXPFactory ff = new REXPFactory();
+    ff.setLazyDecoding(1);
+    final byte[] dbuf = encode(df);
+    ff.parseREXP(dbuf, 0);
+    assertTrue(ff.getREXP().asList().isDeferred(0));
+    assertSameFrame(df, ff.getREXP());
+
+    // short lists are decoded eagerly
+    final REXPFactory fe = new REXPFactory();
+    fe.setLazyDecoding(100);
+    fe.parseREXP(buf, 0);
+    assertFalse(fe.getREXP().asList().isDeferred(0));
+
+    // removed elements are returned resolved
+    final REXPFactory fr = new REXPFactory();
+    fr.setLazyDecoding(10);
+    fr.parseREXP(buf, 0);
+    final RList rr = fr.getREXP().asList();
+    assertEquals("s9", ((REXP) rr.removeByKey("c9")).asString());
+    assertEquals("s3", ((REXP) rr.remove(3)).asString());
+    assertEquals(19, rr.size());
+
+    // bulk removal resolves the elements of unnamed lists first
+    final RList ul = new RList();
+    for (int k = 0; k < 12; k++) {
+      ul.add(new REXPInteger(k));
+    }
+    final REXPFactory fu = new REXPFactory();
+    fu.setLazyDecoding(10);
+    fu.parseREXP(encode(new REXPGenericVector(ul)), 0);
+    final RList ur = fu.getREXP().asList();
+    assertTrue(ur.removeAll(java.util.Collections.singletonList(ur.at(0))));
+    assertEquals(11, ur.size());
+    for (int k = 0; k < ur.size(); k++) {
+      assertFalse(ur.isDeferred(k));
+    }
+    assertEquals(1, ur.at(0).asInteger());
+  }
+
+  @Test
+  public void parallelCodecTest() throws Exception {
+    final RList l = new RList();
+    for (int k = 0; k < 40; k++) {
+      final REXP c;
+      if (k % 3 == 0) c = new REXPDouble(new double[] { k, k + 0.5, REXPDouble.NA });
+      else if (k % 3 == 1) c = new REXPString(new String[] { "s" + k, null, "\u00e9t\u00e9" });
+      else c = new REXPGenericVector(new RList(new REXP[] { new REXPInteger(k), new REXPString("x") }));
+      l.put("c" + k, c);
+    }
+    final REXP x = new REXPGenericVector(l, new REXPList(new RList(new REXP[] { new REXPString(l.keys()) }, new String[] { "names" })));
+    final byte[] serial = encode(x);
+
+    final ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      final REXPFactory ef = new REXPFactory(x);
+      ef.setParallelExecutor(pool, 0);
+      final byte[] buf = new byte[ef.getBinaryLength()];
+      assertEquals(buf.length, ef.getBinaryRepresentation(buf, 0));
+      assertArrayEquals(serial, buf);
+
+      final REXPFactory sf = new REXPFactory(x);
+      sf.setParallelExecutor(pool, 0);
+      final ByteArrayOutputStream os = new ByteArrayOutputStream();
+      sf.writeBinaryRepresentation(os);
+      assertArrayEquals(serial, os.toByteArray());
+
+      final REXPFactory df = new REXPFactory();
+      df.setParallelExecutor(pool, 0);
+      assertEquals(serial.length, df.parseREXP(serial, 0));
+      assertEquals(40, df.getREXP().asList().size());
+      assertArrayEquals(l.keys(), df.getREXP().asList().keys());
+      assertArrayEquals(serial, encode(df.getREXP()));
+
+      // below the threshold everything is serial
+      final REXPFactory tf = new REXPFactory();
+      tf.setParallelExecutor(pool, serial.length + 1);
+      tf.parseREXP(serial, 0);
+      assertArrayEquals(serial, encode(tf.getREXP()));
+    } finally {
+      pool.shutdown();
+    }
+
+    // the calling thread does all the work if the executor rejects the tasks
+    final ExecutorService stopped = Executors.newSingleThreadExecutor();
+    stopped.shutdown();
+    final REXPFactory rf = new REXPFactory();
+    rf.setParallelExecutor(stopped, 0);
+    rf.parseREXP(serial, 0);
+    assertArrayEquals(serial, encode(rf.getREXP()));
+  }
+}
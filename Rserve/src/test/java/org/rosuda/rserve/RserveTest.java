@@ -1,5 +1,6 @@
 package org.rosuda.REngine.Rserve;
 
+import java.util.ArrayList;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Assume;
@@ -14,14 +15,18 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.rosuda.REngine.REXP;
 import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPEnvironment;
 import org.rosuda.REngine.REXPFactor;
 import org.rosuda.REngine.REXPGenericVector;
 import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPLanguage;
 import org.rosuda.REngine.REXPList;
 import org.rosuda.REngine.REXPLogical;
 import org.rosuda.REngine.REXPMismatchException;
 import org.rosuda.REngine.REXPRaw;
+import org.rosuda.REngine.REXPReference;
 import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.REXPSymbol;
 import org.rosuda.REngine.REngine;
 import org.rosuda.REngine.REngineException;
 import org.rosuda.REngine.RFactor;
@@ -402,6 +407,258 @@ public class RserveTest {
       assertEquals(key, rexp.asString());
   }
 
+  @Test
+  public void evalBatchTest() throws RserveException, REXPMismatchException {
+    // enough requests to exceed the pipelining window several times
+    final String[] cmds = new String[5000];
+    for (int i = 0; i < cmds.length; i++) {
+      cmds[i] = "" + i + " * 2L";
+    }
+    final REXP[] res = connection.evalBatch(cmds);
+    assertEquals(cmds.length, res.length);
+    for (int i = 0; i < res.length; i++) {
+      assertEquals(i * 2, res[i].asInteger());
+    }
+
+    // a failure is reported, but the connection stays usable
+    try {
+      connection.evalBatch(new String[] { "1", "stop('boom')", "3" });
+      fail("evalBatch should have failed");
+    } catch (RserveException e) {
+      assertTrue(e.getRequestReturnCode() > 0);
+    }
+    connection.voidEvalBatch(new String[] { "bx <- 1", "bx <- bx + 1" });
+    assertEquals(2, connection.eval("bx").asInteger());
+  }
+
+  @Test
+  public void connectionPoolTest() throws Exception {
+    final RConnectionPool pool = new RConnectionPool(2);
+    pool.setResetOnRelease(true);
+    try {
+      final RConnection c1 = pool.borrow(1000);
+      final RConnection c2 = pool.borrow(1000);
+      assertEquals(2, pool.getActiveCount());
+      // the pool is exhausted
+      try {
+        pool.borrow(100);
+        fail("borrow should have timed out");
+      } catch (RserveException e) { }
+
+      c1.voidEval("poolVar <- 1");
+      pool.release(c1);
+      assertEquals(1, pool.getIdleCount());
+      // the idle connection is re-used and its global environment was reset
+      final RConnection c3 = pool.borrow(1000);
+      assertTrue(c3 == c1);
+      assertFalse(c3.eval("exists('poolVar')").asInteger() == 1);
+
+      // broken connections are not handed out again
+      c3.close();
+      pool.release(c3);
+      assertEquals(0, pool.getIdleCount());
+      pool.invalidate(c2);
+      assertEquals(0, pool.getActiveCount());
+
+      // detached sessions can be resumed into the pool
+      final RConnection c4 = pool.borrow(1000);
+      c4.voidEval("sessionVar <- 42L");
+      final RSession session = pool.detach(c4);
+      assertEquals(0, pool.getActiveCount());
+      final RConnection c5 = pool.attach(session, 1000);
+      assertEquals(42, c5.eval("sessionVar").asInteger());
+      pool.release(c5);
+    } finally {
+      pool.close();
+    }
+  }
+
+  @Test
+  public void asyncConnectionTest() throws Exception {
+    final RAsyncConnection async = new RAsyncConnection();
+    try {
+      final RFuture[] res = new RFuture[1000];
+      for (int i = 0; i < res.length; i++) {
+        res[i] = async.eval("" + i + " * 2L");
+      }
+      for (int i = 0; i < res.length; i++) {
+        assertEquals(i * 2, res[i].getREXP().asInteger());
+      }
+
+      final RFuture failed = async.eval("stop('boom')");
+      final RFuture after = async.eval("paste('still', 'alive')");
+      try {
+        failed.getREXP();
+        fail("eval should have failed");
+      } catch (RserveException e) { }
+      assertEquals("still alive", after.getREXP().asString());
+    } finally {
+      async.close();
+    }
+    assertFalse(async.isConnected());
+  }
+
+  @Test
+  public void bufferedFileTransferTest() throws Exception {
+    final byte[] data = new byte[1000003];
+    new java.util.Random(1).nextBytes(data);
+
+    final RFileOutputStream out = connection.createFile("buffered.bin", 65536, 4);
+    out.write(data[0]);
+    out.write(data, 1, 100);
+    // other requests can be interleaved with chunks in flight
+    assertEquals(1, connection.eval("1L").asInteger());
+    out.write(data, 101, data.length - 101);
+    out.close();
+    assertEquals(data.length, connection.eval("file.info('buffered.bin')$size").asInteger());
+
+    final RFileInputStream in = connection.openFile("buffered.bin", 65536, 4);
+    final java.io.ByteArrayOutputStream read = new java.io.ByteArrayOutputStream();
+    read.write(in.read());
+    assertEquals(2, connection.eval("2L").asInteger());
+    in.transferTo(read);
+    in.close();
+    assertTrue(java.util.Arrays.equals(data, read.toByteArray()));
+    connection.removeFile("buffered.bin");
+  }
+
+  @Test
+  public void timeoutTest() throws Exception {
+    connection.setTimeout(5000);
+    assertEquals(3, connection.eval("1L + 2L").asInteger());
+    connection.setTimeout(200);
+    final long start = System.currentTimeMillis();
+    try {
+      connection.eval("Sys.sleep(5)");
+      fail("RserveTimeoutException expected");
+    } catch (RserveTimeoutException e) {
+      assertEquals(200, e.getTimeout());
+    }
+    assertTrue(System.currentTimeMillis() - start < 4000);
+    assertFalse(connection.isConnected());
+  }
+
+  @Test
+  public void referencesTest() throws REngineException, REXPMismatchException {
+    assertTrue(engine.supportsReferences());
+    final REXP ref = engine.parseAndEval("1:10", null, false);
+    assertTrue(ref.isReference());
+    final REXP sum = engine.eval(new REXPLanguage(new RList(new REXP[] { new REXPSymbol("sum"), ref })), null, true);
+    assertEquals(55, sum.asInteger());
+    assertEquals(10, ((REXPReference) ref).resolve().asIntegers()[9]);
+
+    final REXP pushed = engine.createReference(new REXPDouble(new double[] { 1.5, 2.5 }));
+    assertEquals(4.0, engine.eval(new REXPLanguage(new RList(new REXP[] { new REXPSymbol("sum"), pushed })), null, true).asDouble(), 0.0);
+
+    final REXP env = engine.newEnvironment(null, true);
+    assertTrue(env instanceof REXPEnvironment);
+    engine.assign("y", new REXPDouble(2.5), env);
+    engine.assign("z", ref, env);
+    assertEquals(2.5, engine.get("y", env, true).asDouble(), 0.0);
+    assertEquals(60.0, engine.parseAndEval("y * 2 + sum(z)", env, true).asDouble(), 0.0);
+    assertEquals(0, connection.eval("as.integer(exists('y', envir=.GlobalEnv, inherits=FALSE))").asInteger());
+
+    engine.finalizeReference(ref);
+    engine.finalizeReference(pushed);
+    assertEquals(2, connection.releaseReferences());
+    assertEquals(0, connection.releaseReferences());
+
+    // handles queued for removal are kept if the request carrying them fails
+    final REXP again = engine.parseAndEval("1:3", null, false);
+    engine.finalizeReference(again);
+    try {
+      engine.eval(new REXPLanguage(new RList(new REXP[] { new REXPSymbol("stop"), new REXPString("boom") })), env, true);
+      fail("the call should have failed");
+    } catch (REngineException e) { }
+    assertEquals(1, connection.releaseReferences());
+  }
+
+  @Test
+  public void preparedAndCachedExpressionsTest() throws REngineException, REXPMismatchException {
+    final REXP parsed = engine.parse("x <- 2; x * 21", false);
+    assertTrue(parsed.isReference());
+    assertEquals(42.0, engine.eval(parsed, null, true).asDouble(), 0.0);
+    assertTrue(engine.parse("1 + 1", true).isExpression());
+
+    final REXP prepared = engine.prepare("paste(a, b)", new String[] { "a", "b" });
+    assertEquals("x y", engine.evalPrepared(prepared, new REXP[] { new REXPString("x"), new REXPString("y") }, true).asString());
+    assertEquals("1 2", engine.evalPrepared(prepared, new REXP[] { new REXPInteger(1), new REXPInteger(2) }, true).asString());
+
+    engine.setParseCacheSize(2);
+    assertEquals(2, engine.getParseCacheSize());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(3, connection.eval("1L + 2L").asInteger());
+      assertEquals(5, engine.parseAndEval("2L + 3L").asInteger());
+      assertEquals(7, engine.parseAndEval("y <- 7L").asInteger());
+    }
+    engine.setParseCacheSize(0);
+    assertEquals(7, connection.eval("y").asInteger());
+  }
+
+  @Test
+  public void batcherTest() throws Exception {
+    connection.voidEval("score <- function(d) { calls <<- calls + 1L; ifelse(d$group == 'a', d$x * 2, -d$x) }; calls <- 0L");
+    final RBatcher batcher = new RBatcher(connection, "score", new String[] { "x", "group" }, 8, 200000);
+    final int n = 16;
+    final double[] results = new double[n];
+    final Throwable[] errors = new Throwable[n];
+    final Thread[] threads = new Thread[n];
+    for (int i = 0; i < n; i++) {
+      final int k = i;
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            results[k] = batcher.call(new REXP[] { new REXPDouble(k), new REXPString((k % 2 == 0) ? "a" : "b") }).asDouble();
+          } catch (Throwable e) {
+            errors[k] = e;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < n; i++) threads[i].join();
+    for (int i = 0; i < n; i++) {
+      assertNull(errors[i]);
+      assertEquals((i % 2 == 0) ? i * 2.0 : -i, results[i], 1e-10);
+    }
+    // rows were coalesced into fewer calls
+    assertEquals(n, batcher.getRowCount());
+    assertTrue(batcher.getBatchCount() < n);
+    assertEquals(batcher.getBatchCount(), connection.eval("calls").asInteger());
+
+    // a data frame result is split into one-row data frames
+    connection.voidEval("score2 <- function(d) data.frame(y = d$x + 1, n = nchar(d$group))");
+    final RBatcher batcher2 = new RBatcher(connection, "score2", new String[] { "x", "group" }, 4, 0);
+    final REXP r = batcher2.call(new REXP[] { new REXPInteger(3), new REXPString("abc") });
+    assertTrue(r.inherits("data.frame"));
+    assertEquals(4.0, r.asList().at("y").asDouble(), 1e-10);
+    assertEquals(3, r.asList().at("n").asInteger());
+
+    // NAs of any type stay NA when the column type is widened
+    final ArrayList rows = new ArrayList();
+    rows.add(new REXP[] { new REXPInteger(REXPInteger.NA), new REXPDouble(REXPDouble.NA) });
+    rows.add(new REXP[] { new REXPDouble(1.5), new REXPString("a") });
+    rows.add(new REXP[] { new REXPLogical(REXPLogical.NA), new REXPInteger(REXPInteger.NA) });
+    final REXP num = RBatcher.column(rows, 0);
+    assertTrue(num instanceof REXPDouble);
+    assertTrue(num.isNA()[0]);
+    assertEquals(1.5, num.asDoubles()[1], 1e-10);
+    assertTrue(num.isNA()[2]);
+    final REXP chr = RBatcher.column(rows, 1);
+    assertTrue(chr instanceof REXPString);
+    assertNull(chr.asStrings()[0]);
+    assertEquals("a", chr.asStrings()[1]);
+    assertNull(chr.asStrings()[2]);
+    connection.assign("naCol", chr);
+    assertEquals(2, connection.eval("sum(is.na(naCol))").asInteger());
+
+    // errors are passed to the callers
+    try {
+      new RBatcher(connection, "stop", new String[] { "x" }, 4, 0).call(new REXP[] { new REXPDouble(1) });
+      fail("the call should have failed");
+    } catch (REngineException e) { }
+  }
+
   @After
   public void closeConnection() {
       engine.close();
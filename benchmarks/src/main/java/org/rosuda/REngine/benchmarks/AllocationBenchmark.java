@@ -0,0 +1,51 @@
+package org.rosuda.REngine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.rosuda.REngine.*;
+import org.rosuda.REngine.Rserve.RConnection;
+
+/** measures the client side allocation of calls with scalar results against the in-process {@link QAP1Server}
+    with and without re-use of the receive buffer ({@link RConnection#setReuseBuffers}). Run with <code>-prof gc</code>
+    and compare <code>gc.alloc.rate.norm</code> (bytes per call). Note that it covers all threads, i.e. it includes
+    the allocation of the server thread, so the difference between the two modes is what matters; on the client side
+    a scalar evaluation with re-used buffers only allocates its result. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AllocationBenchmark {
+	@Param({ "false", "true" })
+	boolean reuse;
+
+	QAP1Server server;
+	RConnection c;
+
+	@Setup
+	public void setup() throws Exception {
+		server = new QAP1Server(QAP1Server.constant(new REXPDouble(0.5)));
+		c = new RConnection("127.0.0.1", server.getPort());
+		c.setReuseBuffers(reuse);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		c.close();
+		server.close();
+	}
+
+	/** evaluation with a scalar result */
+	@Benchmark
+	public double evalScalar() throws Exception {
+		return c.eval("score(x)").asDouble();
+	}
+
+	/** evaluation without result */
+	@Benchmark
+	public void voidEval() throws Exception {
+		c.voidEval("x <- 1");
+	}
+}
@@ -0,0 +1,119 @@
+package org.rosuda.REngine.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.rosuda.REngine.*;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+import org.rosuda.REngine.Rserve.protocol.RTalk;
+
+/** compares the bulk (ByteBuffer view) codec for XT_ARRAY_DOUBLE and XT_ARRAY_INT against the per-element loops used previously */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ArrayCodecBenchmark {
+	@Param({ "1000", "100000", "10000000" })
+	int size;
+
+	double[] doubles;
+	int[] ints;
+	byte[] doubleWire, intWire, out;
+	REXPFactory doubleFactory, intFactory;
+
+	@Setup
+	public void setup() throws REXPMismatchException {
+		Random rnd = new Random(1);
+		doubles = new double[size];
+		ints = new int[size];
+		for (int i = 0; i < size; i++) {
+			doubles[i] = rnd.nextGaussian();
+			ints[i] = rnd.nextInt();
+		}
+		doubleFactory = new REXPFactory(new REXPDouble(doubles));
+		intFactory = new REXPFactory(new REXPInteger(ints));
+		doubleWire = new byte[doubleFactory.getBinaryLength()];
+		doubleFactory.getBinaryRepresentation(doubleWire, 0);
+		intWire = new byte[intFactory.getBinaryLength()];
+		intFactory.getBinaryRepresentation(intWire, 0);
+		out = new byte[doubleWire.length];
+	}
+
+	/** header length of the encoded vectors (4 or 8 bytes) */
+	static int hdr(byte[] wire) {
+		return ((wire[0] & 64) != 0) ? 8 : 4;
+	}
+
+	@Benchmark
+	public double[] decodeDoubleLoop() {
+		int o = hdr(doubleWire), eox = doubleWire.length;
+		double[] d = new double[(eox - o) / 8];
+		int i = 0;
+		while (o < eox) {
+			d[i++] = Double.longBitsToDouble(RTalk.getLong(doubleWire, o));
+			o += 8;
+		}
+		return d;
+	}
+
+	@Benchmark
+	public REXP decodeDoubleBulk() throws REXPMismatchException {
+		REXPFactory f = new REXPFactory();
+		f.parseREXP(doubleWire, 0);
+		return f.getREXP();
+	}
+
+	@Benchmark
+	public int[] decodeIntLoop() {
+		int o = hdr(intWire), eox = intWire.length;
+		int[] d = new int[(eox - o) / 4];
+		int i = 0;
+		while (o < eox) {
+			d[i++] = RTalk.getInt(intWire, o);
+			o += 4;
+		}
+		return d;
+	}
+
+	@Benchmark
+	public REXP decodeIntBulk() throws REXPMismatchException {
+		REXPFactory f = new REXPFactory();
+		f.parseREXP(intWire, 0);
+		return f.getREXP();
+	}
+
+	@Benchmark
+	public byte[] encodeDoubleLoop() {
+		int io = hdr(doubleWire);
+		for (int i = 0; i < doubles.length; i++) {
+			RTalk.setLong(Double.doubleToRawLongBits(doubles[i]), out, io);
+			io += 8;
+		}
+		return out;
+	}
+
+	@Benchmark
+	public byte[] encodeDoubleBulk() throws REXPMismatchException {
+		doubleFactory.getBinaryRepresentation(out, 0);
+		return out;
+	}
+
+	@Benchmark
+	public byte[] encodeIntLoop() {
+		int io = hdr(intWire);
+		for (int i = 0; i < ints.length; i++) {
+			RTalk.setInt(ints[i], out, io);
+			io += 4;
+		}
+		return out;
+	}
+
+	@Benchmark
+	public byte[] encodeIntBulk() throws REXPMismatchException {
+		intFactory.getBinaryRepresentation(out, 0);
+		return out;
+	}
+}
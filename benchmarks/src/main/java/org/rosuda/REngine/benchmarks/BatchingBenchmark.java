@@ -0,0 +1,82 @@
+package org.rosuda.REngine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.rosuda.REngine.*;
+import org.rosuda.REngine.Rserve.RBatcher;
+import org.rosuda.REngine.Rserve.RConnection;
+
+/** compares per-row calls from many threads sharing one {@link RConnection}: one call per row versus rows
+    coalesced by {@link RBatcher}. The {@link QAP1Server} handler returns one value per row of the data frame
+    and spends <code>callCost</code> microseconds per call to model the fixed cost of a call in R. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(16)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BatchingBenchmark {
+	static final String[] COLUMNS = { "x", "group" };
+
+	/** maximal delay of a batch in microseconds */
+	@Param({ "0", "200" })
+	long maxDelay;
+
+	/** fixed cost of a call in the server in microseconds */
+	@Param({ "0", "50" })
+	long callCost;
+
+	QAP1Server server;
+	RConnection c;
+	RBatcher batcher;
+
+	@Setup
+	public void setup() throws Exception {
+		final long cost = callCost * 1000L;
+		server = new QAP1Server(new QAP1Server.Handler() {
+			public REXP eval(String expr) throws Exception {
+				throw new Exception("unsupported");
+			}
+
+			public REXP eval(REXP expr) throws Exception {
+				long end = System.nanoTime() + cost;
+				while (System.nanoTime() < end) ;
+				double[] x = expr.asList().at(1).asList().at("x").asDoubles();
+				double[] r = new double[x.length];
+				for (int i = 0; i < x.length; i++)
+					r[i] = x[i] * 2.0;
+				return new REXPDouble(r);
+			}
+		});
+		c = new RConnection("127.0.0.1", server.getPort());
+		batcher = new RBatcher(c, "score", COLUMNS, 64, maxDelay);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		c.close();
+		server.close();
+	}
+
+	@State(Scope.Thread)
+	public static class Row {
+		REXP[] row = { new REXPDouble(1.5), new REXPString("a") };
+	}
+
+	/** one call with a one-row data frame per row */
+	@Benchmark
+	public REXP unbatched(Row r) throws Exception {
+		REXP df = REXP.createDataFrame(new RList(r.row, COLUMNS));
+		synchronized (batcher.getEngineLock()) {
+			return c.eval(REXP.asCall("score", df), null, true);
+		}
+	}
+
+	/** rows coalesced by the batcher */
+	@Benchmark
+	public REXP batched(Row r) throws Exception {
+		return batcher.call(r.row);
+	}
+}
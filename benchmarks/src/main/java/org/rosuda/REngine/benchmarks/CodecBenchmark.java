@@ -0,0 +1,116 @@
+package org.rosuda.REngine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.rosuda.REngine.*;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+
+/** measures {@link REXPFactory#parseREXP(byte[],int)} and {@link REXPFactory#getBinaryRepresentation} for
+    every type of xpression the factory can encode, at several sizes (the size is ignored for scalar types).
+    <code>VECTOR_EXP</code> is only produced by the server (expression vectors are encoded as <code>XT_VECTOR</code>),
+    so its wire form is derived from the generic vector encoding. <code>XT_ARRAY_CPLX</code> is not covered since
+    the factory can neither encode nor decode complex vectors. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CodecBenchmark {
+	@Param({ "NULL", "INT", "DOUBLE", "BOOL", "RAW", "STR", "SYMNAME", "FACTOR", "LIST_TAG", "LIST_NOTAG", "VECTOR", "VECTOR_EXP", "LANG", "S4" })
+	String type;
+
+	@Param({ "10", "10000", "1000000" })
+	int size;
+
+	REXP value;
+	byte[] wire;
+
+	/** creates a sample value of the given type */
+	static REXP sample(String type, int size) throws REXPMismatchException {
+		int[] ints = new int[size];
+		double[] doubles = new double[size];
+		byte[] bytes = new byte[size];
+		String[] strings = new String[size];
+		for (int i = 0; i < size; i++) {
+			ints[i] = i;
+			doubles[i] = i * 0.25;
+			bytes[i] = (byte) i;
+			strings[i] = "s" + (i % 1000);
+		}
+		switch (type) {
+			case "NULL": return new REXPNull();
+			case "INT": return new REXPInteger(ints);
+			case "DOUBLE": return new REXPDouble(doubles);
+			case "BOOL": return new REXPLogical(bytes);
+			case "RAW": return new REXPRaw(bytes);
+			case "STR": return new REXPString(strings);
+			case "SYMNAME": return new REXPSymbol("symbol");
+			case "FACTOR": {
+				for (int i = 0; i < size; i++)
+					ints[i] = 1 + i % 10;
+				return new REXPFactor(ints, new String[] { "a", "b", "c", "d", "e", "f", "g", "h", "i", "j" });
+			}
+			case "LIST_TAG": {
+				RList l = new RList();
+				for (int i = 0; i < Math.min(size, 10000); i++)
+					l.put("e" + i, new REXPInteger(i));
+				return new REXPList(l);
+			}
+			case "LIST_NOTAG": {
+				RList l = new RList();
+				for (int i = 0; i < Math.min(size, 10000); i++)
+					l.add(new REXPInteger(i));
+				return new REXPList(l);
+			}
+			case "VECTOR": {
+				RList l = new RList();
+				for (int i = 0; i < Math.min(size, 10000); i++)
+					l.put("c" + i, new REXPDouble(i));
+				return new REXPGenericVector(l);
+			}
+			case "VECTOR_EXP": {
+				RList l = new RList();
+				for (int i = 0; i < Math.min(size, 10000); i++)
+					l.add(new REXPSymbol("x" + (i % 100)));
+				return new REXPExpressionVector(l);
+			}
+			case "LANG": {
+				RList l = new RList();
+				l.add(new REXPSymbol("sum"));
+				for (int i = 0; i < Math.min(size, 10000); i++)
+					l.add(new REXPInteger(i));
+				return new REXPLanguage(l);
+			}
+			case "S4":
+				return new REXPS4(new REXPList(new RList(new REXP[] { new REXPString("cls"), new REXPDouble(doubles) }, new String[] { "class", "data" })));
+		}
+		throw new IllegalArgumentException(type);
+	}
+
+	@Setup
+	public void setup() throws REXPMismatchException {
+		value = sample(type, size);
+		REXPFactory f = new REXPFactory(value);
+		wire = new byte[f.getBinaryLength()];
+		f.getBinaryRepresentation(wire, 0);
+		if (type.equals("VECTOR_EXP")) // keep the attribute and length flags, replace XT_VECTOR
+			wire[0] = (byte) ((wire[0] & ~63) | REXPFactory.XT_VECTOR_EXP);
+	}
+
+	@Benchmark
+	public byte[] encode() throws REXPMismatchException {
+		REXPFactory f = new REXPFactory(value);
+		byte[] buf = new byte[f.getBinaryLength()];
+		f.getBinaryRepresentation(buf, 0);
+		return buf;
+	}
+
+	@Benchmark
+	public REXP decode() throws REXPMismatchException {
+		REXPFactory f = new REXPFactory();
+		f.parseREXP(wire, 0);
+		return f.getREXP();
+	}
+}
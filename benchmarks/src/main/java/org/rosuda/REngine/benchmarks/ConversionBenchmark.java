@@ -0,0 +1,86 @@
+package org.rosuda.REngine.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rosuda.REngine.*;
+import org.rosuda.REngine.Rserve.protocol.RTalk;
+
+/** measures the conversions between Java and REXP objects and the primitive readers of the protocol */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConversionBenchmark {
+	@Param({ "10", "1000" })
+	int size;
+
+	double[][] matrix;
+	REXP rMatrix;
+	RList list;
+	String lastName, firstName;
+	byte[] wire;
+	double[] doubles;
+	String[] strings;
+	Integer boxed = Integer.valueOf(42);
+
+	@Setup
+	public void setup() throws REXPMismatchException {
+		Random rnd = new Random(1);
+		matrix = new double[size][size];
+		for (int i = 0; i < size; i++)
+			for (int j = 0; j < size; j++)
+				matrix[i][j] = rnd.nextDouble();
+		rMatrix = REXP.createDoubleMatrix(matrix);
+		list = new RList();
+		for (int i = 0; i < size; i++)
+			list.put("col" + i, new REXPInteger(i));
+		firstName = "col0";
+		lastName = "col" + (size - 1);
+		wire = new byte[size * 8];
+		rnd.nextBytes(wire);
+		doubles = new double[size];
+		strings = new String[size];
+		for (int i = 0; i < size; i++)
+			strings[i] = "s" + i;
+	}
+
+	@Benchmark
+	public void getInt(Blackhole bh) {
+		for (int o = 0; o < wire.length; o += 4)
+			bh.consume(RTalk.getInt(wire, o));
+	}
+
+	@Benchmark
+	public void getLong(Blackhole bh) {
+		for (int o = 0; o < wire.length; o += 8)
+			bh.consume(RTalk.getLong(wire, o));
+	}
+
+	@Benchmark
+	public double[][] asDoubleMatrix() throws REXPMismatchException {
+		return rMatrix.asDoubleMatrix();
+	}
+
+	@Benchmark
+	public REXP createDoubleMatrix() {
+		return REXP.createDoubleMatrix(matrix);
+	}
+
+	@Benchmark
+	public void listAtName(Blackhole bh) {
+		bh.consume(list.at(firstName));
+		bh.consume(list.at(lastName));
+	}
+
+	@Benchmark
+	public void wrap(Blackhole bh) {
+		bh.consume(REXPWrapper.wrap(doubles));
+		bh.consume(REXPWrapper.wrap(strings));
+		bh.consume(REXPWrapper.wrap(boxed));
+	}
+}
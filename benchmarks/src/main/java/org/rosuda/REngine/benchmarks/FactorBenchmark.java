@@ -0,0 +1,52 @@
+package org.rosuda.REngine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.rosuda.REngine.*;
+
+/** measures the factorization of string arrays by {@link RFactor} in one and in several threads */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FactorBenchmark {
+	@Param({ "100000", "10000000" })
+	int size;
+
+	@Param({ "100", "100000" })
+	int levels;
+
+	@Param({ "1", "4" })
+	int threads;
+
+	String[] values;
+	RFactor factor;
+
+	@Setup
+	public void setup() {
+		values = new String[size];
+		String[] lv = new String[levels];
+		for (int i = 0; i < levels; i++)
+			lv[i] = "level" + i;
+		for (int i = 0; i < size; i++)
+			values[i] = lv[(int) ((i * 7919L) % levels)];
+		factor = new RFactor(values, 1, threads);
+	}
+
+	@Benchmark
+	public RFactor factorize() {
+		return new RFactor(values, 1, threads);
+	}
+
+	@Benchmark
+	public int countAll() {
+		RFactor f = new RFactor(factor.asIntegers(), factor.levels(), false, 1);
+		int n = 0;
+		for (int i = 1; i <= levels; i += levels / 10)
+			n += f.count(i);
+		return n;
+	}
+}
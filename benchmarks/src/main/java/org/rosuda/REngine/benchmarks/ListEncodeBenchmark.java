@@ -0,0 +1,41 @@
+package org.rosuda.REngine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.rosuda.REngine.*;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+
+/** measures encoding of wide data frames, where the cost is dominated by the per-column overhead
+    of the factory tree rather than by the payload */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ListEncodeBenchmark {
+	@Param({ "100", "2000" })
+	int columns;
+
+	REXP frame;
+	byte[] buf;
+
+	@Setup
+	public void setup() throws REXPMismatchException {
+		RList l = new RList();
+		for (int i = 0; i < columns; i++)
+			l.put("col" + i, new REXPDouble(new double[] { i, i + 0.5, i + 1 }));
+		frame = REXP.createDataFrame(l);
+		buf = new byte[new REXPFactory(frame).getBinaryLength()];
+	}
+
+	/** length pass and encoding, as done for every request */
+	@Benchmark
+	public byte[] encode() throws REXPMismatchException {
+		REXPFactory f = new REXPFactory(frame);
+		f.getBinaryLength();
+		f.getBinaryRepresentation(buf, 0);
+		return buf;
+	}
+}
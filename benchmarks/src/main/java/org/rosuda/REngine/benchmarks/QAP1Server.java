@@ -0,0 +1,200 @@
+package org.rosuda.REngine.benchmarks;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.rosuda.REngine.*;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+import org.rosuda.REngine.Rserve.protocol.RTalk;
+
+/** in-process stand-in for Rserve which speaks enough QAP1 to measure {@link org.rosuda.REngine.Rserve.RConnection}
+    round trips without R. It listens on an ephemeral port on the loopback interface, serves each connection
+    in its own thread and answers <code>eval</code>, <code>voidEval</code>, <code>assign</code> and <code>shutdown</code>
+    (everything else is rejected with an error). What an evaluation returns is decided by a pluggable {@link Handler}. */
+public class QAP1Server implements Closeable {
+	/** computes the responses of the server */
+	public interface Handler {
+		/** evaluates an expression sent as a string
+		    @param expr expression
+		    @return result, <code>null</code> is sent as <code>NULL</code> */
+		REXP eval(String expr) throws Exception;
+
+		/** evaluates an expression sent as a REXP (e.g. a call), by default its string representation is passed to {@link #eval(String)} */
+		default REXP eval(REXP expr) throws Exception {
+			return eval(expr.toString());
+		}
+
+		/** assigns a value, ignored by default */
+		default void assign(String name, REXP value) throws Exception {
+		}
+	}
+
+	/** handler which returns the same value for every expression */
+	public static Handler constant(final REXP value) {
+		return expr -> value;
+	}
+
+	/** Rserve error code for a failed evaluation */
+	public static final int ERR_EVAL = 127;
+	/** Rserve error code for an unsupported command */
+	public static final int ERR_UNSUPPORTED = 0x4c;
+
+	final ServerSocket ss;
+	final Thread acceptor;
+	volatile Handler handler;
+
+	/** starts a server
+	    @param handler handler of evaluations */
+	public QAP1Server(Handler handler) throws IOException {
+		this.handler = handler;
+		ss = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		acceptor = new Thread(this::accept, "QAP1 stand-in");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/** @return port the server listens on (on 127.0.0.1) */
+	public int getPort() {
+		return ss.getLocalPort();
+	}
+
+	/** replaces the handler (affects connections already open) */
+	public void setHandler(Handler handler) {
+		this.handler = handler;
+	}
+
+	public void close() throws IOException {
+		ss.close();
+	}
+
+	void accept() {
+		try {
+			while (!ss.isClosed()) {
+				final Socket s = ss.accept();
+				s.setTcpNoDelay(true);
+				Thread t = new Thread(() -> serve(s), "QAP1 stand-in connection");
+				t.setDaemon(true);
+				t.start();
+			}
+		} catch (IOException e) {
+			// closed
+		}
+	}
+
+	void serve(Socket s) {
+		try (Socket sock = s) {
+			InputStream is = new BufferedInputStream(sock.getInputStream(), 65536);
+			OutputStream os = new BufferedOutputStream(sock.getOutputStream(), 65536);
+			os.write("Rsrv0103QAP1\r\n\r\n--------------\r\n".getBytes("US-ASCII"));
+			os.flush();
+			byte[] hdr = new byte[16];
+			byte[] body = new byte[65536];
+			while (true) {
+				if (!readFully(is, hdr, 16))
+					return;
+				int cmd = RTalk.getInt(hdr, 0);
+				long len = (RTalk.getInt(hdr, 4) & 0xffffffffL) | (((long) RTalk.getInt(hdr, 12)) << 32);
+				if (len > body.length)
+					body = new byte[(int) len];
+				if (!readFully(is, body, (int) len))
+					return;
+				if (cmd == RTalk.CMD_shutdown) {
+					respond(os, RTalk.RESP_OK, null);
+					os.flush();
+					return;
+				}
+				try {
+					respond(os, RTalk.RESP_OK, process(cmd, body));
+				} catch (UnsupportedOperationException e) {
+					respond(os, RTalk.RESP_ERR | (ERR_UNSUPPORTED << 24), null);
+				} catch (Exception e) {
+					respond(os, RTalk.RESP_ERR | (ERR_EVAL << 24), null);
+				}
+				os.flush();
+			}
+		} catch (IOException e) {
+			// connection closed by the client
+		}
+	}
+
+	/** processes one command
+	    @return REXP to send back as DT_SEXP or <code>null</code> for an empty response */
+	REXP process(int cmd, byte[] body) throws Exception {
+		int o = 0;
+		switch (cmd) {
+			case RTalk.CMD_eval:
+			case RTalk.CMD_voidEval: {
+				REXP res;
+				if ((body[0] & 63) == RTalk.DT_SEXP)
+					res = handler.eval(sexp(body, o));
+				else
+					res = handler.eval(string(body, o).trim()); // RConnection appends a newline
+				return (cmd == RTalk.CMD_eval) ? ((res == null) ? new REXPNull() : res) : null;
+			}
+			case RTalk.CMD_setSEXP:
+			case RTalk.CMD_assignSEXP: {
+				String name = string(body, o);
+				o = skipParameter(body, o);
+				handler.assign(name, sexp(body, o));
+				return null;
+			}
+			default:
+				throw new UnsupportedOperationException();
+		}
+	}
+
+	static int skipParameter(byte[] b, int o) {
+		return o + (((b[o] & RTalk.DT_LARGE) != 0) ? 8 : 4) + RTalk.getLen(b, o);
+	}
+
+	static String string(byte[] b, int o) throws UnsupportedEncodingException {
+		int s = o + (((b[o] & RTalk.DT_LARGE) != 0) ? 8 : 4), e = s;
+		while (b[e] != 0)
+			e++;
+		return new String(b, s, e - s, "UTF-8");
+	}
+
+	static REXP sexp(byte[] b, int o) throws REXPMismatchException {
+		REXPFactory f = new REXPFactory();
+		f.parseREXP(b, o + (((b[o] & RTalk.DT_LARGE) != 0) ? 8 : 4));
+		return f.getREXP();
+	}
+
+	static void respond(OutputStream os, int cmd, REXP value) throws IOException {
+		byte[] hdr = new byte[16];
+		byte[] content = null;
+		if (value != null) {
+			try {
+				REXPFactory f = new REXPFactory(value);
+				int rl = f.getBinaryLength();
+				int hl = (rl > 0xfffff0) ? 8 : 4;
+				content = new byte[hl + rl];
+				RTalk.setHdr(RTalk.DT_SEXP, rl, content, 0);
+				f.getBinaryRepresentation(content, hl);
+			} catch (REXPMismatchException e) {
+				cmd = RTalk.RESP_ERR | (ERR_EVAL << 24);
+				content = null;
+			}
+		}
+		long len = (content == null) ? 0 : content.length;
+		RTalk.setInt(cmd, hdr, 0);
+		RTalk.setInt((int) len, hdr, 4);
+		RTalk.setInt((int) (len >>> 32), hdr, 12);
+		os.write(hdr);
+		if (content != null)
+			os.write(content);
+	}
+
+	static boolean readFully(InputStream is, byte[] b, int len) throws IOException {
+		int n = 0;
+		while (n < len) {
+			int r = is.read(b, n, len - n);
+			if (r < 0)
+				return false;
+			n += r;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,63 @@
+package org.rosuda.REngine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.rosuda.REngine.*;
+import org.rosuda.REngine.Rserve.RConnection;
+
+/** measures {@link RConnection} round trips against the in-process {@link QAP1Server}, i.e. the client side
+    cost of a request (encoding, socket I/O and decoding) without the time spent in R */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RoundTripBenchmark {
+	@Param({ "1", "10000", "1000000" })
+	int size;
+
+	QAP1Server server;
+	RConnection c;
+	REXP vector;
+
+	@Setup
+	public void setup() throws Exception {
+		double[] d = new double[size];
+		for (int i = 0; i < size; i++)
+			d[i] = i * 0.5;
+		vector = new REXPDouble(d);
+		final REXP result = vector;
+		server = new QAP1Server(new QAP1Server.Handler() {
+			public REXP eval(String expr) {
+				return expr.equals("NULL") ? null : result;
+			}
+		});
+		c = new RConnection("127.0.0.1", server.getPort());
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		c.close();
+		server.close();
+	}
+
+	/** request with a small result, dominated by latency */
+	@Benchmark
+	public REXP evalNull() throws Exception {
+		return c.eval("NULL");
+	}
+
+	/** request with a result of <code>size</code> doubles */
+	@Benchmark
+	public REXP evalVector() throws Exception {
+		return c.eval("x");
+	}
+
+	/** assignment of <code>size</code> doubles */
+	@Benchmark
+	public void assignVector() throws Exception {
+		c.assign("x", vector);
+	}
+}
@@ -0,0 +1,60 @@
+package org.rosuda.REngine.benchmarks;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.rosuda.REngine.*;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+import org.rosuda.REngine.Rserve.protocol.RTalk;
+
+/** compares encoding a large numeric vector into a full-size array (the former assign() path) with
+    streaming it through the per-connection buffer of {@link RTalk}. Run with <code>-prof gc</code>
+    to see the difference in allocation. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StreamEncodeBenchmark {
+	@Param({ "10000", "1000000", "6000000" })
+	int size;
+
+	REXP vector;
+	RTalk rt;
+	byte[] prefix;
+
+	/** discards everything, stands in for the socket */
+	static class NullOutputStream extends OutputStream {
+		public void write(int b) { }
+		public void write(byte[] b, int off, int len) { }
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		double[] d = new double[size];
+		for (int i = 0; i < size; i++)
+			d[i] = i * 0.5;
+		vector = new REXPDouble(d);
+		rt = new RTalk(null, new NullOutputStream());
+		prefix = RTalk.stringParameter("x");
+	}
+
+	@Benchmark
+	public byte[] fullArray() throws Exception {
+		REXPFactory r = new REXPFactory(vector);
+		int rl = r.getBinaryLength();
+		byte[] rq = new byte[prefix.length + rl + ((rl > 0xfffff0) ? 8 : 4)];
+		System.arraycopy(prefix, 0, rq, 0, prefix.length);
+		RTalk.setHdr(RTalk.DT_SEXP, rl, rq, prefix.length);
+		r.getBinaryRepresentation(rq, prefix.length + ((rl > 0xfffff0) ? 8 : 4));
+		rt.send(RTalk.CMD_setSEXP, null, rq, 0, rq.length);
+		return rq;
+	}
+
+	@Benchmark
+	public void streamed() throws Exception {
+		rt.send(RTalk.CMD_setSEXP, prefix, new REXPFactory(vector));
+	}
+}
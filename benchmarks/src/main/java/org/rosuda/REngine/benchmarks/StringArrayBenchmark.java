@@ -0,0 +1,60 @@
+package org.rosuda.REngine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.rosuda.REngine.*;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+
+/** measures encoding and decoding of character vectors (XT_ARRAY_STR) with a limited
+    number of distinct values, with and without de-duplication of the decoded strings */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StringArrayBenchmark {
+	@Param({ "100000", "1000000" })
+	int size;
+
+	@Param({ "ascii", "unicode" })
+	String content;
+
+	REXP vector;
+	byte[] buf;
+
+	@Setup
+	public void setup() throws REXPMismatchException {
+		String[] s = new String[size];
+		for (int i = 0; i < size; i++)
+			s[i] = (content.equals("ascii") ? "level_" : "été_€") + (i % 1000);
+		vector = new REXPString(s);
+		REXPFactory f = new REXPFactory(vector);
+		buf = new byte[f.getBinaryLength()];
+		f.getBinaryRepresentation(buf, 0);
+	}
+
+	@Benchmark
+	public byte[] encode() throws REXPMismatchException {
+		REXPFactory f = new REXPFactory(vector);
+		f.getBinaryLength();
+		f.getBinaryRepresentation(buf, 0);
+		return buf;
+	}
+
+	@Benchmark
+	public REXP decode() throws REXPMismatchException {
+		REXPFactory f = new REXPFactory();
+		f.parseREXP(buf, 0);
+		return f.getREXP();
+	}
+
+	@Benchmark
+	public REXP decodeDedup() throws REXPMismatchException {
+		REXPFactory f = new REXPFactory();
+		f.setDeduplicateStrings(true);
+		f.parseREXP(buf, 0);
+		return f.getREXP();
+	}
+}